@@ -1,18 +1,19 @@
 package herv.app.activities;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
@@ -26,20 +27,17 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
-import com.opencsv.CSVReader;
-
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import herv.app.R;
+import herv.app.pipeline.HeartbeatChannel;
 import herv.app.services.BluetoothLeService;
+import herv.app.services.ScratchFileWriter;
+import herv.app.upload.BatchTransport;
+import herv.app.upload.BulkImporter;
+import herv.app.upload.HttpBatchTransport;
 
 import static com.firebase.ui.auth.AuthUI.getApplicationContext;
 
@@ -60,6 +58,8 @@ public class HeartbeatFragment extends Fragment {
     private OnFragmentInteractionListener mListener;
 
     private boolean serviceConnected;
+    private BulkImporter importer;
+    private CharSequence updateLabel;
     private String deviceAddress; // "00:22:D0:85:88:8E";
 
     private final int REQUEST_SCAN = 42;
@@ -158,8 +158,12 @@ public class HeartbeatFragment extends Fragment {
     public void onDetach() {
         super.onDetach();
         mListener = null;
+        if (importer != null) {
+            importer.cancel();
+        }
         // TODO how to check that they are running to unbind/unregister??
         if (blueService != null) {
+            blueService.getHeartbeatChannel().removeObserver(heartbeatObserver);
             getActivity().unbindService(serviceConnection);
             blueService = null;
         }
@@ -246,6 +250,7 @@ public class HeartbeatFragment extends Fragment {
     private void stopMonitoringService() {
         Log.i(TAG, "Stopping service");
         getActivity().unregisterReceiver(gattUpdateReceiver);
+        blueService.getHeartbeatChannel().removeObserver(heartbeatObserver);
         blueService.disconnect();
         getActivity().unbindService(serviceConnection);
         Intent stopIntent = new Intent(getActivity(), BluetoothLeService.class);
@@ -284,6 +289,7 @@ public class HeartbeatFragment extends Fragment {
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             Log.i(TAG, "Service connected to activity");
             blueService = ((BluetoothLeService.LocalBinder) service).getService();
+            blueService.getHeartbeatChannel().addObserver(heartbeatObserver);
             serviceConnected = true;
             heartToggle.setChecked(true);
         }
@@ -306,20 +312,23 @@ public class HeartbeatFragment extends Fragment {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
-    // handles events fired by the service.
+    // shows the latest beat, called on the main thread at most a few times per second
+    private final HeartbeatChannel.Observer heartbeatObserver = new HeartbeatChannel.Observer() {
+        @Override
+        public void onHeartbeat(HeartbeatChannel.Snapshot snapshot) {
+            heartbeat.setText(snapshot.toScreenString());
+        }
+    };
+
+    // handles connection events fired by the service.
     private final BroadcastReceiver gattUpdateReceiver = new BroadcastReceiver() {
 
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                heartbeat.setText(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-            }
-
             if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 heartbeat.setText("Disconnected");
             }
@@ -329,99 +338,85 @@ public class HeartbeatFragment extends Fragment {
 
     //endregion
 
+    /**
+     * Lets the user pick scratch files and re-uploads them in background with the
+     * {@link BulkImporter}, showing the progress on the update button
+     */
     public void updateDataBase(View view) {
-        try{
-            //File csvfile = new File(context.getFilesDir() + "/" + "hello.txt");
-
-            File csvfile = new File("/storage/emulated/0/HeRV/rr18050222.csv");
-            CSVReader reader = new CSVReader(new FileReader(csvfile.getAbsolutePath()),',');
-            String [] nextLine;
-            String datatime = "" ;
-            String beat = "" ;
-            //int k  = 0;
-            while ((nextLine = reader.readNext()) != null) {
-                // nextLine[] is an array of values from the line
-
-                if(nextLine[0]  != "") {
-
-                    datatime = (nextLine[0] != "") ? nextLine[0] : "0";
-                    //System.out.print(temp+ "  ");
-
-                    beat = (nextLine[1] != "") ? nextLine[1] : "1";
-                    //System.out.println(temp);
-                    new CargarDatos().execute("http://uspio.pythonanywhere.com/AgregarHeart_ajax/?FechaTiempo="+datatime+"&Beat="+beat);
-                    //http://127.0.0.1:8000/AgregarHeart_ajax/?FechaTiempo=2018-05-06%2014:14:42&Beat=650
-                }
-                //System.out.println(parts[1]);
-            }
-            reader.close();
-            Toast.makeText(getActivity(), "Finished", Toast.LENGTH_LONG).show();
-        }catch(Exception e){
-            e.printStackTrace();
-            System.out.println("/storage/emulated/0/HeRV/rr18050222.csv");
-            Toast.makeText(getActivity(), "The specified file was not found", Toast.LENGTH_SHORT).show();
+        if (importer != null) {
+            Toast.makeText(getActivity(), "Import already running", Toast.LENGTH_SHORT).show();
+            return;
         }
-    }
-
-    public class CargarDatos extends AsyncTask<String, Void, String> {
-        @Override
-        protected String doInBackground(String... urls) {
-
-            // params comes from the execute() call: params[0] is the url.
-            try {
-                return downloadUrl(urls[0]);
-            } catch (IOException e) {
-                return "Unable to retrieve web page. URL may be invalid.";
-            }
+        final File[] files = BulkImporter.listImportable(ScratchFileWriter.getDirectory());
+        if (files.length == 0) {
+            Toast.makeText(getActivity(), "No files to upload", Toast.LENGTH_SHORT).show();
+            return;
         }
-        // onPostExecute displays the results of the AsyncTask.
-        @Override
-        protected void onPostExecute(String result) {
-
-            Toast.makeText(getActivity(), "Atualizando dados", Toast.LENGTH_LONG).show();
-
+        String[] names = new String[files.length];
+        final boolean[] selected = new boolean[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getName();
         }
+        new AlertDialog.Builder(getActivity())
+                .setTitle("Upload files")
+                .setMultiChoiceItems(names, selected, new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        selected[which] = isChecked;
+                    }
+                })
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override public void onClick(DialogInterface dialog, int which) {
+                        List<File> chosen = new ArrayList<File>();
+                        for (int i = 0; i < files.length; i++) {
+                            if (selected[i]) chosen.add(files[i]);
+                        }
+                        if (!chosen.isEmpty()) startImport(chosen);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
     }
 
-    private String downloadUrl(String myurl) throws IOException {
-        Log.i("URL",""+myurl);
-        myurl = myurl.replace(" ","%20");
-        InputStream is = null;
-        // Only display the first 500 characters of the retrieved
-        // web page content.
-        int len = 500;
-
-        try {
-            URL url = new URL(myurl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(10000 /* milliseconds */);
-            conn.setConnectTimeout(15000 /* milliseconds */);
-            conn.setRequestMethod("GET");
-            conn.setDoInput(true);
-            // Starts the query
-            conn.connect();
-            int response = conn.getResponseCode();
-            Log.d("respuesta", "The response is: " + response);
-            is = conn.getInputStream();
-
-            // Convert the InputStream into a string
-            String contentAsString = readIt(is, len);
-            return contentAsString;
-
-            // Makes sure that the InputStream is closed after the app is
-            // finished using it.
-        } finally {
-            if (is != null) {
-                is.close();
+    private void startImport(final List<File> files) {
+        final Activity activity = getActivity();
+        importer = new BulkImporter(new BulkImporter.TransportFactory() {
+            @Override public BatchTransport create() {
+                return new HttpBatchTransport(HttpBatchTransport.DEFAULT_URL);
+            }
+        });
+        importer.setListener(new BulkImporter.Listener() {
+            @Override public void onProgress(final BulkImporter.Progress progress) {
+                final int percent = progress.getPercent();
+                activity.runOnUiThread(new Runnable() {
+                    @Override public void run() { updateDB.setText(percent + "%"); }
+                });
             }
-        }
-    }
 
-    public String readIt(InputStream stream, int len) throws IOException, UnsupportedEncodingException {
-        Reader reader = null;
-        reader = new InputStreamReader(stream, "UTF-8");
-        char[] buffer = new char[len];
-        reader.read(buffer);
-        return new String(buffer);
+            @Override public void onFinished(final BulkImporter.Progress progress) {
+                Log.i(TAG, "Import finished: " + progress);
+                final String summary = progress.sentLines + " lines uploaded"
+                        + (progress.failedLines > 0 ? ", " + progress.failedLines + " failed" : "");
+                activity.runOnUiThread(new Runnable() {
+                    @Override public void run() {
+                        importer = null;
+                        updateDB.setText(updateLabel);
+                        Toast.makeText(activity, summary, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+        updateLabel = updateDB.getText();
+        final BulkImporter running = importer;
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    running.run(files);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "herv-import");
+        thread.setDaemon(true);
+        thread.start();
     }
 }
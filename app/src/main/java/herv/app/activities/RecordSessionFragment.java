@@ -18,12 +18,14 @@ import android.widget.Toast;
 
 import com.google.firebase.auth.FirebaseAuth;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.Date;
 
 import herv.app.R;
+import herv.app.analytics.ActivityIndex;
 import herv.app.model.DailyActivity;
 import herv.app.model.Event;
+import herv.app.model.TimestampFormatter;
 import herv.app.services.BluetoothLeService;
 import herv.app.services.ScratchFileWriter;
 
@@ -41,8 +43,6 @@ public class RecordSessionFragment extends Fragment {
     private ArrayAdapter<CharSequence> categoriesAdapter;
     private TextView sessionText;
 
-    private static SimpleDateFormat formatActivityFilename = new SimpleDateFormat("yyMMdd");
-
 
     //region lifecycle
 
@@ -193,6 +193,7 @@ public class RecordSessionFragment extends Fragment {
         DailyActivity activity = new DailyActivity(Event.TP_START, selActivity, selPosture, new Date());
         saveActivity(activity);
         //iniciar lectura
+        BluetoothLeService.actividad = activity;
         BluetoothLeService.indicador = true;
         persistStartedSession(selActivityID, selPostureID);
         setSessionStatusView(true);
@@ -217,16 +218,32 @@ public class RecordSessionFragment extends Fragment {
 
 
     private void saveActivity(DailyActivity activity) {
-        String dt = formatActivityFilename.format(new Date());
         String user = FirebaseAuth.getInstance().getCurrentUser().getUid();
         StringBuilder filename = new StringBuilder();
         filename.append("act");
-        filename.append(dt);
+        TimestampFormatter.getDefault().formatDayKey(System.currentTimeMillis(), filename);
         //filename.append("_");
         //filename.append(user);
         filename.append(".csv");
         ScratchFileWriter writer = new ScratchFileWriter(getActivity(), filename.toString());
         writer.saveData(activity.toCSV());
+        indexActivity(activity);
+    }
+
+    /**
+     * Keeps the activity index up to date, so lookups by time do not read the csv files
+     */
+    private void indexActivity(DailyActivity activity) {
+        try {
+            ActivityIndex index = ActivityIndex.getDefault(ScratchFileWriter.getDirectory());
+            if (Event.TP_START.equals(activity.getType())) {
+                index.start(activity.getDt().getTime(), String.valueOf(activity.getActivityName()), activity.getPosture());
+            } else {
+                index.stop(activity.getDt().getTime());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     //endregion
@@ -32,18 +32,47 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
 
+import herv.app.BuildConfig;
 import herv.app.R;
 import herv.app.activities.MainActivity;
-import herv.app.model.Heartbeat;
+import herv.app.analytics.ActivityIndex;
+import herv.app.analytics.ActivityJoin;
+import herv.app.analytics.ActivitySession;
+import herv.app.ble.ReconnectScheduler;
+import herv.app.hrm.HeartRateMeasurement;
+import herv.app.hrv.HrvMetrics;
+import herv.app.hrv.SpectralMetrics;
+import herv.app.metrics.MetricsDumper;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.pipeline.HeartbeatChannel;
+import herv.app.pipeline.HeartbeatPipeline;
+import herv.app.storage.CsvEventStore;
+import herv.app.storage.EventQueue;
+import herv.app.storage.EventStore;
+import herv.app.storage.EventWriter;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.RollupEventStore;
+import herv.app.storage.RollupStore;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.TimeIndex;
+import herv.app.trace.Trace;
+import herv.app.trace.TraceDumper;
+import herv.app.upload.BatchUploader;
+import herv.app.upload.HttpBatchTransport;
+import herv.app.upload.Outbox;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -53,11 +82,15 @@ public class BluetoothLeService extends Service {
 
     private final static String TAG = BluetoothLeService.class.getSimpleName();
     public static boolean indicador = false;
+    // activity being recorded, set along with indicador
+    public static volatile DailyActivity actividad;
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String deviceAddress;
     private String userID;
-    private BluetoothGatt mBluetoothGatt;
+    // written under gattLock, by the main thread and the reconnect thread; read by any thread
+    private volatile BluetoothGatt mBluetoothGatt;
+    private final Object gattLock = new Object();
     private NotificationManager notificationMgr;
 
     private int mConnectionState = STATE_DISCONNECTED;
@@ -77,12 +110,135 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_HRMEASURE = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
     public final static int NOTIFICATION_EX = 1;
-    private static SimpleDateFormat formatDateDB = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static SimpleDateFormat formatDateFilename = new SimpleDateFormat("yyMMddHH");
+    public final static String LOG_FOLDER = "log";
+    public final static String OUTBOX_STATE_FILE = Outbox.STATE_FILE;
+    public final static String ROLLUP_FOLDER = "rollup";
+    public final static String METRICS_FILE = "metrics.csv";
+    public final static String TRACE_FILE = "trace.log";
+    public final static String SPILL_FOLDER = "spill";
+
+    // latest beat for the bound screens, delivered on the main thread at most every 250 ms
+    private HeartbeatChannel heartbeatChannel;
+    // persists beats in its own thread, the gatt callback only queues them
+    private EventWriter eventWriter;
+    // decoding, filtering and HRV of the notifications, on the gatt callback thread
+    private HeartbeatPipeline heartbeatPipeline;
+    // sends the persisted beats to the server in batches
+    private Outbox outbox;
+    private RollupStore rollupStore;
+    private TimeIndex timeIndex;
+    private BatchUploader batchUploader;
+    // brings the connection back when the sensor is lost, off the gatt callback thread
+    private ReconnectScheduler.SystemClock reconnectClock;
+    private ReconnectScheduler reconnectScheduler;
+    // pipeline counters and latencies, appended to a local file every minute
+    private MetricsDumper metricsDumper;
+    // last pipeline events, written to a local file when something goes wrong
+    private TraceDumper traceDumper;
 
 
     //region lifecycle management
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Trace.getDefault().setLevel(BuildConfig.DEBUG ? Trace.DEBUG : Trace.INFO);
+        traceDumper = new TraceDumper(Trace.getDefault(), new File(ScratchFileWriter.getDirectory(), TRACE_FILE));
+        traceDumper.start();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        heartbeatChannel = new HeartbeatChannel(new HeartbeatChannel.Dispatcher() {
+            @Override
+            public long now() {
+                return android.os.SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void post(Runnable task, long delayMillis) {
+                mainHandler.postDelayed(task, delayMillis);
+            }
+        }, HeartRateMeasurement.MAX_RR_INTERVALS);
+        EventStore store = openEventStore();
+        eventWriter = new EventWriter(withRollups(store), newQueue("writer", EventWriter.DEFAULT_CAPACITY),
+                EventWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+        if (store instanceof LogEventStore) {
+            startOutbox(((LogEventStore) store).getLog().getDirectory());
+        } else {
+            startBatchUploader();
+        }
+        eventWriter.start();
+        heartbeatPipeline = new HeartbeatPipeline(heartbeatChannel, eventWriter, new ActivityJoin.Listener() {
+            @Override
+            public void onSession(ActivitySession session) {
+                Log.i(TAG, "Activity HRV: " + session);
+            }
+        }, new HeartbeatPipeline.Listener() {
+            @Override
+            public void onMalformed(byte[] value) {
+                // traced and counted by the pipeline
+            }
+
+            @Override
+            public void onDropped(CompactHeartbeat beat) {
+                // traced, and dumped to the trace file, by the pipeline
+            }
+
+            @Override
+            public void onRecordingStopped(HrvMetrics session, SpectralMetrics recent) {
+                Log.i(TAG, "Session HRV: " + session + ", last 5 min: " + recent);
+            }
+        });
+        closeInterruptedActivity();
+        metricsDumper = new MetricsDumper(MetricsRegistry.getDefault(),
+                new File(ScratchFileWriter.getDirectory(), METRICS_FILE));
+        metricsDumper.start();
+        reconnectClock = new ReconnectScheduler.SystemClock();
+        reconnectScheduler = new ReconnectScheduler(new ReconnectScheduler.Connector() {
+            @Override
+            public boolean connect() {
+                return reconnect();
+            }
+        }, reconnectClock);
+    }
+
+    /**
+     * Beats in the event log are uploaded from the log itself, surviving restarts and
+     * connectivity loss
+     */
+    private void startOutbox(File logDir) {
+        try {
+            outbox = new Outbox(logDir, new File(logDir, OUTBOX_STATE_FILE),
+                    new HttpBatchTransport(HttpBatchTransport.DEFAULT_URL));
+            outbox.setTimeIndex(timeIndex);
+            outbox.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open upload outbox, beats will only be kept locally", e);
+        }
+    }
+
+    /**
+     * Without the event log, beats are uploaded in memory batches as they are written
+     */
+    private void startBatchUploader() {
+        batchUploader = new BatchUploader(new HttpBatchTransport(HttpBatchTransport.DEFAULT_URL),
+                newQueue("upload", BatchUploader.DEFAULT_CAPACITY),
+                BatchUploader.DEFAULT_MAX_BATCH, BatchUploader.DEFAULT_MAX_DELAY_MILLIS);
+        batchUploader.setListener(new BatchUploader.Listener() {
+            @Override
+            public void onBatchSent(int events, int bytes, boolean success, int status) {
+                if (!success) {
+                    Log.w(TAG, "Upload of " + events + " beats failed with status " + status + ", will retry");
+                }
+            }
+        });
+        batchUploader.start();
+        eventWriter.setListener(new EventWriter.Listener() {
+            @Override
+            public void onWritten(Event event) {
+                batchUploader.add(event);
+            }
+        });
+    }
+
     public int onStartCommand(Intent intent, int flags, int startId) {
 
         String address = intent.getExtras().getString("address");
@@ -95,6 +251,7 @@ public class BluetoothLeService extends Service {
             this.showForegroundNotification(getString(R.string.notification_disconnected), R.drawable.herv_logo_3);
             this.deviceAddress = address;
             this.userID = userID;
+            reconnectScheduler.enable();
             this.connect(address);
         }
         //TODO test if the address is different from the one stored. If so, disconnect and connect to new server
@@ -102,8 +259,116 @@ public class BluetoothLeService extends Service {
         return START_STICKY;
     }
 
+    /**
+     * Beats that do not fit in a full queue (storage slower than the sensor, or uploads retried
+     * while the network is down) are spilled to disk and written or sent later, so memory stays
+     * flat; if the spill folder cannot be created they are dropped and counted. Uploads still
+     * failing when the service stops are given up, the beats are kept in the event store.
+     */
+    private EventQueue newQueue(String name, int capacity) {
+        File dir = new File(ScratchFileWriter.getDirectory(), SPILL_FOLDER);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create spill folder, the " + name + " queue will drop beats when full");
+            return new EventQueue(name, capacity, EventQueue.DROP);
+        }
+        return new EventQueue(name, capacity, EventQueue.SPILL, new File(dir, name + ".spill"),
+                EventQueue.DEFAULT_BLOCK_MILLIS);
+    }
+
+    /**
+     * Beats are kept in a crash-safe segment log; if it cannot be opened, fall back to the
+     * csv scratch files so the recording is not lost
+     */
+    private EventStore openEventStore() {
+        File dir = new File(ScratchFileWriter.getDirectory(), LOG_FOLDER);
+        try {
+            SegmentLog log = new SegmentLog(dir);
+            if (log.getTruncatedBytes() > 0) {
+                Log.w(TAG, "Recovered event log, cut " + log.getTruncatedBytes() + " torn bytes");
+            }
+            return new LogEventStore(log, openTimeIndex(dir));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open event log, writing csv files instead", e);
+            return new CsvEventStore(ScratchFileWriter.getDirectory());
+        }
+    }
+
+    /**
+     * Index to read ranges of the log back, null (and the log is not indexed) if it cannot be built
+     */
+    private TimeIndex openTimeIndex(File dir) {
+        try {
+            timeIndex = new TimeIndex(dir);
+            return timeIndex;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index event log", e);
+            return null;
+        }
+    }
+
+    /**
+     * An activity still open in the index while nothing is recording was cut by a process kill:
+     * it is closed at the last beat recorded
+     */
+    private void closeInterruptedActivity() {
+        if (indicador) return;
+        try {
+            ActivityIndex activities = ActivityIndex.getDefault(ScratchFileWriter.getDirectory());
+            ActivityIndex.Entry open = activities.getOpen();
+            if (open == null) return;
+            long lastBeat = timeIndex != null ? timeIndex.getLastTimestamp() : Long.MIN_VALUE;
+            activities.closeOpen(Math.max(open.start, lastBeat));
+            Log.w(TAG, "Closed interrupted activity " + open.activityName);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open activity index", e);
+        }
+    }
+
+    /**
+     * Keeps per second/minute/hour summaries next to the raw data for history views
+     */
+    private EventStore withRollups(EventStore store) {
+        try {
+            rollupStore = new RollupStore(new File(ScratchFileWriter.getDirectory(), ROLLUP_FOLDER));
+            return new RollupEventStore(store, rollupStore);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open rollups, history will not be summarized", e);
+            return store;
+        }
+    }
+
+    /**
+     * Per second, minute and hour summaries of the recorded beats, null if unavailable
+     */
+    public RollupStore getRollupStore() {
+        return rollupStore;
+    }
+
+    /**
+     * Time index of the recorded beats, null if unavailable
+     */
+    public TimeIndex getTimeIndex() {
+        return timeIndex;
+    }
+
+    /**
+     * Writes the last pipeline events to the trace file, e.g. when the user reports a problem
+     * @return the trace file
+     */
+    public File dumpTrace() {
+        traceDumper.dump("requested");
+        return traceDumper.getFile();
+    }
+
     @Override
     public void onDestroy() {
+        reconnectScheduler.cancel();
+        reconnectClock.shutdown();
+        eventWriter.close();
+        if (outbox != null) outbox.close();
+        if (batchUploader != null) batchUploader.close();
+        metricsDumper.close();
+        traceDumper.close();
         notificationMgr.cancel(NOTIFICATION_EX);
     }
 
@@ -135,6 +400,13 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    /**
+     * Channel to observe the heart rate from bound clients, instead of a broadcast per beat
+     */
+    public HeartbeatChannel getHeartbeatChannel() {
+        return heartbeatChannel;
+    }
+
     public class LocalBinder extends Binder {
         public BluetoothLeService getService() {
             return BluetoothLeService.this;
@@ -156,11 +428,13 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        synchronized (gattLock) {
+            if (mBluetoothGatt == null) {
+                return;
+            }
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     //endregion
@@ -192,6 +466,23 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public boolean connect(final String address) {
+        synchronized (gattLock) {
+            return connectLocked(address);
+        }
+    }
+
+    /**
+     * Attempt of the {@link ReconnectScheduler}, on its thread. The user may have disconnected
+     * while it was waiting for the lock, then no new connection is opened.
+     */
+    private boolean reconnect() {
+        synchronized (gattLock) {
+            if (!reconnectScheduler.isEnabled()) return false;
+            return connectLocked(deviceAddress);
+        }
+    }
+
+    private boolean connectLocked(final String address) {
 
         Log.i(TAG, "Connecting to gatt server in bluetooth device with address " + address );
 
@@ -220,6 +511,7 @@ public class BluetoothLeService extends Service {
                 return true;
             } else {
                 Log.i(TAG, "Existing connection lost");
+                mBluetoothGatt.close();
                 mBluetoothGatt = null; // unable to reconnect, try to create a new connection
                 mConnectionState = STATE_DISCONNECTED;
                 return false;
@@ -250,13 +542,17 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+        synchronized (gattLock) {
+            // under the lock, so an attempt in flight either ran before or sees it cancelled
+            reconnectScheduler.cancel();
+            if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+                Log.w(TAG, "BluetoothAdapter not initialized");
+                return;
+            }
+            mBluetoothGatt.disconnect();
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
         }
-        mBluetoothGatt.disconnect();
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     public boolean getConnectedState() {
@@ -271,30 +567,31 @@ public class BluetoothLeService extends Service {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Trace.getDefault().record(Trace.INFO, Trace.EV_CONNECTION, newState, status);
             String intentAction;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
-                Log.i(TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
+                Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
                 showForegroundNotification(getString(R.string.notification_connecting), R.drawable.herv_logo_3);
+                reconnectScheduler.onConnected();
+                if (reconnectScheduler.getReconnects() > 0) {
+                    Trace.getDefault().record(Trace.INFO, Trace.EV_RECONNECTED,
+                            reconnectScheduler.getLastReconnectMillis(), reconnectScheduler.getAttempts());
+                    Log.i(TAG, "Reconnected after " + reconnectScheduler.getLastReconnectMillis() + " ms, "
+                            + reconnectScheduler.getAttempts() + " attempts so far");
+                }
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
-                Log.i(TAG, "Trying to reconnect");
                 showForegroundNotification(getString(R.string.notification_disconnected), R.drawable.herv_logo_3);
-                int i = 0;
-                //TODO move to a separate thread and let it sleep for a few seconds before trying again
-                while(!connect(deviceAddress)) {
-                    i++;
-                    if (i%10 == 0) {
-                        Log.i(TAG, "Tried " + i + " times...");
-                    }
-                }
+                // retried with backoff in the scheduler thread, the callback returns right away
+                reconnectScheduler.onDisconnected();
             }
         }
 
@@ -334,11 +631,12 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
 
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        gatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement
         if (UUID_HRMEASURE.equals(characteristic.getUuid())) {
@@ -346,7 +644,7 @@ public class BluetoothLeService extends Service {
             UUID uuid = UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(uuid);
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            gatt.writeDescriptor(descriptor);
         } else {
             Log.i(TAG, "Setting up notification for non heart rate measurement characteristic");
         }
@@ -359,8 +657,9 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
-        return mBluetoothGatt.getServices();
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) return null;
+        return gatt.getServices();
     }
 
 
@@ -387,11 +686,12 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        gatt.readCharacteristic(characteristic);
     }
 
     //endregion
@@ -405,57 +705,27 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Broadcasts data from a received updated characteristic
+     * Heart rate measurements go through the {@link HeartbeatPipeline} to the event writer and,
+     * coalesced, to the bound screens; only other (rarely read) characteristics are broadcast
      */
     private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        String data;
         if (UUID_HRMEASURE.equals(characteristic.getUuid())) {
-            Heartbeat beat = extractFromHRMCharacteristic(characteristic);
-            //System.out.println();
-            data = beat.toScreenString();
-            //TODO create a different service or at least thread to deal with file writing
-            if (beat.getIntervals() != null ) {
-                //control de lectura
-                if (indicador){saveDataToCSV(beat);}
-            }
-        } else {
-            data = extractFromGeneralCharacteristic(characteristic);
+            //control de lectura
+            heartbeatPipeline.setRecording(indicador, actividad);
+            heartbeatPipeline.onNotification(characteristic.getValue(), System.currentTimeMillis());
+            return;
         }
-        intent.putExtra(EXTRA_DATA, data);
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DATA, extractFromGeneralCharacteristic(characteristic));
         sendBroadcast(intent);
     }
 
-    private void saveDataToCSV(Heartbeat beat) {
-        String dt = formatDateFilename.format(Calendar.getInstance().getTime());
-        StringBuilder filename = new StringBuilder();
-        filename.append("rr");
-        filename.append(dt);
-        //filename.append("_");
-        //filename.append(this.userID);
-        filename.append(".csv");
-        ScratchFileWriter writer = new ScratchFileWriter(this, filename.toString());
-        writer.saveData(beat.toCSV());
-    }
-
     //endregion
 
 
     //TODO move to a separate class to unclutter this
     //region read info from GATT characteristics
 
-    /**
-     * Reads HR and RR (IBI) intervals from the Heart Rate Measurement Characteristic
-     * Parsing of the values is done according to:
-     * http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-     **/
-    private Heartbeat extractFromHRMCharacteristic(BluetoothGattCharacteristic characteristic) {
-        List<Integer> rr = extractBeatToBeatInterval(characteristic);
-        Integer hr = extractHeartRate(characteristic);
-        return new Heartbeat(rr, hr);
-    }
-
     /**
      * Reads data from characteristics other than heart rate measurement, dumping in HEX format
      **/
@@ -471,68 +741,6 @@ public class BluetoothLeService extends Service {
     }
 
 
-    /**
-     * Extracts RR (IBI) intervals from heart rate measurement characteristic
-     * Copied from https://github.com/oerjanti/BLE-Heart-rate-variability-demo
-     */
-    private List<Integer> extractBeatToBeatInterval( BluetoothGattCharacteristic characteristic) {
-
-        int flag = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        int format = -1;
-        int energy = -1;
-        int offset = 1; // This depends on hear rate value format and if there is energy data
-        int rr_count = 0;
-
-        if ((flag & 0x01) != 0) {
-            format = BluetoothGattCharacteristic.FORMAT_UINT16;
-            offset = 3;
-        } else {
-            format = BluetoothGattCharacteristic.FORMAT_UINT8;
-            offset = 2;
-        }
-        if ((flag & 0x08) != 0) {
-            // calories present
-            energy = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            offset += 2;
-            Log.d(TAG, "Received energy: {}"+ energy);
-        }
-        if ((flag & 0x16) != 0){
-            //Log.d(TAG, "RR length: "+ (characteristic.getValue()).length);
-            rr_count = ((characteristic.getValue()).length - offset) / 2;
-            Log.d(TAG, "rr_count: "+ rr_count);
-            if (rr_count > 0) {
-                List<Integer> beats = new ArrayList<Integer>(rr_count);
-                for (int i = 0; i < rr_count; i++) {
-                    beats.add(characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset));
-                    offset += 2;
-                    Log.d(TAG, "RR: " + beats.get(i));
-                }
-                return beats;
-            }
-        }
-        Log.d(TAG, "No RR data on this update: ");
-        return null;
-    }
-
-    /**
-     * Extracts heart rate value from heart rate measurement characteristic
-     * Modified from https://github.com/oerjanti/BLE-Heart-rate-variability-demo
-     */
-    private Integer extractHeartRate( BluetoothGattCharacteristic characteristic) {
-
-        int flag = characteristic.getProperties();
-        int format = -1;
-        // Heart rate bit number format
-        if ((flag & 0x01) != 0) {
-            format = BluetoothGattCharacteristic.FORMAT_UINT16;
-        } else {
-            format = BluetoothGattCharacteristic.FORMAT_UINT8;
-        }
-        final int heartRate = characteristic.getIntValue(format, 1);
-        Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-        return heartRate;
-    }
-
     //endregion
 
 }
@@ -1,26 +1,39 @@
 package herv.app.services;
 
-import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import herv.app.sync.SyncEngine;
+import herv.app.sync.SyncManifest;
 
 public class CloudFileWriter {
 
     private final static String TAG = CloudFileWriter.class.getSimpleName();
+    public final static String MANIFEST_FILE = ".sync-manifest";
+
+    // one sync at a time, off the main thread
+    private final static ExecutorService syncExecutor = Executors.newSingleThreadExecutor();
+
     FirebaseStorage storage = FirebaseStorage.getInstance();
 
+    /**
+     * Starts an incremental sync of the HeRV folder in background: only new files and the new
+     * tail of files still being written are uploaded, see {@link SyncEngine}
+     * @return number of files in the folder
+     */
     public int uploadFiles (int userID) {
 
-        String remotePath = "raw/" + userID + "/";
+        final String remotePath = "raw/" + userID + "/";
 
         String dirname = Environment.getExternalStorageDirectory().getPath() + "/HeRV/";
-        File dir = new File(dirname);
+        final File dir = new File(dirname);
         if(!dir.exists() || !dir.isDirectory())
         {
             Log.w(TAG, "Trying to read non existent directory");
@@ -32,14 +45,19 @@ public class CloudFileWriter {
             return 0;
         }
 
-        StorageReference storageRef = storage.getReference();
-        for( File file : files) {
-            String fname = file.getAbsolutePath();
-            Log.i(TAG, "Preparing to send file: " + fname);
-            StorageReference ref =  storageRef.child(remotePath + file.getName());
-            Uri uri = Uri.fromFile(file);
-            ref.putFile(uri);
-        }
+        syncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SyncManifest manifest = SyncManifest.load(new File(dir, MANIFEST_FILE));
+                    SyncEngine engine = new SyncEngine(new FirebaseSyncBackend(storage), manifest);
+                    SyncEngine.Result result = engine.sync(dir, remotePath);
+                    Log.i(TAG, "Sync finished: " + result);
+                } catch (IOException e) {
+                    Log.e(TAG, "Sync failed", e);
+                }
+            }
+        });
         return files.length;
     }
 
@@ -0,0 +1,110 @@
+package herv.app.services;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageReference;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+
+import herv.app.sync.SyncBackend;
+
+/**
+ * Uploads to Firebase Storage. Blocks until the upload task finishes, so it must not be
+ * called from the main thread.
+ */
+public class FirebaseSyncBackend implements SyncBackend {
+
+    private final StorageReference root;
+
+    public FirebaseSyncBackend(FirebaseStorage storage) {
+        this.root = storage.getReference();
+    }
+
+    @Override
+    public void put(String remotePath, File file, long offset, long length) throws IOException {
+        InputStream in = new RangeInputStream(file, offset, length);
+        try {
+            Tasks.await(root.child(remotePath).putStream(in));
+        } catch (ExecutionException e) {
+            throw new IOException("Upload of " + remotePath + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload of " + remotePath + " interrupted", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void delete(String remotePath) throws IOException {
+        try {
+            Tasks.await(root.child(remotePath).delete());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException
+                    && ((StorageException) e.getCause()).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND) {
+                return; // already deleted
+            }
+            throw new IOException("Delete of " + remotePath + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Delete of " + remotePath + " interrupted", e);
+        }
+    }
+
+    /**
+     * Reads length bytes of a file starting at offset
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(File file, long offset, long length) throws IOException {
+            super(new FileInputStream(file));
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) throw new IOException("Unable to seek " + file + " to " + offset);
+                skipped += n;
+            }
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
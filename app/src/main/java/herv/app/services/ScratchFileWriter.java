@@ -11,9 +11,9 @@ import android.os.Environment;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,15 +23,41 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.Timer;
 
 import herv.app.activities.HeartbeatFragment;
+import herv.app.metrics.Counter;
+import herv.app.metrics.Gauge;
+import herv.app.metrics.MetricsRegistry;
 
 
 public class ScratchFileWriter {
 
+    // at most this many lines wait to be sent, later ones are dropped (and counted) while the
+    // network is slow or down instead of piling up in the AsyncTask executor
+    private final static int SEND_QUEUE_CAPACITY = 64;
+    private final static Counter sendDropped = MetricsRegistry.getDefault().counter("legacy_upload.dropped");
+    private final static ThreadPoolExecutor sendExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(SEND_QUEUE_CAPACITY), new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            sendDropped.inc();
+        }
+    });
+
+    static {
+        MetricsRegistry.getDefault().gauge("legacy_upload.queue", new Gauge() {
+            @Override
+            public long get() { return sendExecutor.getQueue().size(); }
+        });
+    }
+
     Context context;
     String filename, dirname;
     final BlockingQueue<Integer> queue = new LinkedBlockingQueue<Integer>();
@@ -44,6 +70,17 @@ public class ScratchFileWriter {
         checkFolder();
     }
 
+    /**
+     * Folder in external storage where all the scratch files are kept
+     */
+    public static File getDirectory() {
+        File f = new File(Environment.getExternalStorageDirectory(), "HeRV");
+        if (!f.exists()) {
+            f.mkdir();
+        }
+        return f;
+    }
+
     public boolean isExternalStorageWritable() {
         String state = Environment.getExternalStorageState();
         if (Environment.MEDIA_MOUNTED.equals(state)) {
@@ -78,41 +115,48 @@ public class ScratchFileWriter {
         return queue.remove();
     }
 */
+    /**
+     * Appends a row to the scratch file with a single write, forced to the device. A row starts
+     * with its line break, so if the write is cut short only that row is left partial. Used for
+     * the activity rows (a few per session), heartbeats go to the segment log.
+     */
     public void saveData(String data) {
-        java.io.FileWriter fw = null;
-        BufferedWriter bw = null;
+        FileOutputStream out = null;
         try {
-            //TODO URGENT open file only once and close at the end
-            fw = new java.io.FileWriter(filename, true);
-            bw = new BufferedWriter(fw);
-            bw.newLine();
-            bw.write(data);
-            String[] parts = data.split(",");
-            String datatime = parts[0]; // 123
-            String beat = parts[1]; // 654321
-            //Integer beat = genRandom(45,70);
-            if(!beat.toString().equals("stop"))
-            {
-                new CargarDatos().execute("http://uspio.pythonanywhere.com/AgregarHeart_ajax/?FechaTiempo="+datatime+"&Beat="+beat.toString());
-            }
-            else{
-                System.out.println("Aqui paro");
-            }
-            //System.out.println(datatime +"-/-"+ beat);
+            out = new FileOutputStream(filename, true);
+            out.write(("\n" + data).getBytes("UTF-8"));
+            out.getFD().sync();
+            sendToServer(data);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             try {
-                if (bw != null)
-                    bw.close();
-                if (fw != null)
-                    fw.close();
+                if (out != null)
+                    out.close();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
         }
     }
 
+    /**
+     * Sends a csv line (dt, value) to the server in background
+     */
+    public void sendToServer(String data) {
+        String[] parts = data.split(",");
+        String datatime = parts[0]; // 123
+        String beat = parts[1]; // 654321
+        //Integer beat = genRandom(45,70);
+        if(!beat.toString().equals("stop"))
+        {
+            new CargarDatos().executeOnExecutor(sendExecutor, "http://uspio.pythonanywhere.com/AgregarHeart_ajax/?FechaTiempo="+datatime+"&Beat="+beat.toString());
+        }
+        else{
+            System.out.println("Aqui paro");
+        }
+        //System.out.println(datatime +"-/-"+ beat);
+    }
+
     public class CargarDatos extends AsyncTask<String, Void, String> {
         @Override
         protected String doInBackground(String... urls) {
@@ -0,0 +1,66 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.upload.BatchTransport;
+import herv.app.upload.BatchUploader;
+
+/**
+ * Events per second the {@link BatchUploader} queues, packs into csv batches and hands to the
+ * transport, which answers right away: the client side cost of uploading, without the network.
+ * One operation is one event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchUploaderBenchmark {
+
+    private static final int EVENTS = 4096;
+
+    private final BatchTransport transport = new BatchTransport() {
+        @Override
+        public int post(byte[] body, int offset, int length) {
+            return 200;
+        }
+    };
+    private long now = 1525215600000L;
+    private final int[] rr = {850, 862};
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long queueAndSend() {
+        BatchUploader uploader = new BatchUploader(transport, EVENTS, BatchUploader.DEFAULT_MAX_BATCH,
+                BatchUploader.DEFAULT_MAX_DELAY_MILLIS);
+        uploader.start();
+        for (int i = 0; i < EVENTS; i++) {
+            now += 1013;
+            uploader.add(new CompactHeartbeat(now, 72, rr));
+        }
+        uploader.close(); // sends what is left
+        return uploader.getSentCount();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BatchUploaderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,98 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.TimestampFormatter;
+import herv.app.storage.EventDecoder;
+import herv.app.storage.EventEncoder;
+
+/**
+ * Heartbeats per second read back from an hour of the {@link EventEncoder} stream, against
+ * parsing the same hour of "dt, hr" csv lines. One operation is one heartbeat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDecoderBenchmark {
+
+    private static final int BEATS = 3600;
+    private static final long T0 = 1525215600000L;
+
+    private byte[] binary;
+    private byte[] csv;
+    private final TimestampFormatter formatter = TimestampFormatter.getDefault();
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventEncoder encoder = new EventEncoder(bytes, T0);
+        StringBuilder lines = new StringBuilder();
+        for (int s = 0; s < BEATS; s++) {
+            int hr = 60 + random.nextInt(40);
+            encoder.write(new CompactHeartbeat(T0 + s * 1000L, hr, new int[0]));
+            lines.append('\n');
+            formatter.formatTo(T0 + s * 1000L, lines).append(", ").append(hr);
+        }
+        encoder.close();
+        binary = bytes.toByteArray();
+        csv = lines.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BEATS)
+    public long decodeBinary() throws IOException {
+        EventDecoder decoder = new EventDecoder(new ByteArrayInputStream(binary));
+        long sum = 0;
+        while (decoder.next() == EventDecoder.HEARTBEAT) {
+            sum += decoder.heartbeat().getHeartRate();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BEATS)
+    public long parseCsv() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), "UTF-8"));
+        long sum = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() == 0) continue;
+            long ts = formatter.parse(line, 0);
+            CompactHeartbeat beat = new CompactHeartbeat(ts, Integer.parseInt(line.substring(21).trim()), new int[0]);
+            sum += beat.getHeartRate();
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EventDecoderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
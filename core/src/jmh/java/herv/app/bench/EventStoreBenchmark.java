@@ -0,0 +1,100 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.CsvEventStore;
+import herv.app.storage.EventStore;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.SegmentLog;
+
+/**
+ * Beats per second the event writer thread can persist: to the segment log, and to the csv
+ * scratch files used before it. A flush every {@link #BATCH} beats, as the writer does once
+ * per batch. Each iteration writes to a fresh folder. One operation is one beat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventStoreBenchmark {
+
+    private static final int BATCH = 64;
+
+    private File dir;
+    private EventStore log;
+    private EventStore csv;
+    private long now = 1525215600000L;
+    private final int[] rr = {850, 862};
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = File.createTempFile("herv-store", "");
+        File logDir = new File(dir, "log");
+        if (!dir.delete() || !logDir.mkdirs()) throw new IOException("Unable to create " + dir);
+        log = new LogEventStore(new SegmentLog(logDir));
+        csv = new CsvEventStore(dir);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        log.close();
+        csv.close();
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        f.delete();
+    }
+
+    private void write(EventStore store) throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            now += 1013;
+            store.append(new CompactHeartbeat(now, 72, rr));
+        }
+        store.flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void segmentLog() throws IOException {
+        write(log);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void csvFiles() throws IOException {
+        write(csv);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EventStoreBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
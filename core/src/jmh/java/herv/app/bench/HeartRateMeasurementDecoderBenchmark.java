@@ -0,0 +1,60 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import herv.app.hrm.HeartRateMeasurement;
+import herv.app.hrm.HeartRateMeasurementDecoder;
+
+/**
+ * Decoding of Heart Rate Measurement notifications, as done on the GATT callback thread for
+ * every beat. Should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartRateMeasurementDecoderBenchmark {
+
+    private final HeartRateMeasurement measurement = new HeartRateMeasurement();
+    private final int[] rr = new int[HeartRateMeasurement.MAX_RR_INTERVALS];
+
+    /** uint8 heart rate, contact detected, 2 RR intervals: the usual chest strap notification */
+    private final byte[] typical = {0x16, 72, 0x55, 0x03, 0x60, 0x03};
+
+    /** uint16 heart rate, energy expended and 4 RR intervals */
+    private final byte[] full = {0x19, (byte) 0xB4, 0x00, 0x10, 0x27,
+            0x55, 0x01, 0x50, 0x01, 0x58, 0x01, 0x5A, 0x01};
+
+    @Benchmark
+    public int typical() {
+        HeartRateMeasurementDecoder.decode(typical, measurement);
+        return measurement.copyRR(rr, 0) + measurement.getHeartRate();
+    }
+
+    @Benchmark
+    public int full() {
+        HeartRateMeasurementDecoder.decode(full, measurement);
+        return measurement.copyRR(rr, 0) + measurement.getHeartRate();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HeartRateMeasurementDecoderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
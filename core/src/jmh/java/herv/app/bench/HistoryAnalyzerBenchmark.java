@@ -0,0 +1,99 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.analytics.DayStats;
+import herv.app.analytics.HistoryAnalyzer;
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.SegmentLog;
+
+/**
+ * Time to compute the daily stats of a synthetic 90 day history (6 hours recorded a day, one
+ * beat per second, about 1.9 million beats) with 1 to 8 threads. On n cores the time should
+ * go down close to n times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryAnalyzerBenchmark {
+
+    private static final int DAYS = 90;
+    private static final int SECONDS_PER_DAY = 6 * 3600;
+    private static final long DAY0 = 1514793600000L; // 2018-01-01 08:00 UTC
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File dir;
+    private ForkJoinPool pool;
+    private HistoryAnalyzer analyzer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = File.createTempFile("herv-history", "");
+        if (!dir.delete() || !new File(dir, HistoryAnalyzer.LOG_FOLDER).mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        LogEventStore store = new LogEventStore(new SegmentLog(new File(dir, HistoryAnalyzer.LOG_FOLDER), 256 * 1024));
+        Random random = new Random(7);
+        int[] rr = new int[1];
+        for (int d = 0; d < DAYS; d++) {
+            long start = DAY0 + d * 24 * 3600 * 1000L;
+            for (int s = 0; s < SECONDS_PER_DAY; s++) {
+                rr[0] = 700 + random.nextInt(300);
+                store.append(new CompactHeartbeat(start + s * 1000L, 60 + random.nextInt(40), rr));
+            }
+        }
+        store.close();
+        pool = new ForkJoinPool(threads);
+        analyzer = new HistoryAnalyzer(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        File[] files = new File(dir, HistoryAnalyzer.LOG_FOLDER).listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        new File(dir, HistoryAnalyzer.LOG_FOLDER).delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public TreeMap<String, DayStats> analyze() throws IOException {
+        return analyzer.analyze(dir);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HistoryAnalyzerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,72 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.hrv.HrvEngine;
+import herv.app.hrv.HrvMetrics;
+
+/**
+ * RR intervals per second the {@link HrvEngine} takes, as when reprocessing recorded sessions.
+ * One operation is one RR interval.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HrvEngineBenchmark {
+
+    private static final int BATCH = 4096;
+
+    private final HrvEngine engine = new HrvEngine();
+    private final HrvMetrics metrics = new HrvMetrics();
+    private final int[] rr = new int[BATCH];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        for (int i = 0; i < BATCH; i++) rr[i] = 650 + random.nextInt(400);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int add() {
+        engine.add(rr, 0, BATCH);
+        return engine.getWindowSize();
+    }
+
+    /** Live use: every interval followed by reading the window metrics */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public double addAndRead() {
+        double sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            engine.add(rr[i]);
+            sum += engine.window(metrics).rmssd;
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HrvEngineBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
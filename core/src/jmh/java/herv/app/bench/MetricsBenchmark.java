@@ -0,0 +1,59 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import herv.app.metrics.Counter;
+import herv.app.metrics.LatencyHistogram;
+
+/**
+ * Cost of recording a stage time, paid a few times per notification on the GATT callback
+ * thread. Should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final Counter counter = new Counter();
+    private long value = 12345;
+
+    @Benchmark
+    public void recordSince() {
+        histogram.recordSince(System.nanoTime() - value);
+    }
+
+    @Benchmark
+    public void record() {
+        // spread over the buckets like real stage times
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        histogram.record((value >>> 40) & 0xFFFFF);
+    }
+
+    @Benchmark
+    public void counter() {
+        counter.inc();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MetricsBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,100 @@
+package herv.app.bench;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.storage.EventEncoder;
+import herv.app.storage.HeartbeatCodec;
+
+/**
+ * Cost of serializing one event in each of the formats the app uses: csv lines for the
+ * scratch files and uploads, json, the log record and the compact event stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private final static OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private long now = 1525215600000L;
+    private final ByteBuffer record = ByteBuffer.allocate(HeartbeatCodec.MAX_SIZE);
+    private final DailyActivity activity = new DailyActivity(Event.TP_START, "Walk", "stand", new Date(now));
+    private EventEncoder encoder;
+
+    @Setup
+    public void setup() throws IOException {
+        encoder = new EventEncoder(DISCARD, now);
+    }
+
+    private CompactHeartbeat next() {
+        now += 1013;
+        return new CompactHeartbeat(now, 72, new int[]{850, 862});
+    }
+
+    @Benchmark
+    public String heartbeatCsv() {
+        return next().toCSV();
+    }
+
+    @Benchmark
+    public String heartbeatJson() throws JSONException {
+        return next().toJson().toString();
+    }
+
+    @Benchmark
+    public String activityCsv() {
+        return activity.toCSV();
+    }
+
+    @Benchmark
+    public int heartbeatRecord() {
+        record.clear();
+        HeartbeatCodec.encode(next(), record);
+        return record.position();
+    }
+
+    @Benchmark
+    public long heartbeatEventStream() throws IOException {
+        encoder.write(next());
+        return encoder.getEventCount();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SerializationBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
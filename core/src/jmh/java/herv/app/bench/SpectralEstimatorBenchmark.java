@@ -0,0 +1,75 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.hrv.SpectralEstimator;
+import herv.app.hrv.SpectralMetrics;
+
+/**
+ * Cost of the {@link SpectralEstimator}: feeding a whole 5 min window of RR intervals (about
+ * nine FFT segments) and reading LF/HF, and a single interval as received live.
+ * Run with -prof gc to check the steady state allocation rate is zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectralEstimatorBenchmark {
+
+    private final SpectralEstimator estimator = new SpectralEstimator();
+    private final SpectralMetrics metrics = new SpectralMetrics();
+    private int[] window;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        int[] rr = new int[1000];
+        double time = 0;
+        int n = 0;
+        while (time < SpectralEstimator.DEFAULT_WINDOW_MILLIS) {
+            rr[n] = (int) (800 + 40 * Math.sin(2 * Math.PI * 0.1 * time / 1000)
+                    + 25 * Math.sin(2 * Math.PI * 0.25 * time / 1000) + random.nextInt(20));
+            time += rr[n++];
+        }
+        window = new int[n];
+        System.arraycopy(rr, 0, window, 0, n);
+    }
+
+    @Benchmark
+    public double slideWindow() {
+        estimator.add(window, 0, window.length);
+        return estimator.metrics(metrics).lfHf;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double addInterval() {
+        estimator.add(window[next]);
+        next = (next + 1) % window.length;
+        return estimator.metrics(metrics).lf;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SpectralEstimatorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
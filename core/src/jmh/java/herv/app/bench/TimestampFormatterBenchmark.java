@@ -0,0 +1,66 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.model.Event;
+import herv.app.model.TimestampFormatter;
+
+/**
+ * Compares the per beat timestamp formatting done before (a new SimpleDateFormat per call)
+ * with {@link TimestampFormatter}. Timestamps advance ~1 s per call, like HRM notifications.
+ * Run with -prof gc to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampFormatterBenchmark {
+
+    private final TimestampFormatter formatter = TimestampFormatter.getDefault();
+    private final StringBuilder sb = new StringBuilder(32);
+    private long now = System.currentTimeMillis();
+
+    private long next() {
+        now += 1013;
+        return now;
+    }
+
+    @Benchmark
+    public String newSimpleDateFormat() {
+        return new SimpleDateFormat(Event.fmtDateDB).format(new Date(next()));
+    }
+
+    @Benchmark
+    public String cachedFormat() {
+        return formatter.format(next());
+    }
+
+    @Benchmark
+    public int cachedFormatTo() {
+        sb.setLength(0);
+        return formatter.formatTo(next(), sb).length();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TimestampFormatterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
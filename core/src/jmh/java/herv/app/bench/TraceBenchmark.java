@@ -0,0 +1,58 @@
+package herv.app.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import herv.app.trace.Trace;
+
+/**
+ * Tracing one RR interval, as done for every beat: when the level is off it must cost next to
+ * nothing, when on it must not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+    private final Trace off = new Trace(Trace.DEFAULT_CAPACITY);
+    private final Trace on = new Trace(Trace.DEFAULT_CAPACITY);
+    private long rr = 850;
+
+    @Setup
+    public void setUp() {
+        off.setLevel(Trace.INFO);
+        on.setLevel(Trace.DEBUG);
+    }
+
+    @Benchmark
+    public void disabled() {
+        off.record(Trace.DEBUG, Trace.EV_RR, rr++, 0);
+    }
+
+    @Benchmark
+    public void enabled() {
+        on.record(Trace.DEBUG, Trace.EV_RR, rr++, 0);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TraceBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,306 @@
+package herv.app.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the recorded activities, to find which one covered a given time without
+ * reading the act*.csv files again.
+ *
+ * A START ends the session still open, so sessions never overlap: sorted by start they are
+ * sorted by stop too, and a plain binary search answers point lookups in O(log n) and range
+ * lookups in O(log n + k), which is all an interval tree would give here.
+ *
+ * The index is updated as activities start and stop and saved after each change to a small
+ * binary file (activity names and postures stored once), so it loads without parsing any csv.
+ * If the file is missing it is rebuilt from the activity files. A session left open by a
+ * process kill is closed with {@link #closeOpen(long)} once it is known not to be running.
+ *
+ * Thread safe.
+ */
+public class ActivityIndex {
+
+    public final static String INDEX_FILE = "activities.idx";
+    /** Stop of the session still open */
+    public final static long OPEN = Long.MAX_VALUE;
+    private final static int MAGIC = 0x41435431; // "ACT1"
+
+    private static ActivityIndex shared;
+
+    /**
+     * One session, immutable
+     */
+    public static class Entry {
+        public final long start;
+        public final long stop;
+        public final String activityName;
+        public final String posture;
+
+        Entry(long start, long stop, String activityName, String posture) {
+            this.start = start;
+            this.stop = stop;
+            this.activityName = activityName;
+            this.posture = posture;
+        }
+
+        public boolean isOpen() {
+            return stop == OPEN;
+        }
+
+        public boolean contains(long timestamp) {
+            return timestamp >= start && timestamp < stop;
+        }
+
+        @Override
+        public String toString() {
+            return activityName + " (" + posture + ") " + start + "-" + (isOpen() ? "open" : String.valueOf(stop));
+        }
+    }
+
+    private final File file;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Index saved in file; empty until loaded or rebuilt
+     */
+    public ActivityIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Index of the activities of dir shared by the process, loaded (or rebuilt) on first use
+     */
+    public static synchronized ActivityIndex getDefault(File dir) throws IOException {
+        if (shared == null) {
+            ActivityIndex index = new ActivityIndex(new File(dir, INDEX_FILE));
+            if (!index.load()) {
+                index.rebuild(ActivityLog.listFiles(dir));
+            }
+            shared = index;
+        }
+        return shared;
+    }
+
+    //region updates
+
+    public synchronized void start(long timestamp, String activityName, String posture) throws IOException {
+        addStart(timestamp, activityName, posture);
+        save();
+    }
+
+    public synchronized void stop(long timestamp) throws IOException {
+        if (addStop(timestamp)) save();
+    }
+
+    /**
+     * Ends the open session at timestamp, for a session whose STOP was lost
+     * @return false if no session was open
+     */
+    public synchronized boolean closeOpen(long timestamp) throws IOException {
+        if (!addStop(timestamp)) return false;
+        save();
+        return true;
+    }
+
+    private void addStart(long timestamp, String activityName, String posture) {
+        Entry last = last();
+        if (last != null) {
+            // timestamps only go forward, whatever the clock did
+            timestamp = Math.max(timestamp, last.start);
+            if (last.isOpen()) replaceLast(timestamp);
+            else timestamp = Math.max(timestamp, last.stop);
+        }
+        entries.add(new Entry(timestamp, OPEN, activityName, posture));
+    }
+
+    private boolean addStop(long timestamp) {
+        Entry last = last();
+        if (last == null || !last.isOpen()) return false;
+        replaceLast(timestamp);
+        return true;
+    }
+
+    private void replaceLast(long stop) {
+        Entry last = entries.get(entries.size() - 1);
+        entries.set(entries.size() - 1, new Entry(last.start, Math.max(stop, last.start),
+                last.activityName, last.posture));
+    }
+
+    private Entry last() {
+        return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+    }
+
+    /**
+     * Replaces the index with the sessions of the activity files, and saves it
+     */
+    public synchronized void rebuild(File... activityFiles) throws IOException {
+        entries.clear();
+        ActivityLog log = new ActivityLog(activityFiles);
+        try {
+            while (log.next()) {
+                if (log.isStart()) {
+                    addStart(log.getTimestamp(), log.getActivityName(), log.getPosture());
+                } else {
+                    addStop(log.getTimestamp());
+                }
+            }
+        } finally {
+            log.close();
+        }
+        save();
+    }
+
+    //endregion
+
+    //region lookups
+
+    /**
+     * @return the session covering timestamp, null if none
+     */
+    public synchronized Entry at(long timestamp) {
+        int i = lastStartingAtOrBefore(timestamp);
+        if (i < 0) return null;
+        Entry e = entries.get(i);
+        return e.contains(timestamp) ? e : null;
+    }
+
+    /**
+     * @return the sessions overlapping [from, to), in time order
+     */
+    public synchronized List<Entry> query(long from, long to) {
+        List<Entry> result = new ArrayList<Entry>();
+        // first session ending after from; stops are sorted as well
+        int lo = 0, hi = entries.size() - 1, first = entries.size();
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).stop > from) {
+                first = mid;
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        for (int i = first; i < entries.size() && entries.get(i).start < to; i++) {
+            result.add(entries.get(i));
+        }
+        return result;
+    }
+
+    private int lastStartingAtOrBefore(long timestamp) {
+        int lo = 0, hi = entries.size() - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).start <= timestamp) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the session still open, null if none
+     */
+    public synchronized Entry getOpen() {
+        Entry last = last();
+        return last != null && last.isOpen() ? last : null;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    //endregion
+
+    //region file
+
+    /**
+     * @return false if there is no index file, or it cannot be read
+     */
+    public synchronized boolean load() {
+        if (!file.exists()) return false;
+        entries.clear();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) return false;
+                String[] labels = new String[in.readInt() * 2];
+                for (int i = 0; i < labels.length; i++) {
+                    labels[i] = in.readUTF();
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long start = in.readLong();
+                    long stop = in.readLong();
+                    int label = in.readInt() * 2;
+                    entries.add(new Entry(start, stop, labels[label], labels[label + 1]));
+                }
+            } finally {
+                in.close();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        entries.clear();
+        return false;
+    }
+
+    /**
+     * Written to a temporary file and renamed, so a kill leaves either the old or the new index
+     */
+    private void save() throws IOException {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<Entry> labels = new ArrayList<Entry>();
+        int[] labelOf = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            String key = e.activityName + '\u0000' + e.posture;
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = labels.size();
+                ids.put(key, id);
+                labels.add(e);
+            }
+            labelOf[i] = id;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(labels.size());
+            for (Entry label : labels) {
+                out.writeUTF(label.activityName);
+                out.writeUTF(label.posture);
+            }
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                out.writeLong(entries.get(i).start);
+                out.writeLong(entries.get(i).stop);
+                out.writeInt(labelOf[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to save activity index " + file);
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,128 @@
+package herv.app.analytics;
+
+import java.io.File;
+import java.io.IOException;
+
+import herv.app.hrv.HrvEngine;
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.BeatCursor;
+import herv.app.storage.TimeIndex;
+
+/**
+ * Assigns heartbeats to the activity session (START to STOP) they were recorded in and
+ * reports the HRV of each session.
+ *
+ * Activities and beats are two streams ordered by time, so they are merge-joined: each step
+ * consumes whichever comes first, and a beat belongs to the session open at its timestamp.
+ * Only the open session is kept, so {@link #run} goes through months of history in a single
+ * sequential pass with constant memory. The same join can be fed live, in time order, with
+ * {@link #onStart}, {@link #onBeat} and {@link #onStop}; each session is reported at its STOP.
+ *
+ * A START while a session is open ends that session there, reported as not complete; so does
+ * {@link #finish} for a session still open at the end of the data. Beats outside any session
+ * are only counted. Intervals are taken as cleaned by the artifact filter
+ * ({@link CompactHeartbeat#getCleanRRMillis}), like the live session HRV: the corrected ones
+ * with the value the filter gave them, the rejected ones left out of the metrics.
+ *
+ * Not thread safe.
+ */
+public class ActivityJoin {
+
+    public interface Listener {
+        void onSession(ActivitySession session);
+    }
+
+    private final Listener listener;
+    private final HrvEngine engine = new HrvEngine();
+    private ActivitySession open;
+    private long lastBeat;
+    private long unassigned;
+    private int sessions;
+
+    public ActivityJoin(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Joins the activity files of dir with every beat of the index
+     */
+    public static ActivityJoin joinHistory(File dir, TimeIndex index, Listener listener) throws IOException {
+        ActivityJoin join = new ActivityJoin(listener);
+        join.run(new ActivityLog(ActivityLog.listFiles(dir)), index.query(Long.MIN_VALUE, Long.MAX_VALUE));
+        return join;
+    }
+
+    /**
+     * Joins every activity row with the beats, reporting the sessions in order
+     */
+    public void run(ActivityLog activities, BeatCursor beats) throws IOException {
+        boolean hasActivity = activities.next();
+        boolean hasBeat = beats.next();
+        while (hasActivity || hasBeat) {
+            // at the same timestamp the activity goes first, a beat at START belongs to it
+            if (hasActivity && (!hasBeat || activities.getTimestamp() <= beats.beat().getTimestamp())) {
+                if (activities.isStart()) {
+                    onStart(activities.getTimestamp(), activities.getActivityName(), activities.getPosture());
+                } else {
+                    onStop(activities.getTimestamp());
+                }
+                hasActivity = activities.next();
+            } else {
+                onBeat(beats.beat());
+                hasBeat = beats.next();
+            }
+        }
+        activities.close();
+        finish();
+    }
+
+    public void onStart(long timestamp, String activityName, String posture) {
+        if (open != null) end(timestamp, false);
+        open = new ActivitySession(timestamp, activityName, posture);
+        engine.reset();
+    }
+
+    public void onStop(long timestamp) {
+        if (open != null) end(timestamp, true);
+    }
+
+    public void onBeat(CompactHeartbeat beat) {
+        if (open == null) {
+            unassigned++;
+            return;
+        }
+        lastBeat = beat.getTimestamp();
+        open.beats++;
+        for (int i = 0; i < beat.getRRCount(); i++) {
+            int rr = beat.getCleanRRMillis(i);
+            if (rr == CompactHeartbeat.NO_RR) {
+                open.rejected++;
+            } else {
+                engine.add(rr);
+            }
+        }
+    }
+
+    /**
+     * Reports the open session, if any, as not complete
+     */
+    public void finish() {
+        if (open != null) end(Math.max(open.start, lastBeat), false);
+    }
+
+    private void end(long timestamp, boolean complete) {
+        ActivitySession session = open;
+        open = null;
+        session.stop = timestamp;
+        session.complete = complete;
+        engine.session(session.hrv);
+        sessions++;
+        listener.onSession(session);
+    }
+
+    /** Beats outside of any session */
+    public long getUnassignedBeats() { return unassigned; }
+
+    /** Sessions reported */
+    public int getSessionCount() { return sessions; }
+}
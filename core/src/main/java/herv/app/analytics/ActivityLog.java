@@ -0,0 +1,109 @@
+package herv.app.analytics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import herv.app.model.Event;
+import herv.app.model.TimestampFormatter;
+
+/**
+ * Reads the START/STOP rows of the daily activity files (act&lt;yyMMdd&gt;.csv) in time order,
+ * one line at a time and one file open at a time.
+ *
+ * Rows are "dt,type,activity,posture" as written by {@code DailyActivity.toCSV()}; blank and
+ * malformed lines are skipped.
+ */
+public class ActivityLog {
+
+    private final File[] files;
+    private final TimestampFormatter formatter;
+    private int fileIndex = -1;
+    private BufferedReader reader;
+
+    private long timestamp;
+    private boolean start;
+    private String activityName;
+    private String posture;
+
+    public ActivityLog(File... files) {
+        this(TimestampFormatter.getDefault(), files);
+    }
+
+    public ActivityLog(TimestampFormatter formatter, File... files) {
+        this.formatter = formatter;
+        this.files = files;
+    }
+
+    /**
+     * @return the activity files of dir, oldest first
+     */
+    public static File[] listFiles(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith("act") && f.getName().endsWith(".csv");
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files); // names end with yyMMdd
+        return files;
+    }
+
+    /**
+     * @return false when there are no more rows
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (reader == null) {
+                if (++fileIndex >= files.length) return false;
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(files[fileIndex]), "UTF-8"));
+            }
+            String line = reader.readLine();
+            if (line == null) {
+                close();
+                continue;
+            }
+            if (parse(line)) return true;
+        }
+    }
+
+    private boolean parse(String line) {
+        String[] fields = line.split(",", -1);
+        if (fields.length < 2) return false;
+        long ts = formatter.parse(fields[0], 0);
+        if (ts < 0) return false;
+        String type = fields[1].trim();
+        if (Event.TP_START.equals(type)) {
+            start = true;
+        } else if (Event.TP_STOP.equals(type)) {
+            start = false;
+        } else {
+            return false;
+        }
+        timestamp = ts;
+        activityName = fields.length > 2 ? fields[2].trim() : "";
+        posture = fields.length > 3 ? fields[3].trim() : "";
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    public long getTimestamp() { return timestamp; }
+
+    /** true for START, false for STOP */
+    public boolean isStart() { return start; }
+
+    public String getActivityName() { return activityName; }
+
+    public String getPosture() { return posture; }
+}
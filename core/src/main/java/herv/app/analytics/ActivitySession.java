@@ -0,0 +1,53 @@
+package herv.app.analytics;
+
+import herv.app.hrv.HrvMetrics;
+import herv.app.model.TimestampFormatter;
+
+/**
+ * HRV of the beats recorded between a START and its STOP
+ */
+public class ActivitySession {
+
+    public final String activityName;
+    public final String posture;
+    public final long start;
+    /** STOP time, or the last beat seen if the session was never stopped */
+    public long stop;
+    /** False if the session ended without its STOP (next START or end of data) */
+    public boolean complete;
+    public int beats;
+    /** Intervals left out because the artifact filter rejected them */
+    public int rejected;
+    public final HrvMetrics hrv = new HrvMetrics();
+
+    ActivitySession(long start, String activityName, String posture) {
+        this.start = start;
+        this.activityName = activityName;
+        this.posture = posture;
+    }
+
+    public long getDurationMillis() {
+        return stop - start;
+    }
+
+    /**
+     * dt start, dt stop, activity, posture, beats, rejected, mean HR, SDNN, RMSSD, pNN50
+     */
+    public String toCSV() {
+        StringBuilder sb = new StringBuilder(96);
+        TimestampFormatter formatter = TimestampFormatter.getDefault();
+        formatter.formatTo(start, sb).append(',');
+        formatter.formatTo(stop, sb).append(',');
+        sb.append(activityName).append(',').append(posture).append(',');
+        sb.append(beats).append(',').append(rejected).append(',');
+        sb.append(String.format(java.util.Locale.US, "%.1f,%.1f,%.1f,%.1f",
+                hrv.meanHeartRate, hrv.sdnn, hrv.rmssd, hrv.pnn50));
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return activityName + " (" + posture + ") " + getDurationMillis() / 1000 + " s"
+                + (complete ? "" : ", not stopped") + ": " + hrv;
+    }
+}
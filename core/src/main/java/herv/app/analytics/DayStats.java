@@ -0,0 +1,70 @@
+package herv.app.analytics;
+
+import java.util.Locale;
+
+import herv.app.hrv.HrvMetrics;
+import herv.app.hrv.HrvSums;
+
+/**
+ * Heart rate and HRV aggregates of one day of recording, mergeable with the aggregates of the
+ * data recorded after it the same day
+ */
+public class DayStats {
+
+    /** "yyMMdd", local time, as in the names of the scratch files */
+    public final String day;
+    public long beats;
+    public long heartRateCount;
+    public long heartRateSum;
+    public int minHeartRate = Integer.MAX_VALUE;
+    public int maxHeartRate = Integer.MIN_VALUE;
+    /** Intervals left out: rejected by the filter, or corrected but recorded without the value */
+    public long rejected;
+    final HrvSums rr = new HrvSums();
+
+    DayStats(String day) {
+        this.day = day;
+    }
+
+    void addHeartRate(int heartRate) {
+        heartRateCount++;
+        heartRateSum += heartRate;
+        minHeartRate = Math.min(minHeartRate, heartRate);
+        maxHeartRate = Math.max(maxHeartRate, heartRate);
+    }
+
+    /**
+     * Adds the aggregates of next, recorded after this
+     */
+    void merge(DayStats next) {
+        beats += next.beats;
+        heartRateCount += next.heartRateCount;
+        heartRateSum += next.heartRateSum;
+        minHeartRate = Math.min(minHeartRate, next.minHeartRate);
+        maxHeartRate = Math.max(maxHeartRate, next.maxHeartRate);
+        rejected += next.rejected;
+        rr.merge(next.rr);
+    }
+
+    public double getMeanHeartRate() {
+        return heartRateCount == 0 ? Double.NaN : (double) heartRateSum / heartRateCount;
+    }
+
+    /**
+     * HRV of all the accepted intervals of the day, as one session
+     */
+    public HrvMetrics getHrv(HrvMetrics out) {
+        return rr.metrics(out);
+    }
+
+    /**
+     * day, beats, mean HR, min HR, max HR, RR, rejected, SDNN, RMSSD, pNN50
+     */
+    public String toCSV() {
+        HrvMetrics hrv = getHrv(new HrvMetrics());
+        return String.format(Locale.US, "%s,%d,%.1f,%d,%d,%d,%d,%.1f,%.1f,%.1f",
+                day, beats, getMeanHeartRate(),
+                heartRateCount == 0 ? 0 : minHeartRate, heartRateCount == 0 ? 0 : maxHeartRate,
+                hrv.count, rejected, hrv.sdnn, hrv.rmssd, hrv.pnn50);
+    }
+}
@@ -0,0 +1,176 @@
+package herv.app.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+import herv.app.model.TimestampFormatter;
+import herv.app.storage.HeartbeatCodec;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.SegmentReader;
+
+/**
+ * Batch HRV per day over a copy of the HeRV folder, for research exports off the device.
+ *
+ * The segments of the log are split among the threads of a fork-join pool, which steals work
+ * from the busy ones: each leaf task reads one segment and sums its beats per day into
+ * {@link DayStats}, then partial results are merged left to right, in segment order. Every
+ * aggregate is an exact integer sum and intervals across two segments are merged in order, so
+ * the result does not depend on the number of threads nor on scheduling, and matches what the
+ * device computes: same codec, same {@link RrQuality} filtering (corrected intervals at their
+ * corrected value, see {@link CompactHeartbeat#getCleanRRMillis}) and the same formulas as
+ * {@link herv.app.hrv.HrvEngine}.
+ *
+ * Needs a JVM (or Android 5+) for the fork-join pool.
+ */
+public class HistoryAnalyzer {
+
+    public final static String LOG_FOLDER = "log";
+
+    private final ForkJoinPool pool;
+    private final TimestampFormatter formatter;
+
+    public HistoryAnalyzer(ForkJoinPool pool) {
+        this(pool, TimestampFormatter.getDefault());
+    }
+
+    /**
+     * @param formatter its time zone sets where days start
+     */
+    public HistoryAnalyzer(ForkJoinPool pool, TimestampFormatter formatter) {
+        this.pool = pool;
+        this.formatter = formatter;
+    }
+
+    /**
+     * Aggregates every beat of the log folder of heRVDir
+     * @return day key to stats, in day order
+     */
+    public TreeMap<String, DayStats> analyze(File heRVDir) throws IOException {
+        File[] segments = SegmentLog.listSegments(new File(heRVDir, LOG_FOLDER));
+        if (segments.length == 0) return new TreeMap<String, DayStats>();
+        try {
+            return pool.invoke(new SegmentTask(formatter, segments, 0, segments.length));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static class SegmentTask extends RecursiveTask<TreeMap<String, DayStats>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient TimestampFormatter formatter;
+        private final File[] segments;
+        private final int from;
+        private final int to;
+
+        SegmentTask(TimestampFormatter formatter, File[] segments, int from, int to) {
+            this.formatter = formatter;
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TreeMap<String, DayStats> compute() {
+            if (to - from == 1) {
+                try {
+                    return analyzeSegment(segments[from], formatter);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            SegmentTask left = new SegmentTask(formatter, segments, from, middle);
+            left.fork();
+            TreeMap<String, DayStats> right = new SegmentTask(formatter, segments, middle, to).compute();
+            return merge(left.join(), right);
+        }
+    }
+
+    /**
+     * Adds the days of later into earlier
+     */
+    private static TreeMap<String, DayStats> merge(TreeMap<String, DayStats> earlier, TreeMap<String, DayStats> later) {
+        for (Map.Entry<String, DayStats> e : later.entrySet()) {
+            DayStats day = earlier.get(e.getKey());
+            if (day == null) {
+                earlier.put(e.getKey(), e.getValue());
+            } else {
+                day.merge(e.getValue());
+            }
+        }
+        return earlier;
+    }
+
+    private static TreeMap<String, DayStats> analyzeSegment(File segment, TimestampFormatter formatter)
+            throws IOException {
+        TreeMap<String, DayStats> days = new TreeMap<String, DayStats>();
+        Calendar cal = new GregorianCalendar(formatter.getTimeZone());
+        long dayStart = Long.MAX_VALUE;
+        long dayEnd = Long.MIN_VALUE;
+        DayStats day = null;
+        SegmentReader reader = new SegmentReader(segment);
+        while (reader.next()) {
+            CompactHeartbeat beat = HeartbeatCodec.decode(reader.payload());
+            if (beat == null) continue;
+            long ts = beat.getTimestamp();
+            if (ts < dayStart || ts >= dayEnd) {
+                cal.setTimeInMillis(ts);
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+                cal.set(Calendar.MINUTE, 0);
+                cal.set(Calendar.SECOND, 0);
+                cal.set(Calendar.MILLISECOND, 0);
+                dayStart = cal.getTimeInMillis();
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+                dayEnd = cal.getTimeInMillis();
+                String key = formatter.formatDayKey(ts, new StringBuilder(6)).toString();
+                day = days.get(key);
+                if (day == null) {
+                    day = new DayStats(key);
+                    days.put(key, day);
+                }
+            }
+            day.beats++;
+            if (beat.hasHeartRate()) day.addHeartRate(beat.getHeartRate());
+            for (int i = 0; i < beat.getRRCount(); i++) {
+                int rr = beat.getCleanRRMillis(i);
+                if (rr == CompactHeartbeat.NO_RR) {
+                    day.rejected++;
+                } else {
+                    day.rr.add(rr);
+                }
+            }
+        }
+        return days;
+    }
+
+    /**
+     * Prints the stats of every day of a HeRV folder as csv
+     * Usage: HistoryAnalyzer &lt;HeRV folder&gt; [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: HistoryAnalyzer <HeRV folder> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.currentTimeMillis();
+        TreeMap<String, DayStats> days = new HistoryAnalyzer(pool).analyze(new File(args[0]));
+        pool.shutdown();
+        System.out.println("day,beats,mean_hr,min_hr,max_hr,rr,rejected,sdnn,rmssd,pnn50");
+        for (DayStats day : days.values()) {
+            System.out.println(day.toCSV());
+        }
+        System.err.println(days.size() + " days in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
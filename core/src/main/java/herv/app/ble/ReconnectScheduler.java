@@ -0,0 +1,213 @@
+package herv.app.ble;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import herv.app.upload.ExponentialBackoff;
+
+/**
+ * Brings the sensor connection back after it is lost, without blocking the GATT callbacks.
+ *
+ * {@link #onDisconnected()} schedules a connection attempt on the {@link Clock}'s thread; if it
+ * cannot even be initiated, or the GATT reports the connection failed, the next attempt is
+ * scheduled after an {@link ExponentialBackoff} delay. {@link #onConnected()} ends the episode
+ * and records how long the sensor was away. {@link #cancel()} drops any pending attempt and
+ * ignores disconnections until {@link #enable()} is called again, so a disconnection asked for
+ * by the user is not undone.
+ *
+ * The connection itself and the passing of time are behind {@link Connector} and {@link Clock},
+ * so the scheduler runs the same against a fake GATT layer and a virtual clock.
+ */
+public class ReconnectScheduler {
+
+    public final static long DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+    public final static long DEFAULT_MAX_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * Starts a connection to the sensor
+     */
+    public interface Connector {
+        /**
+         * @return true if the connection was initiated; its outcome is reported later through
+         * {@link #onConnected()} or {@link #onDisconnected()}
+         */
+        boolean connect();
+    }
+
+    /**
+     * Time source and task scheduling
+     */
+    public interface Clock {
+        long now();
+
+        /** @return handle for {@link #cancel(Object)} */
+        Object schedule(Runnable task, long delayMillis);
+
+        void cancel(Object handle);
+    }
+
+    private final Connector connector;
+    private final Clock clock;
+    private final ExponentialBackoff backoff;
+
+    private boolean enabled = true;
+    private boolean reconnecting;
+    private long disconnectedAt;
+    private Object pending;
+    private int generation;
+
+    private long attempts;
+    private long failedAttempts;
+    private long reconnects;
+    private long lastReconnectMillis;
+    private long maxReconnectMillis;
+    private long totalReconnectMillis;
+
+    public ReconnectScheduler(Connector connector, Clock clock) {
+        this(connector, clock, new ExponentialBackoff(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS));
+    }
+
+    public ReconnectScheduler(Connector connector, Clock clock, ExponentialBackoff backoff) {
+        this.connector = connector;
+        this.clock = clock;
+        this.backoff = backoff;
+    }
+
+    /**
+     * Called when the connection is lost or a connection attempt failed. Never blocks.
+     */
+    public synchronized void onDisconnected() {
+        if (!enabled || pending != null) return;
+        long delay;
+        if (!reconnecting) {
+            reconnecting = true;
+            disconnectedAt = clock.now();
+            backoff.reset();
+            delay = 0;
+        } else {
+            delay = backoff.nextDelay();
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Called when the connection is established
+     */
+    public synchronized void onConnected() {
+        cancelPending();
+        backoff.reset();
+        if (!reconnecting) return;
+        reconnecting = false;
+        long away = clock.now() - disconnectedAt;
+        reconnects++;
+        lastReconnectMillis = away;
+        totalReconnectMillis += away;
+        if (away > maxReconnectMillis) maxReconnectMillis = away;
+    }
+
+    /**
+     * Drops the pending attempt and stops reconnecting until {@link #enable()}
+     */
+    public synchronized void cancel() {
+        enabled = false;
+        reconnecting = false;
+        cancelPending();
+    }
+
+    public synchronized void enable() {
+        enabled = true;
+    }
+
+    /** False after {@link #cancel()}, until {@link #enable()} */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    private void schedule(long delay) {
+        final int scheduled = ++generation;
+        pending = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt(scheduled);
+            }
+        }, delay);
+    }
+
+    private void cancelPending() {
+        generation++;
+        if (pending != null) {
+            clock.cancel(pending);
+            pending = null;
+        }
+    }
+
+    private void attempt(int scheduled) {
+        synchronized (this) {
+            if (scheduled != generation || !enabled) return; // cancelled meanwhile
+            pending = null;
+            attempts++;
+        }
+        // outside the lock: the connector may get GATT callbacks right away
+        boolean initiated = connector.connect();
+        synchronized (this) {
+            if (initiated || scheduled != generation || !enabled) return;
+            failedAttempts++;
+            schedule(backoff.nextDelay());
+        }
+    }
+
+    /** Connection attempts made since creation */
+    public synchronized long getAttempts() { return attempts; }
+
+    /** Attempts that could not even be initiated */
+    public synchronized long getFailedAttempts() { return failedAttempts; }
+
+    /** Lost connections that were brought back */
+    public synchronized long getReconnects() { return reconnects; }
+
+    /** Time from the last disconnection to the connection coming back */
+    public synchronized long getLastReconnectMillis() { return lastReconnectMillis; }
+
+    public synchronized long getMaxReconnectMillis() { return maxReconnectMillis; }
+
+    public synchronized long getTotalReconnectMillis() { return totalReconnectMillis; }
+
+    public synchronized boolean isReconnecting() { return reconnecting; }
+
+    /**
+     * Runs the attempts on a single background thread
+     */
+    public static class SystemClock implements Clock {
+        private final ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "herv-reconnect");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public Object schedule(Runnable task, long delayMillis) {
+            return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void cancel(Object handle) {
+            ((ScheduledFuture<?>) handle).cancel(false);
+        }
+
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package herv.app.hrm;
+
+/**
+ * Mutable holder for one decoded Heart Rate Measurement notification.
+ * Instances are meant to be reused: {@link HeartRateMeasurementDecoder#decode(byte[], HeartRateMeasurement)}
+ * overwrites every field, so the GATT callback can keep a single holder for the whole session
+ * instead of allocating one per notification.
+ */
+public class HeartRateMeasurement {
+
+    /** With the default ATT MTU (23) a notification carries at most 9 RR intervals */
+    public final static int MAX_RR_INTERVALS = 9;
+
+    /** Value used for fields that are not present in the notification */
+    public final static int NOT_PRESENT = -1;
+
+    protected int flags;
+    protected int heartRate;
+    protected int energyExpended = NOT_PRESENT;
+    protected boolean sensorContactSupported;
+    protected boolean sensorContactDetected;
+
+    // RR intervals in 1/1024 s, as sent by the sensor
+    protected final int[] rrIntervals;
+    protected int rrCount;
+
+    public HeartRateMeasurement() {
+        this(MAX_RR_INTERVALS);
+    }
+
+    public HeartRateMeasurement(int rrCapacity) {
+        this.rrIntervals = new int[rrCapacity];
+    }
+
+    /** Resets every field, keeping the RR buffer */
+    public void clear() {
+        flags = 0;
+        heartRate = 0;
+        energyExpended = NOT_PRESENT;
+        sensorContactSupported = false;
+        sensorContactDetected = false;
+        rrCount = 0;
+    }
+
+    /**
+     * Converts an RR interval from the 1/1024 s resolution used by the sensor to milliseconds
+     */
+    public static int rrToMillis(int rr) {
+        return (int) ((rr * 1000L + 512) / 1024);
+    }
+
+    public int getFlags() { return flags; }
+
+    public int getHeartRate() { return heartRate; }
+
+    public boolean hasEnergyExpended() { return energyExpended != NOT_PRESENT; }
+
+    /** @return energy expended in kJ, or {@link #NOT_PRESENT} */
+    public int getEnergyExpended() { return energyExpended; }
+
+    public boolean isSensorContactSupported() { return sensorContactSupported; }
+
+    public boolean isSensorContactDetected() { return sensorContactDetected; }
+
+    public int getRRCount() { return rrCount; }
+
+    /** @return the i-th RR interval of this notification, in 1/1024 s */
+    public int getRR(int i) {
+        if (i < 0 || i >= rrCount) {
+            throw new IndexOutOfBoundsException("RR index " + i + ", count " + rrCount);
+        }
+        return rrIntervals[i];
+    }
+
+    /**
+     * Copies the RR intervals of this notification into dst
+     * @return number of intervals copied
+     */
+    public int copyRR(int[] dst, int dstOffset) {
+        int n = Math.min(rrCount, dst.length - dstOffset);
+        System.arraycopy(rrIntervals, 0, dst, dstOffset, n);
+        return n;
+    }
+
+    public int getRRCapacity() { return rrIntervals.length; }
+}
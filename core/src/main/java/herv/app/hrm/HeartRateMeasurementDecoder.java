@@ -0,0 +1,80 @@
+package herv.app.hrm;
+
+/**
+ * Parses the raw value of the Heart Rate Measurement characteristic (0x2A37) according to:
+ * https://www.bluetooth.com/specifications/gatt/viewer?attributeXmlFile=org.bluetooth.characteristic.heart_rate_measurement.xml
+ *
+ * Works directly over the byte[] returned by {@code BluetoothGattCharacteristic#getValue()},
+ * so it does not depend on Android and does not allocate anything per notification.
+ */
+public final class HeartRateMeasurementDecoder {
+
+    // flag bits
+    public final static int FLAG_HR_UINT16 = 0x01;
+    public final static int FLAG_SENSOR_CONTACT_DETECTED = 0x02;
+    public final static int FLAG_SENSOR_CONTACT_SUPPORTED = 0x04;
+    public final static int FLAG_ENERGY_EXPENDED = 0x08;
+    public final static int FLAG_RR_INTERVALS = 0x10;
+
+    private HeartRateMeasurementDecoder() {}
+
+    /**
+     * Decodes a notification payload into out, overwriting its previous content.
+     * RR intervals that do not fit in the holder are ignored.
+     * @return false if the payload is too short to hold the fields announced by its flags,
+     * in which case out is left cleared
+     */
+    public static boolean decode(byte[] value, HeartRateMeasurement out) {
+        return decode(value, 0, value == null ? 0 : value.length, out);
+    }
+
+    public static boolean decode(byte[] value, int offset, int length, HeartRateMeasurement out) {
+        out.clear();
+        if (value == null || length < 2) {
+            return false;
+        }
+        final int end = offset + length;
+        int pos = offset;
+
+        final int flags = value[pos++] & 0xFF;
+        out.flags = flags;
+        out.sensorContactSupported = (flags & FLAG_SENSOR_CONTACT_SUPPORTED) != 0;
+        out.sensorContactDetected = out.sensorContactSupported
+                && (flags & FLAG_SENSOR_CONTACT_DETECTED) != 0;
+
+        if ((flags & FLAG_HR_UINT16) != 0) {
+            if (pos + 2 > end) {
+                out.clear();
+                return false;
+            }
+            out.heartRate = uint16(value, pos);
+            pos += 2;
+        } else {
+            out.heartRate = value[pos++] & 0xFF;
+        }
+
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (pos + 2 > end) {
+                out.clear();
+                return false;
+            }
+            out.energyExpended = uint16(value, pos);
+            pos += 2;
+        }
+
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            final int[] rr = out.rrIntervals;
+            int count = 0;
+            while (pos + 2 <= end && count < rr.length) {
+                rr[count++] = uint16(value, pos);
+                pos += 2;
+            }
+            out.rrCount = count;
+        }
+        return true;
+    }
+
+    private static int uint16(byte[] value, int pos) {
+        return (value[pos] & 0xFF) | ((value[pos + 1] & 0xFF) << 8);
+    }
+}
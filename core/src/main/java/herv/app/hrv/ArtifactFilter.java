@@ -0,0 +1,117 @@
+package herv.app.hrv;
+
+import herv.app.model.RrQuality;
+
+/**
+ * Flags and corrects RR artifacts (missed, extra and ectopic beats) as they stream in.
+ *
+ * Each interval is compared with the median of the last accepted ones (a bounded look-back of
+ * {@link #DEFAULT_LOOK_BACK} intervals): one deviating more than the given fraction of that
+ * median (20% by default) is {@link RrQuality#CORRECTED}, its value replaced by the median.
+ * Intervals out of the physiological range are {@link RrQuality#REJECTED}. If several
+ * consecutive intervals deviate, the rhythm really changed (e.g. exercise started), so the
+ * look-back is restarted from the current interval instead of correcting forever.
+ *
+ * Constant memory and O(look-back) per interval. Not thread safe.
+ */
+public class ArtifactFilter implements RrStage {
+
+    public final static int DEFAULT_LOOK_BACK = 11;
+    public final static double DEFAULT_MAX_DEVIATION = 0.2;
+    public final static int MIN_RR_MILLIS = 250;
+    public final static int MAX_RR_MILLIS = 2500;
+    /** Intervals needed before deviations are judged */
+    private final static int MIN_REFERENCE = 3;
+    private final static int MAX_CONSECUTIVE = 5;
+
+    private final double maxDeviation;
+    private final int[] lookBack;
+    private final int[] sorted;
+    private int head;
+    private int size;
+    private int consecutive;
+
+    private long processed;
+    private long corrected;
+    private long rejected;
+
+    public ArtifactFilter() {
+        this(DEFAULT_LOOK_BACK, DEFAULT_MAX_DEVIATION);
+    }
+
+    public ArtifactFilter(int lookBack, double maxDeviation) {
+        if (lookBack < MIN_REFERENCE || maxDeviation <= 0) {
+            throw new IllegalArgumentException("Invalid filter " + lookBack + ", " + maxDeviation);
+        }
+        this.lookBack = new int[lookBack];
+        this.sorted = new int[lookBack];
+        this.maxDeviation = maxDeviation;
+    }
+
+    @Override
+    public void process(int[] rr, byte[] quality, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            processed++;
+            int value = rr[i];
+            if (value < MIN_RR_MILLIS || value > MAX_RR_MILLIS) {
+                quality[i] = RrQuality.REJECTED;
+                rejected++;
+                continue;
+            }
+            if (size >= MIN_REFERENCE) {
+                int median = median();
+                if (Math.abs(value - median) > maxDeviation * median) {
+                    if (++consecutive <= MAX_CONSECUTIVE) {
+                        rr[i] = median;
+                        quality[i] = RrQuality.CORRECTED;
+                        corrected++;
+                        continue;
+                    }
+                    size = 0; // new rhythm, judge the next ones against it
+                }
+            }
+            consecutive = 0;
+            accept(value);
+            quality[i] = RrQuality.OK;
+        }
+    }
+
+    private void accept(int value) {
+        if (size < lookBack.length) {
+            lookBack[(head + size) % lookBack.length] = value;
+            size++;
+        } else {
+            lookBack[head] = value;
+            head = (head + 1) % lookBack.length;
+        }
+    }
+
+    /**
+     * Insertion sort of the (few) accepted intervals
+     */
+    private int median() {
+        for (int i = 0; i < size; i++) {
+            int v = lookBack[(head + i) % lookBack.length];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > v) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = v;
+        }
+        return sorted[size / 2];
+    }
+
+    @Override
+    public void reset() {
+        head = 0;
+        size = 0;
+        consecutive = 0;
+    }
+
+    public long getProcessedCount() { return processed; }
+
+    public long getCorrectedCount() { return corrected; }
+
+    public long getRejectedCount() { return rejected; }
+}
@@ -0,0 +1,137 @@
+package herv.app.hrv;
+
+/**
+ * Streaming time domain HRV: RMSSD, SDNN, pNN50 and mean HR over a sliding time window (5 min
+ * by default, the usual short term recording) and over the whole session.
+ *
+ * Both keep exact integer running sums of the intervals, their squares, the squared successive
+ * differences and the NN50 count, so every {@link #add(int)} is O(1) and nothing drifts however
+ * long the session. The window keeps its intervals in a fixed primitive ring buffer; when an
+ * interval leaves the window its terms are subtracted from the sums (each one once, so
+ * amortized O(1) too). Nothing is allocated after construction.
+ *
+ * Not thread safe: feed it from a single thread.
+ */
+public class HrvEngine {
+
+    public final static long DEFAULT_WINDOW_MILLIS = 5 * 60 * 1000;
+    /** Successive differences above this count for pNN50 */
+    public final static int NN50_MILLIS = 50;
+    /** Shortest RR that can fill the window, 240 bpm */
+    private final static int MIN_RR_MILLIS = 250;
+
+    private final long windowMillis;
+    private final int[] ring;
+    private final int mask;
+    private int head;
+    private int size;
+
+    private long windowSum;
+    private long windowSumSquares;
+    private long windowDiffSquares;
+    private long windowNN50;
+
+    private int sessionCount;
+    private int sessionLast;
+    private long sessionSum;
+    private long sessionSumSquares;
+    private long sessionDiffSquares;
+    private long sessionNN50;
+
+    public HrvEngine() {
+        this(DEFAULT_WINDOW_MILLIS);
+    }
+
+    public HrvEngine(long windowMillis) {
+        if (windowMillis <= 0) throw new IllegalArgumentException("Invalid window " + windowMillis);
+        this.windowMillis = windowMillis;
+        int capacity = Integer.highestOneBit((int) Math.min(1 << 20, windowMillis / MIN_RR_MILLIS + 1) * 2);
+        this.ring = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds the next RR interval
+     * @return false if the interval is not valid (not positive) and was ignored
+     */
+    public boolean add(int rr) {
+        if (rr <= 0) return false;
+        long square = (long) rr * rr;
+
+        if (sessionCount > 0) {
+            int diff = rr - sessionLast;
+            sessionDiffSquares += (long) diff * diff;
+            if (diff > NN50_MILLIS || diff < -NN50_MILLIS) sessionNN50++;
+        }
+        sessionCount++;
+        sessionLast = rr;
+        sessionSum += rr;
+        sessionSumSquares += square;
+
+        if (size > 0) {
+            int diff = rr - ring[(head + size - 1) & mask];
+            windowDiffSquares += (long) diff * diff;
+            if (diff > NN50_MILLIS || diff < -NN50_MILLIS) windowNN50++;
+        }
+        if (size == ring.length) evict();
+        ring[(head + size) & mask] = rr;
+        size++;
+        windowSum += rr;
+        windowSumSquares += square;
+        while (windowSum > windowMillis && size > 1) evict();
+        return true;
+    }
+
+    /**
+     * Adds count intervals from rr, e.g. the ones of one heart rate notification
+     */
+    public void add(int[] rr, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) add(rr[i]);
+    }
+
+    private void evict() {
+        int oldest = ring[head];
+        if (size > 1) {
+            int diff = ring[(head + 1) & mask] - oldest;
+            windowDiffSquares -= (long) diff * diff;
+            if (diff > NN50_MILLIS || diff < -NN50_MILLIS) windowNN50--;
+        }
+        windowSum -= oldest;
+        windowSumSquares -= (long) oldest * oldest;
+        head = (head + 1) & mask;
+        size--;
+    }
+
+    /**
+     * Metrics of the intervals in the sliding window
+     */
+    public HrvMetrics window(HrvMetrics out) {
+        out.set(size, windowSum, windowSumSquares, windowDiffSquares, windowNN50);
+        return out;
+    }
+
+    /**
+     * Metrics of every interval since creation or the last {@link #reset()}
+     */
+    public HrvMetrics session(HrvMetrics out) {
+        out.set(sessionCount, sessionSum, sessionSumSquares, sessionDiffSquares, sessionNN50);
+        return out;
+    }
+
+    /**
+     * Starts a new session, with an empty window
+     */
+    public void reset() {
+        head = 0;
+        size = 0;
+        windowSum = windowSumSquares = windowDiffSquares = windowNN50 = 0;
+        sessionCount = 0;
+        sessionLast = 0;
+        sessionSum = sessionSumSquares = sessionDiffSquares = sessionNN50 = 0;
+    }
+
+    public long getWindowMillis() { return windowMillis; }
+
+    /** Intervals currently in the window */
+    public int getWindowSize() { return size; }
+}
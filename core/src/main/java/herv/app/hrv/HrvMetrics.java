@@ -0,0 +1,67 @@
+package herv.app.hrv;
+
+/**
+ * Time domain HRV metrics over a set of RR intervals. Mutable so it can be reused to read
+ * results without allocating; metrics that need more intervals than available are NaN.
+ */
+public class HrvMetrics {
+
+    /** RR intervals used */
+    public int count;
+    /** Sum of the RR intervals used, in ms */
+    public long durationMillis;
+    public double meanRR;
+    /** Standard deviation of the RR intervals, in ms */
+    public double sdnn;
+    /** Root mean square of successive differences, in ms */
+    public double rmssd;
+    /** Percentage of successive differences above 50 ms */
+    public double pnn50;
+    /** Beats per minute from the mean RR */
+    public double meanHeartRate;
+
+    void clear() {
+        count = 0;
+        durationMillis = 0;
+        meanRR = Double.NaN;
+        sdnn = Double.NaN;
+        rmssd = Double.NaN;
+        pnn50 = Double.NaN;
+        meanHeartRate = Double.NaN;
+    }
+
+    /**
+     * Computes the metrics from the running sums of n intervals and their n - 1 successive
+     * differences
+     */
+    void set(int n, long sum, long sumSquares, long sumDiffSquares, long nn50) {
+        clear();
+        count = n;
+        durationMillis = sum;
+        if (n == 0) return;
+        meanRR = (double) sum / n;
+        meanHeartRate = 60000.0 / meanRR;
+        if (n < 2) return;
+        double variance = (sumSquares - (double) sum * sum / n) / (n - 1);
+        sdnn = Math.sqrt(Math.max(0, variance));
+        rmssd = Math.sqrt((double) sumDiffSquares / (n - 1));
+        pnn50 = 100.0 * nn50 / (n - 1);
+    }
+
+    public void copyFrom(HrvMetrics other) {
+        count = other.count;
+        durationMillis = other.durationMillis;
+        meanRR = other.meanRR;
+        sdnn = other.sdnn;
+        rmssd = other.rmssd;
+        pnn50 = other.pnn50;
+        meanHeartRate = other.meanHeartRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(java.util.Locale.US,
+                "%d RR, mean HR %.1f bpm, SDNN %.1f ms, RMSSD %.1f ms, pNN50 %.1f%%",
+                count, meanHeartRate, sdnn, rmssd, pnn50);
+    }
+}
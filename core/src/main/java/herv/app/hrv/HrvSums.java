@@ -0,0 +1,64 @@
+package herv.app.hrv;
+
+/**
+ * Running sums behind the time domain metrics of a series of RR intervals, that can be merged
+ * with the sums of the series that follows it. Lets a long history be split in chunks, summed
+ * in parallel and combined into exactly the numbers {@link HrvEngine#session} would give for
+ * the whole series: the successive difference across two chunks is added when merging.
+ */
+public class HrvSums {
+
+    private int count;
+    private int first;
+    private int last;
+    private long sum;
+    private long sumSquares;
+    private long diffSquares;
+    private long nn50;
+
+    /**
+     * Adds the next RR interval, in ms; not positive intervals are ignored as in HrvEngine
+     */
+    public void add(int rr) {
+        if (rr <= 0) return;
+        if (count == 0) {
+            first = rr;
+        } else {
+            addDifference(rr - last);
+        }
+        count++;
+        last = rr;
+        sum += rr;
+        sumSquares += (long) rr * rr;
+    }
+
+    /**
+     * Appends the intervals summed in next, which come right after the ones of this
+     */
+    public void merge(HrvSums next) {
+        if (next.count == 0) return;
+        if (count == 0) {
+            first = next.first;
+        } else {
+            addDifference(next.first - last);
+        }
+        count += next.count;
+        last = next.last;
+        sum += next.sum;
+        sumSquares += next.sumSquares;
+        diffSquares += next.diffSquares;
+        nn50 += next.nn50;
+    }
+
+    private void addDifference(int diff) {
+        diffSquares += (long) diff * diff;
+        if (diff > HrvEngine.NN50_MILLIS || diff < -HrvEngine.NN50_MILLIS) nn50++;
+    }
+
+    public HrvMetrics metrics(HrvMetrics out) {
+        out.set(count, sum, sumSquares, diffSquares, nn50);
+        return out;
+    }
+
+    public int getCount() { return count; }
+}
@@ -0,0 +1,16 @@
+package herv.app.hrv;
+
+/**
+ * Processing stage of the RR stream between decoding and persistence/analytics
+ */
+public interface RrStage {
+
+    /**
+     * Processes count intervals in place, in ms, setting the {@link herv.app.model.RrQuality}
+     * of each one in quality
+     */
+    void process(int[] rr, byte[] quality, int offset, int count);
+
+    /** Forgets the stream seen so far */
+    void reset();
+}
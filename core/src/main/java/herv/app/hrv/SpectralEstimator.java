@@ -0,0 +1,242 @@
+package herv.app.hrv;
+
+/**
+ * LF and HF power of the RR series over a sliding window (5 min by default), with Welch's method.
+ *
+ * The unevenly sampled tachogram (each RR interval placed at the time its beat ends) is
+ * linearly interpolated to a 4 Hz grid as intervals arrive, each grid sample being computed
+ * once. Linear interpolation slightly attenuates the upper HF band (about 20% of the power at
+ * 0.25 Hz with 75 bpm), which is fine for following LF/HF along a session. Every
+ * {@link #SEGMENT_STEP} new samples, the last {@link #SEGMENT_SIZE} (64 s, so 50% overlap) are
+ * linearly detrended, Hann windowed and transformed with a radix-2 FFT, and the band powers of
+ * that segment are kept in a small ring. Since Welch's estimate averages the segment
+ * periodograms, the band powers of the window are the mean of those of its segments: sliding
+ * the window only costs one FFT per new segment (every 32 s), never a recomputation from
+ * scratch.
+ *
+ * All buffers and FFT tables are allocated by the constructor; adding intervals and reading
+ * the metrics allocate nothing. Not thread safe: feed it from a single thread.
+ */
+public class SpectralEstimator {
+
+    public final static double SAMPLE_RATE = 4.0;
+    public final static int SEGMENT_SIZE = 256;
+    public final static int SEGMENT_STEP = SEGMENT_SIZE / 2;
+    public final static long DEFAULT_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    public final static double VLF_LOW = 0.0033;
+    public final static double LF_LOW = 0.04;
+    public final static double LF_HIGH = 0.15;
+    public final static double HF_HIGH = 0.4;
+
+    private final static double SAMPLE_MILLIS = 1000.0 / SAMPLE_RATE;
+
+    // resampling
+    private boolean started;
+    private double lastTime;
+    private double lastValue;
+    private double nextSampleTime;
+    private final double[] samples = new double[SEGMENT_SIZE];
+    private long sampleCount;
+
+    // fft work buffers and tables
+    private final double[] re = new double[SEGMENT_SIZE];
+    private final double[] im = new double[SEGMENT_SIZE];
+    private final double[] hann = new double[SEGMENT_SIZE];
+    private final double[] cos = new double[SEGMENT_SIZE / 2];
+    private final double[] sin = new double[SEGMENT_SIZE / 2];
+    private final int[] reversed = new int[SEGMENT_SIZE];
+    private final double psdScale;
+    private final int vlfLowBin, lfLowBin, lfHighBin, hfHighBin;
+
+    // band powers of the segments in the window
+    private final double[] segmentLF;
+    private final double[] segmentHF;
+    private final double[] segmentTotal;
+    private int segmentHead;
+    private int segments;
+
+    public SpectralEstimator() {
+        this(DEFAULT_WINDOW_MILLIS);
+    }
+
+    public SpectralEstimator(long windowMillis) {
+        int windowSamples = (int) (windowMillis / SAMPLE_MILLIS);
+        if (windowSamples < SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Window shorter than a segment: " + windowMillis);
+        }
+        int capacity = (windowSamples - SEGMENT_SIZE) / SEGMENT_STEP + 1;
+        segmentLF = new double[capacity];
+        segmentHF = new double[capacity];
+        segmentTotal = new double[capacity];
+
+        double windowPower = 0;
+        for (int i = 0; i < SEGMENT_SIZE; i++) {
+            hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (SEGMENT_SIZE - 1));
+            windowPower += hann[i] * hann[i];
+        }
+        for (int i = 0; i < SEGMENT_SIZE / 2; i++) {
+            cos[i] = Math.cos(-2 * Math.PI * i / SEGMENT_SIZE);
+            sin[i] = Math.sin(-2 * Math.PI * i / SEGMENT_SIZE);
+        }
+        int bits = Integer.numberOfTrailingZeros(SEGMENT_SIZE);
+        for (int i = 0; i < SEGMENT_SIZE; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        // one sided density times the bin width, so summing bins gives the band power
+        double binWidth = SAMPLE_RATE / SEGMENT_SIZE;
+        psdScale = 2.0 / (SAMPLE_RATE * windowPower) * binWidth;
+        vlfLowBin = firstBinFrom(VLF_LOW, binWidth);
+        lfLowBin = firstBinFrom(LF_LOW, binWidth);
+        lfHighBin = firstBinFrom(LF_HIGH, binWidth);
+        hfHighBin = firstBinFrom(HF_HIGH, binWidth);
+    }
+
+    private static int firstBinFrom(double frequency, double binWidth) {
+        return Math.max(1, (int) Math.ceil(frequency / binWidth));
+    }
+
+    /**
+     * Adds the next RR interval, in ms; ignored if not positive
+     */
+    public void add(int rr) {
+        if (rr <= 0) return;
+        if (!started) {
+            started = true;
+            lastTime = 0;
+            lastValue = rr;
+            nextSampleTime = 0;
+            return;
+        }
+        double time = lastTime + rr;
+        double slope = (rr - lastValue) / (time - lastTime);
+        while (nextSampleTime <= time) {
+            addSample(lastValue + slope * (nextSampleTime - lastTime));
+            nextSampleTime += SAMPLE_MILLIS;
+        }
+        lastTime = time;
+        lastValue = rr;
+    }
+
+    public void add(int[] rr, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) add(rr[i]);
+    }
+
+    private void addSample(double value) {
+        samples[(int) (sampleCount & (SEGMENT_SIZE - 1))] = value;
+        sampleCount++;
+        if (sampleCount >= SEGMENT_SIZE && (sampleCount - SEGMENT_SIZE) % SEGMENT_STEP == 0) {
+            addSegment();
+        }
+    }
+
+    /**
+     * Periodogram of the last {@link #SEGMENT_SIZE} samples, replacing the oldest segment
+     */
+    private void addSegment() {
+        int n = SEGMENT_SIZE;
+        int first = (int) (sampleCount & (n - 1)); // oldest sample of the segment
+        // least squares line through the segment
+        double sumY = 0, sumXY = 0;
+        for (int i = 0; i < n; i++) {
+            double y = samples[(first + i) & (n - 1)];
+            sumY += y;
+            sumXY += i * y;
+        }
+        double sumX = n * (n - 1) / 2.0;
+        double sumXX = (n - 1) * n * (2.0 * n - 1) / 6.0;
+        double slope = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+        double intercept = (sumY - slope * sumX) / n;
+        for (int i = 0; i < n; i++) {
+            double y = samples[(first + i) & (n - 1)] - intercept - slope * i;
+            int j = reversed[i];
+            re[j] = y * hann[i];
+            im[j] = 0;
+        }
+        fft();
+
+        double lf = 0, hf = 0, total = 0;
+        for (int k = vlfLowBin; k < hfHighBin; k++) {
+            double power = (re[k] * re[k] + im[k] * im[k]) * psdScale;
+            total += power;
+            if (k >= lfHighBin) {
+                hf += power;
+            } else if (k >= lfLowBin) {
+                lf += power;
+            }
+        }
+
+        int slot;
+        if (segments == segmentLF.length) {
+            slot = segmentHead; // replaces the oldest
+            segmentHead = (segmentHead + 1) % segmentLF.length;
+        } else {
+            slot = (segmentHead + segments) % segmentLF.length;
+            segments++;
+        }
+        segmentLF[slot] = lf;
+        segmentHF[slot] = hf;
+        segmentTotal[slot] = total;
+    }
+
+    /**
+     * In place iterative radix-2 FFT of re/im, whose input is already in bit reversed order
+     */
+    private void fft() {
+        int n = SEGMENT_SIZE;
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Welch estimate over the segments in the window
+     */
+    public SpectralMetrics metrics(SpectralMetrics out) {
+        out.segments = segments;
+        if (segments == 0) {
+            out.lf = out.hf = out.lfHf = out.totalPower = Double.NaN;
+            return out;
+        }
+        // a handful of segments, summed on read so no rounding accumulates
+        out.lf = sum(segmentLF) / segments;
+        out.hf = sum(segmentHF) / segments;
+        out.totalPower = sum(segmentTotal) / segments;
+        out.lfHf = out.hf > 0 ? out.lf / out.hf : Double.NaN;
+        return out;
+    }
+
+    private double sum(double[] values) {
+        double sum = 0;
+        for (int i = 0; i < segments; i++) sum += values[i];
+        return sum;
+    }
+
+    /**
+     * Forgets the series, e.g. when a new session starts
+     */
+    public void reset() {
+        started = false;
+        sampleCount = 0;
+        segmentHead = 0;
+        segments = 0;
+    }
+
+    /** Welch segments currently in the window */
+    public int getSegments() { return segments; }
+}
@@ -0,0 +1,32 @@
+package herv.app.hrv;
+
+/**
+ * Frequency domain HRV metrics, band powers in ms^2. Mutable so it can be reused; NaN until
+ * enough of the RR series was seen.
+ */
+public class SpectralMetrics {
+
+    /** Power between 0.04 and 0.15 Hz */
+    public double lf = Double.NaN;
+    /** Power between 0.15 and 0.4 Hz */
+    public double hf = Double.NaN;
+    public double lfHf = Double.NaN;
+    /** Power between 0.0033 and 0.4 Hz */
+    public double totalPower = Double.NaN;
+    /** Welch segments averaged */
+    public int segments;
+
+    public void copyFrom(SpectralMetrics other) {
+        lf = other.lf;
+        hf = other.hf;
+        lfHf = other.lfHf;
+        totalPower = other.totalPower;
+        segments = other.segments;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(java.util.Locale.US, "LF %.0f ms^2, HF %.0f ms^2, LF/HF %.2f (%d segments)",
+                lf, hf, lfHf, segments);
+    }
+}
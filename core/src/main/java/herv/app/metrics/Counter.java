@@ -0,0 +1,21 @@
+package herv.app.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic count of something that happened, safe to increment from any thread
+ */
+public class Counter {
+
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void add(long n) {
+        value.addAndGet(n);
+    }
+
+    public long get() { return value.get(); }
+}
@@ -0,0 +1,9 @@
+package herv.app.metrics;
+
+/**
+ * Value read when the metrics are dumped, such as the depth of a queue. Must be cheap and
+ * callable from any thread.
+ */
+public interface Gauge {
+    long get();
+}
@@ -0,0 +1,110 @@
+package herv.app.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in ns with log-linear buckets, as in HdrHistogram: every power of two
+ * is split in {@link #SUB_BUCKETS} linear buckets, so any recorded value is known within 1/32
+ * (about 3%) from 1 ns to {@link #MAX_VALUE} in under 1200 counters.
+ *
+ * Recording is a few atomic increments and never allocates; any number of threads may record
+ * while another takes a {@link Snapshot}.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 5;
+    public final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Longest duration told apart, about 36 minutes; longer ones are counted as this */
+    public final static long MAX_VALUE = (1L << 41) - 1;
+
+    final static int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts of a histogram at one point in time
+     */
+    public static class Snapshot {
+        final long[] counts = new long[BUCKETS];
+        long count;
+        long sum;
+        long max;
+
+        public long getCount() { return count; }
+
+        public long getMax() { return max; }
+
+        public long getMean() { return count == 0 ? 0 : sum / count; }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return highest value of the bucket holding the quantile, at most the max recorded
+         */
+        public long getValueAt(double quantile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestValue(i), max);
+            }
+            return max;
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        if (nanos > MAX_VALUE) nanos = MAX_VALUE;
+        counts.incrementAndGet(index(nanos));
+        sum.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            // retry, another thread recorded a new max
+        }
+    }
+
+    /**
+     * Records the time elapsed since start, a {@link System#nanoTime()} value
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Copies the counts into snapshot
+     * @param reset to start counting again from zero, for per interval percentiles
+     * @return snapshot
+     */
+    public Snapshot snapshot(Snapshot snapshot, boolean reset) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            snapshot.counts[i] = c;
+            count += c;
+        }
+        snapshot.count = count;
+        snapshot.sum = reset ? sum.getAndSet(0) : sum.get();
+        snapshot.max = reset ? max.getAndSet(0) : max.get();
+        return snapshot;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        // the top bit is implied by the exponent, keep the next SUB_BUCKET_BITS
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,105 @@
+package herv.app.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends the registry to a local csv file every interval, from its own thread.
+ *
+ * The file is rolled over to "&lt;name&gt;.1" when it reaches {@link #MAX_FILE_BYTES}, so at
+ * most twice that is kept whatever the length of the recording.
+ */
+public class MetricsDumper implements Runnable {
+
+    public final static long DEFAULT_INTERVAL_MILLIS = 60 * 1000;
+    public final static long MAX_FILE_BYTES = 256 * 1024;
+
+    private final MetricsRegistry registry;
+    private final File file;
+    private final long intervalNanos;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public MetricsDumper(MetricsRegistry registry, File file) {
+        this(registry, file, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public MetricsDumper(MetricsRegistry registry, File file, long intervalMillis) {
+        this.registry = registry;
+        this.file = file;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "herv-metrics");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread after a last dump
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime() + intervalNanos;
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            next += intervalNanos;
+            dump();
+        }
+        dump();
+    }
+
+    /**
+     * Appends the metrics to the file now, from the calling thread
+     */
+    public synchronized void dump() {
+        try {
+            if (file.length() >= MAX_FILE_BYTES) {
+                File old = new File(file.getPath() + ".1");
+                if (old.exists() && !old.delete()) throw new IOException("Cannot delete " + old);
+                if (!file.renameTo(old)) throw new IOException("Cannot roll over " + file);
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "US-ASCII"));
+            try {
+                registry.dump(System.currentTimeMillis(), out, true);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public File getFile() { return file; }
+}
@@ -0,0 +1,95 @@
+package herv.app.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import herv.app.model.TimestampFormatter;
+
+/**
+ * Named counters, gauges and latency histograms of the pipeline.
+ *
+ * Components look their metrics up once, when they are built, and keep them in fields: the
+ * recording path never touches the registry. Looking up an existing name returns the same
+ * metric, so a component built again (a new writer after the service restarts) keeps
+ * counting in it; a gauge registered again replaces the previous one.
+ *
+ * Stage names are "&lt;stage&gt;.&lt;what&gt;", e.g. "ble.decode" or "store.flush"; histograms
+ * record ns and are dumped in us.
+ */
+public class MetricsRegistry {
+
+    private final static MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, Counter> counters = new TreeMap<String, Counter>();
+    private final Map<String, Gauge> gauges = new TreeMap<String, Gauge>();
+    private final Map<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+    // reused by dump, under the registry lock
+    private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+    private final StringBuilder line = new StringBuilder(128);
+
+    /**
+     * Registry shared by the whole process
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Writes every metric as a csv line:
+     * "dt,counter,name,value", "dt,gauge,name,value" or
+     * "dt,histogram,name,count,mean,p50,p90,p99,max" with the durations in us
+     * @param reset to start the histograms from zero, so each dump has the percentiles of
+     *              its own interval; counters always keep growing
+     */
+    public synchronized void dump(long now, Appendable out, boolean reset) throws IOException {
+        line.setLength(0);
+        TimestampFormatter.getDefault().formatTo(now, line);
+        int prefix = line.length();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            line.setLength(prefix);
+            line.append(",counter,").append(e.getKey()).append(',').append(e.getValue().get()).append('\n');
+            out.append(line);
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            line.setLength(prefix);
+            line.append(",gauge,").append(e.getKey()).append(',').append(e.getValue().get()).append('\n');
+            out.append(line);
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            e.getValue().snapshot(snapshot, reset);
+            line.setLength(prefix);
+            line.append(",histogram,").append(e.getKey())
+                    .append(',').append(snapshot.getCount())
+                    .append(',').append(snapshot.getMean() / 1000)
+                    .append(',').append(snapshot.getValueAt(0.50) / 1000)
+                    .append(',').append(snapshot.getValueAt(0.90) / 1000)
+                    .append(',').append(snapshot.getValueAt(0.99) / 1000)
+                    .append(',').append(snapshot.getMax() / 1000)
+                    .append('\n');
+            out.append(line);
+        }
+    }
+}
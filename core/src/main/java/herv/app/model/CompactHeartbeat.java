@@ -0,0 +1,272 @@
+package herv.app.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import herv.app.hrm.HeartRateMeasurement;
+
+/**
+ * Heartbeat event backed by primitives: RR intervals in an int[], heart rate as an int and the
+ * timestamp as epoch millis. Serializes exactly like {@link Heartbeat} but takes a fraction of
+ * its heap (no Date, no List, no boxed Integers), which matters for multi-hour recordings.
+ * Instances are immutable.
+ *
+ * Intervals are kept as received (1/1024 s). Once through the artifact filter they also carry
+ * their {@link RrQuality} and, for the corrected ones, the value in ms the filter replaced them
+ * with, so every consumer reads the same cleaned series with {@link #getCleanRRMillis(int)}.
+ */
+public class CompactHeartbeat implements Event {
+
+    /** Value of the heart rate when the measurement did not carry one */
+    public final static int NO_HEART_RATE = -1;
+    /** Clean value of an interval left out of analytics */
+    public final static int NO_RR = -1;
+
+    private final static int[] NO_INTERVALS = new int[0];
+
+    protected final String user;
+    protected final long timestamp;
+    protected final int heartrate;
+    protected final int[] intervals; // more than one beat can be registered in the same second
+    protected final byte[] quality;  // RrQuality of each interval, null if not filtered
+    protected final int[] corrected; // ms used for each CORRECTED interval, NO_RR for others; null if none
+
+    public CompactHeartbeat(long timestamp, int heartrate, int[] intervals) {
+        this(null, timestamp, heartrate, intervals);
+    }
+
+    public CompactHeartbeat(String user, long timestamp, int heartrate, int[] intervals) {
+        this(user, timestamp, heartrate, intervals, null);
+    }
+
+    public CompactHeartbeat(String user, long timestamp, int heartrate, int[] intervals, byte[] quality) {
+        this(user, timestamp, heartrate, intervals, quality, null);
+    }
+
+    /**
+     * @param corrected for each {@link RrQuality#CORRECTED} interval, the value in ms analytics
+     * use instead; null if there is none
+     */
+    public CompactHeartbeat(String user, long timestamp, int heartrate, int[] intervals, byte[] quality,
+                            int[] corrected) {
+        this.user = user;
+        this.timestamp = timestamp;
+        this.heartrate = heartrate;
+        this.intervals = (intervals == null || intervals.length == 0) ? NO_INTERVALS : intervals;
+        if (quality != null && quality.length != this.intervals.length) {
+            throw new IllegalArgumentException("One quality flag per interval expected");
+        }
+        this.quality = this.intervals.length == 0 ? null : quality;
+        if (corrected != null && (this.quality == null || corrected.length != this.intervals.length)) {
+            throw new IllegalArgumentException("One corrected value per flagged interval expected");
+        }
+        this.corrected = corrected;
+    }
+
+    /**
+     * Builds a heartbeat copying the first count intervals of rr, so rr can be a reused buffer
+     */
+    public static CompactHeartbeat copyOf(long timestamp, int heartrate, int[] rr, int count) {
+        return copyOf(timestamp, heartrate, rr, null, count);
+    }
+
+    /**
+     * Same as {@link #copyOf(long, int, int[], int)}, with the {@link RrQuality} of each interval
+     */
+    public static CompactHeartbeat copyOf(long timestamp, int heartrate, int[] rr, byte[] quality, int count) {
+        return copyOf(timestamp, heartrate, rr, quality, null, count);
+    }
+
+    /**
+     * Same as {@link #copyOf(long, int, int[], byte[], int)}, keeping the value in ms of the
+     * corrected intervals from the filtered ones
+     * @param rrMillis intervals in ms as cleaned by the artifact filter, may be null
+     */
+    public static CompactHeartbeat copyOf(long timestamp, int heartrate, int[] rr, byte[] quality,
+                                          int[] rrMillis, int count) {
+        int[] intervals = count == 0 ? NO_INTERVALS : Arrays.copyOf(rr, count);
+        byte[] flags = count == 0 || quality == null ? null : Arrays.copyOf(quality, count);
+        int[] corrected = null;
+        if (flags != null && rrMillis != null) {
+            for (int i = 0; i < count; i++) {
+                if (flags[i] != RrQuality.CORRECTED) continue;
+                if (corrected == null) {
+                    corrected = new int[count];
+                    Arrays.fill(corrected, NO_RR);
+                }
+                corrected[i] = rrMillis[i];
+            }
+        }
+        return new CompactHeartbeat(null, timestamp, heartrate, intervals, flags, corrected);
+    }
+
+    /**
+     * Converts a boxed {@link Heartbeat} to its compact form
+     */
+    public static CompactHeartbeat of(Heartbeat beat) {
+        int[] intervals = NO_INTERVALS;
+        if (beat.getIntervals() != null) {
+            intervals = new int[beat.getIntervals().size()];
+            for (int i = 0; i < intervals.length; i++) {
+                intervals[i] = beat.getIntervals().get(i);
+            }
+        }
+        int hr = beat.getHeartRate() == null ? NO_HEART_RATE : beat.getHeartRate();
+        return new CompactHeartbeat(beat.getUser(), beat.getDt().getTime(), hr, intervals);
+    }
+
+    /**
+     * Converts the event to the json format with beats from each second condensed
+     * @return JSON = { "dt": dt, "user": userID, "intervals": [RR1, .. RRN], "quality": [Q1, .. QN] }
+     * (quality only if the intervals went through the artifact filter)
+     */
+    public JSONObject toJson() throws JSONException {
+
+        JSONArray rr = new JSONArray();
+        for (int interval : this.intervals) {
+            rr.put(interval);
+        }
+
+        JSONObject event = new JSONObject();
+        if (this.user != null) {
+            event.put("user", this.user);
+        }
+        JSONObject heartbeat = new JSONObject();
+        heartbeat.put("dt", TimestampFormatter.getDefault().format(timestamp));
+        heartbeat.put("intervals", rr);
+        if (quality != null) {
+            JSONArray flags = new JSONArray();
+            for (byte q : quality) {
+                flags.put(q);
+            }
+            heartbeat.put("quality", flags);
+        }
+        event.put("beat", heartbeat);
+        return event;
+    }
+
+    /**
+     * Converts the event to the csv format to be saved in a local file
+     * @return dt, heart rate (empty if there is no heart rate)
+     */
+    public String toCSV() {
+        if (!hasHeartRate()) return "";
+        StringBuilder sb = new StringBuilder(24);
+        TimestampFormatter.getDefault().formatTo(timestamp, sb);
+        sb.append(", ");
+        sb.append(this.heartrate);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the columns of this beat in an upload row ({@link herv.app.upload.BatchEncoder}),
+     * "dt, hr, rr, quality": the heart rate is empty if there is none, rr the intervals in ms
+     * separated by spaces (the clean value when there is one) and quality their
+     * {@link RrQuality}, an interval left out of analytics being sent as rejected.
+     * Allocates nothing.
+     */
+    public void appendUploadCSV(StringBuilder sb) {
+        TimestampFormatter.getDefault().formatTo(timestamp, sb);
+        sb.append(", ");
+        if (hasHeartRate()) sb.append(heartrate);
+        sb.append(", ");
+        for (int i = 0; i < intervals.length; i++) {
+            if (i > 0) sb.append(' ');
+            int clean = getCleanRRMillis(i);
+            sb.append(clean != NO_RR ? clean : HeartRateMeasurement.rrToMillis(intervals[i]));
+        }
+        sb.append(", ");
+        for (int i = 0; i < intervals.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(getCleanRRMillis(i) != NO_RR ? getQuality(i) : RrQuality.REJECTED);
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return this.toJson().toString();
+        } catch (JSONException ex) {
+            ex.printStackTrace();
+            return "bad JSON format";
+        }
+    }
+
+    /**
+     * String formatted to be shown on activity screen
+     */
+    public String toScreenString() {
+        StringBuilder data = new StringBuilder();
+        if (hasHeartRate()) {
+            data.append("Heart Rate: ");
+            data.append(heartrate);
+            data.append("\n");
+        }
+        if (intervals.length > 0) {
+            data.append("Intervals: ");
+            for (int beat : intervals) {
+                data.append(beat);
+                data.append(" ");
+            }
+        }
+        return data.toString();
+    }
+
+    public String getUser() { return this.user; }
+
+    /** Allocates a new Date on every call, prefer {@link #getTimestamp()} */
+    public Date getDt() { return new Date(timestamp); }
+
+    public long getTimestamp() { return timestamp; }
+
+    public String getType() { return TP_HEARTBEAT; }
+
+    public boolean hasHeartRate() { return heartrate != NO_HEART_RATE; }
+
+    public int getHeartRate() { return heartrate; }
+
+    public int getRRCount() { return intervals.length; }
+
+    public int getRR(int i) { return intervals[i]; }
+
+    /** True if the intervals carry quality flags */
+    public boolean hasQuality() { return quality != null; }
+
+    /** @return the {@link RrQuality} of the i-th interval, OK if not filtered */
+    public byte getQuality(int i) {
+        if (i < 0 || i >= intervals.length) throw new IndexOutOfBoundsException("RR index " + i);
+        return quality == null ? RrQuality.OK : quality[i];
+    }
+
+    /** True if the value of the corrected intervals is kept */
+    public boolean hasCorrections() { return corrected != null; }
+
+    /**
+     * @return the value in ms the filter used for the i-th interval if it is
+     * {@link RrQuality#CORRECTED}, {@link #NO_RR} otherwise or if it was not kept
+     */
+    public int getCorrectedMillis(int i) {
+        if (corrected == null || getQuality(i) != RrQuality.CORRECTED) return NO_RR;
+        return corrected[i];
+    }
+
+    /**
+     * The i-th interval in ms as analytics use it: the received value if it is OK, the value
+     * the filter replaced it with if it is CORRECTED, and {@link #NO_RR} if it is REJECTED or
+     * was corrected before the corrected values were stored
+     */
+    public int getCleanRRMillis(int i) {
+        switch (getQuality(i)) {
+            case RrQuality.OK:
+                return HeartRateMeasurement.rrToMillis(intervals[i]);
+            case RrQuality.CORRECTED:
+                return getCorrectedMillis(i);
+            default:
+                return NO_RR;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package herv.app.model;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class DailyActivity {
@@ -72,7 +71,7 @@ public class DailyActivity {
         JSONObject event = new JSONObject();
 
         // build event with dt, type and activityName(s)
-        event.put("dt", new SimpleDateFormat(fmtDateDB).format(this.getDt()));
+        event.put("dt", TimestampFormatter.getDefault().format(this.dt.getTime()));
         event.put("type", this.type);
         event.put("posture", posture);
         event.put("activityName", activityName);
@@ -93,7 +92,7 @@ public class DailyActivity {
      */
     public String toCSV() {
         StringBuilder sb = new StringBuilder();
-        sb.append(new SimpleDateFormat(fmtDateDB).format(this.getDt()));
+        TimestampFormatter.getDefault().formatTo(this.dt.getTime(), sb);
         sb.append(",");
         sb.append(this.getType());
         sb.append(",");
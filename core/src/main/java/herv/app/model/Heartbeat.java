@@ -4,7 +4,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 
@@ -54,7 +53,7 @@ public class Heartbeat implements Event {
             event.put("user", this.user);
         }
         JSONObject heartbeat = new JSONObject();
-        heartbeat.put("dt", new SimpleDateFormat(fmtDateDB).format(this.getDt()));
+        heartbeat.put("dt", TimestampFormatter.getDefault().format(this.dt.getTime()));
         heartbeat.put("intervals", rr);
         event.put("beat", heartbeat);
         return event;
@@ -67,12 +66,11 @@ public class Heartbeat implements Event {
      * @return list of arrays, one for each heartbeat found (usually 1 or 2)
      */
     public String toCSV() {
-        String dt = new SimpleDateFormat(fmtDateDB).format(this.getDt());
         //if (this.getIntervals() == null) return "";
         if (this.getHeartRate() == null) return "";
         StringBuilder sb = new StringBuilder();
         //sb.append(", ");
-        sb.append(dt);
+        TimestampFormatter.getDefault().formatTo(this.dt.getTime(), sb);
         sb.append(", ");
         sb.append(this.heartrate);
         /*
@@ -82,7 +80,6 @@ public class Heartbeat implements Event {
             sb.append(", ");
             sb.append(this.intervals.get(i));
         }*/
-        System.out.println("----------------------------->"+sb.toString());
         return sb.toString();
     }
 
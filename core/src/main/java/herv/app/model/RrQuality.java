@@ -0,0 +1,25 @@
+package herv.app.model;
+
+/**
+ * Quality flag of an RR interval, set by the artifact filter and stored with the interval
+ */
+public final class RrQuality {
+
+    /** Accepted as received */
+    public final static byte OK = 0;
+    /** Missed or extra beat; analytics used the recent median instead */
+    public final static byte CORRECTED = 1;
+    /** Out of the physiological range, left out of analytics */
+    public final static byte REJECTED = 2;
+
+    private RrQuality() {}
+
+    public static String name(int quality) {
+        switch (quality) {
+            case OK: return "ok";
+            case CORRECTED: return "corrected";
+            case REJECTED: return "rejected";
+            default: return "unknown";
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package herv.app.model;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe replacement for {@code new SimpleDateFormat(Event.fmtDateDB)}.
+ *
+ * The "yyyy-MM-dd HH:mm:" prefix of the current minute is rendered once and cached in an
+ * immutable snapshot, so formatting a timestamp only writes the seconds. The snapshot is
+ * published through a volatile field, so the GATT callback thread and the UI thread can share
+ * the same instance without locking. Appending to a caller supplied buffer does not allocate
+ * unless the minute changes; {@link #format(long)} returns the cached String for repeated
+ * calls within the same second.
+ */
+public final class TimestampFormatter {
+
+    private final static int PREFIX_LENGTH = 17; // "yyyy-MM-dd HH:mm:"
+    private final static int MILLIS_PER_MINUTE = 60 * 1000;
+    private final static String PATTERN = "0000-00-00 00:00:00";
+
+    private final static TimestampFormatter DEFAULT = new TimestampFormatter(TimeZone.getDefault());
+
+    private final TimeZone zone;
+    private volatile Minute minute;
+    private volatile Second second;
+
+    /** Immutable rendering of one minute */
+    private static final class Minute {
+        final long start;
+        final char[] prefix = new char[PREFIX_LENGTH];
+
+        Minute(long start) {
+            this.start = start;
+        }
+    }
+
+    /** Last rendered second, to hand out the same String for notifications in the same second */
+    private static final class Second {
+        final long start;
+        final String text;
+
+        Second(long start, String text) {
+            this.start = start;
+            this.text = text;
+        }
+    }
+
+    public TimestampFormatter(TimeZone zone) {
+        this.zone = (TimeZone) zone.clone();
+    }
+
+    /** Shared instance using the device default time zone */
+    public static TimestampFormatter getDefault() {
+        return DEFAULT;
+    }
+
+    public TimeZone getTimeZone() {
+        return (TimeZone) zone.clone();
+    }
+
+    /**
+     * Formats millis as {@link Event#fmtDateDB}
+     */
+    public String format(long millis) {
+        long secondStart = floor(millis, 1000);
+        Second s = second;
+        if (s != null && s.start == secondStart) {
+            return s.text;
+        }
+        char[] chars = new char[PREFIX_LENGTH + 2];
+        formatTo(millis, chars, 0);
+        s = new Second(secondStart, new String(chars));
+        second = s;
+        return s.text;
+    }
+
+    /**
+     * Appends millis formatted as {@link Event#fmtDateDB} to sb
+     */
+    public StringBuilder formatTo(long millis, StringBuilder sb) {
+        Minute m = minuteOf(millis);
+        sb.append(m.prefix);
+        int sec = (int) ((millis - m.start) / 1000);
+        sb.append((char) ('0' + sec / 10));
+        sb.append((char) ('0' + sec % 10));
+        return sb;
+    }
+
+    /**
+     * Writes millis formatted as {@link Event#fmtDateDB} into dst, which needs 19 free chars
+     * @return position after the last written char
+     */
+    public int formatTo(long millis, char[] dst, int offset) {
+        Minute m = minuteOf(millis);
+        System.arraycopy(m.prefix, 0, dst, offset, PREFIX_LENGTH);
+        int sec = (int) ((millis - m.start) / 1000);
+        dst[offset + PREFIX_LENGTH] = (char) ('0' + sec / 10);
+        dst[offset + PREFIX_LENGTH + 1] = (char) ('0' + sec % 10);
+        return offset + PREFIX_LENGTH + 2;
+    }
+
+    /**
+     * Appends the "yyMMddHH" key used to name hourly RR files
+     */
+    public StringBuilder formatHourKey(long millis, StringBuilder sb) {
+        char[] p = minuteOf(millis).prefix;
+        sb.append(p, 2, 2).append(p, 5, 2).append(p, 8, 2).append(p, 11, 2);
+        return sb;
+    }
+
+    /**
+     * Appends the "yyMMdd" key used to name daily activity files
+     */
+    public StringBuilder formatDayKey(long millis, StringBuilder sb) {
+        char[] p = minuteOf(millis).prefix;
+        sb.append(p, 2, 2).append(p, 5, 2).append(p, 8, 2);
+        return sb;
+    }
+
+    /**
+     * Reads a {@link Event#fmtDateDB} timestamp starting at offset of s, as written by this class
+     * @return millis, or -1 if s does not hold a timestamp there
+     */
+    public long parse(CharSequence s, int offset) {
+        if (s.length() < offset + PREFIX_LENGTH + 2) return -1;
+        for (int i = 0; i < PREFIX_LENGTH + 2; i++) {
+            char c = s.charAt(offset + i);
+            boolean separator = i == 4 || i == 7 || i == 10 || i == 13 || i == 16;
+            if (separator ? c != PATTERN.charAt(i) : c < '0' || c > '9') return -1;
+        }
+        Calendar cal = new GregorianCalendar(zone);
+        cal.clear();
+        cal.set(digits(s, offset, 4), digits(s, offset + 5, 2) - 1, digits(s, offset + 8, 2),
+                digits(s, offset + 11, 2), digits(s, offset + 14, 2), digits(s, offset + 17, 2));
+        return cal.getTimeInMillis();
+    }
+
+    private static int digits(CharSequence s, int pos, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = value * 10 + s.charAt(pos + i) - '0';
+        }
+        return value;
+    }
+
+    private Minute minuteOf(long millis) {
+        long start = floor(millis, MILLIS_PER_MINUTE);
+        Minute m = minute;
+        if (m == null || m.start != start) {
+            m = render(start);
+            minute = m;
+        }
+        return m;
+    }
+
+    private Minute render(long start) {
+        Calendar cal = new GregorianCalendar(zone);
+        cal.setTimeInMillis(start);
+        Minute m = new Minute(start);
+        char[] p = m.prefix;
+        put4(p, 0, cal.get(Calendar.YEAR));
+        p[4] = '-';
+        put2(p, 5, cal.get(Calendar.MONTH) + 1);
+        p[7] = '-';
+        put2(p, 8, cal.get(Calendar.DAY_OF_MONTH));
+        p[10] = ' ';
+        put2(p, 11, cal.get(Calendar.HOUR_OF_DAY));
+        p[13] = ':';
+        put2(p, 14, cal.get(Calendar.MINUTE));
+        p[16] = ':';
+        return m;
+    }
+
+    private static long floor(long value, long unit) {
+        long q = value / unit;
+        if (value % unit < 0) q--;
+        return q * unit;
+    }
+
+    private static void put2(char[] dst, int pos, int value) {
+        dst[pos] = (char) ('0' + value / 10);
+        dst[pos + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void put4(char[] dst, int pos, int value) {
+        put2(dst, pos, value / 100);
+        put2(dst, pos + 2, value % 100);
+    }
+}
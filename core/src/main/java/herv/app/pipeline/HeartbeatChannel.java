@@ -0,0 +1,177 @@
+package herv.app.pipeline;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import herv.app.hrv.HrvMetrics;
+
+/**
+ * In-process channel carrying the latest heartbeat from the service to the bound screens.
+ *
+ * The GATT thread {@link #publish}es every beat as primitives into a single slot; nothing is
+ * allocated nor formatted. At most one delivery is pending at a time, run by the
+ * {@link Dispatcher} (the main thread on Android) no sooner than the minimum interval after the
+ * previous one, so beats arriving in between are coalesced and observers only see the latest.
+ */
+public class HeartbeatChannel {
+
+    public final static long DEFAULT_MIN_INTERVAL_MILLIS = 250;
+
+    /**
+     * Runs deliveries, usually on the UI thread
+     */
+    public interface Dispatcher {
+        long now();
+
+        void post(Runnable task, long delayMillis);
+    }
+
+    public interface Observer {
+        /**
+         * Called on the dispatcher thread. The snapshot is reused for the next delivery,
+         * copy what has to be kept.
+         */
+        void onHeartbeat(Snapshot snapshot);
+    }
+
+    /**
+     * Latest heartbeat, as primitives
+     */
+    public static class Snapshot {
+        public final static int NO_HEART_RATE = -1;
+
+        public long timestamp;
+        public int heartRate = NO_HEART_RATE;
+        public int rrCount;
+        public final int[] rr;
+        /** Beats published so far, delivered or not */
+        public long sequence;
+        /** HRV of the recent beats, count is 0 if not published */
+        public final HrvMetrics hrv = new HrvMetrics();
+
+        Snapshot(int rrCapacity) {
+            rr = new int[rrCapacity];
+        }
+
+        void copyFrom(Snapshot other) {
+            timestamp = other.timestamp;
+            heartRate = other.heartRate;
+            rrCount = other.rrCount;
+            System.arraycopy(other.rr, 0, rr, 0, rrCount);
+            sequence = other.sequence;
+            hrv.copyFrom(other.hrv);
+        }
+
+        public boolean hasHeartRate() {
+            return heartRate != NO_HEART_RATE;
+        }
+
+        /**
+         * Same text the screen used to get from the broadcast
+         */
+        public String toScreenString() {
+            StringBuilder data = new StringBuilder(48);
+            if (hasHeartRate()) {
+                data.append("Heart Rate: ").append(heartRate).append("\n");
+            }
+            if (rrCount > 0) {
+                data.append("Intervals: ");
+                for (int i = 0; i < rrCount; i++) {
+                    data.append(rr[i]).append(" ");
+                }
+            }
+            if (hrv.count > 1) {
+                if (rrCount > 0) data.append("\n");
+                data.append("RMSSD: ").append(Math.round(hrv.rmssd))
+                        .append(" ms  SDNN: ").append(Math.round(hrv.sdnn)).append(" ms");
+            }
+            return data.toString();
+        }
+    }
+
+    private final Dispatcher dispatcher;
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<Observer>();
+    private volatile long minIntervalMillis;
+
+    // written by the publisher, guarded by this
+    private final Snapshot latest;
+    private boolean scheduled;
+    private long lastDelivery = Long.MIN_VALUE / 2;
+    private long delivered;
+
+    // only touched on the dispatcher thread
+    private final Snapshot delivering;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (HeartbeatChannel.this) {
+                scheduled = false;
+                lastDelivery = dispatcher.now();
+                delivering.copyFrom(latest);
+                delivered++;
+            }
+            for (Observer observer : observers) {
+                observer.onHeartbeat(delivering);
+            }
+        }
+    };
+
+    public HeartbeatChannel(Dispatcher dispatcher, int rrCapacity) {
+        this(dispatcher, rrCapacity, DEFAULT_MIN_INTERVAL_MILLIS);
+    }
+
+    public HeartbeatChannel(Dispatcher dispatcher, int rrCapacity, long minIntervalMillis) {
+        this.dispatcher = dispatcher;
+        this.latest = new Snapshot(rrCapacity);
+        this.delivering = new Snapshot(rrCapacity);
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Replaces the latest heartbeat and schedules a delivery if none is pending
+     * @param heartRate {@link Snapshot#NO_HEART_RATE} if unknown
+     */
+    public void publish(long timestamp, int heartRate, int[] rr, int rrCount) {
+        publish(timestamp, heartRate, rr, rrCount, null);
+    }
+
+    /**
+     * Same as {@link #publish(long, int, int[], int)}, along with the current HRV metrics
+     */
+    public void publish(long timestamp, int heartRate, int[] rr, int rrCount, HrvMetrics hrv) {
+        long delay;
+        synchronized (this) {
+            if (hrv != null) latest.hrv.copyFrom(hrv);
+            latest.timestamp = timestamp;
+            latest.heartRate = heartRate;
+            latest.rrCount = Math.min(rrCount, latest.rr.length);
+            System.arraycopy(rr, 0, latest.rr, 0, latest.rrCount);
+            latest.sequence++;
+            if (scheduled || observers.isEmpty()) return;
+            scheduled = true;
+            delay = Math.max(0, lastDelivery + minIntervalMillis - dispatcher.now());
+        }
+        dispatcher.post(deliver, delay);
+    }
+
+    public void addObserver(Observer observer) {
+        observers.addIfAbsent(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Minimum time between two deliveries, i.e. the maximum UI refresh rate
+     */
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /** Beats published */
+    public synchronized long getPublishedCount() { return latest.sequence; }
+
+    /** Deliveries made, each with the latest beat at that time */
+    public synchronized long getDeliveredCount() { return delivered; }
+}
@@ -0,0 +1,189 @@
+package herv.app.pipeline;
+
+import herv.app.analytics.ActivityJoin;
+import herv.app.hrm.HeartRateMeasurement;
+import herv.app.hrm.HeartRateMeasurementDecoder;
+import herv.app.hrv.ArtifactFilter;
+import herv.app.hrv.HrvEngine;
+import herv.app.hrv.HrvMetrics;
+import herv.app.hrv.RrStage;
+import herv.app.hrv.SpectralEstimator;
+import herv.app.hrv.SpectralMetrics;
+import herv.app.metrics.Counter;
+import herv.app.metrics.LatencyHistogram;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.RrQuality;
+import herv.app.storage.EventWriter;
+import herv.app.trace.Trace;
+
+/**
+ * What happens to every Heart Rate Measurement notification of one strap, on the thread that
+ * receives them (the GATT callback on Android, a simulated strap in the load driver):
+ * decoding, artifact filtering, live HRV, delivery to the screens through the
+ * {@link HeartbeatChannel} and, while recording, queueing the beat to the {@link EventWriter}.
+ *
+ * Recording is requested with {@link #setRecording} from any thread and takes effect at the
+ * next notification: a new HRV session starts, and the session (and activity) summary is
+ * reported when it stops. Apart from that, not thread safe.
+ *
+ * The time spent decoding, handing the beats to the screens and queueing them, and the whole
+ * notification, are recorded in the {@link MetricsRegistry} ("ble.decode", "ui.publish",
+ * "writer.submit", "pipeline.notification"); each notification and RR interval is traced at
+ * {@link Trace#DEBUG}, and a beat dropped because the writer queue is full is traced as a
+ * problem.
+ */
+public class HeartbeatPipeline {
+
+    public interface Listener {
+        void onMalformed(byte[] value);
+
+        /** The writer queue was full */
+        void onDropped(CompactHeartbeat beat);
+
+        void onRecordingStopped(HrvMetrics session, SpectralMetrics recent);
+    }
+
+    // reused for every heart rate notification
+    private final HeartRateMeasurement measurement = new HeartRateMeasurement();
+    private final int[] rrBuffer = new int[HeartRateMeasurement.MAX_RR_INTERVALS];
+    // same intervals in ms, cleaned by the artifact filter for analytics, and their quality
+    private final int[] rrMillis = new int[HeartRateMeasurement.MAX_RR_INTERVALS];
+    private final byte[] rrQuality = new byte[HeartRateMeasurement.MAX_RR_INTERVALS];
+    private final RrStage rrFilter = new ArtifactFilter();
+    // live HRV of the received RR intervals, a new session each time recording starts
+    private final HrvEngine hrvEngine = new HrvEngine();
+    private final HrvMetrics hrvWindow = new HrvMetrics();
+    private final HrvMetrics hrvSession = new HrvMetrics();
+    private final SpectralEstimator spectralEstimator = new SpectralEstimator();
+    private final SpectralMetrics spectralMetrics = new SpectralMetrics();
+    // HRV of each recorded activity, reported at its stop
+    private final ActivityJoin activityJoin;
+
+    private final HeartbeatChannel channel;
+    private final EventWriter writer;
+    private final Listener listener;
+
+    private final LatencyHistogram decodeTime;
+    private final LatencyHistogram publishTime;
+    private final LatencyHistogram submitTime;
+    private final LatencyHistogram notificationTime;
+    private final Counter notifications;
+    private final Counter malformed;
+    private final Trace trace;
+
+    private volatile boolean recordingRequested;
+    private volatile DailyActivity activity;
+    private boolean recording;
+
+    /**
+     * @param channel null if no screen shows the beats
+     */
+    public HeartbeatPipeline(HeartbeatChannel channel, EventWriter writer, ActivityJoin.Listener activities,
+                             Listener listener) {
+        this.channel = channel;
+        this.writer = writer;
+        this.activityJoin = new ActivityJoin(activities);
+        this.listener = listener;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.decodeTime = metrics.histogram("ble.decode");
+        this.publishTime = metrics.histogram("ui.publish");
+        this.submitTime = metrics.histogram("writer.submit");
+        this.notificationTime = metrics.histogram("pipeline.notification");
+        this.notifications = metrics.counter("ble.notifications");
+        this.malformed = metrics.counter("ble.malformed");
+        this.trace = Trace.getDefault();
+    }
+
+    /**
+     * @param activity the activity being recorded, null if unknown
+     */
+    public void setRecording(boolean recording, DailyActivity activity) {
+        this.activity = activity;
+        this.recordingRequested = recording;
+    }
+
+    /**
+     * Processes the value of a Heart Rate Measurement notification received at now
+     */
+    public void onNotification(byte[] value, long now) {
+        long start = System.nanoTime();
+        notifications.inc();
+        int rrCount = 0;
+        int heartRate = HeartbeatChannel.Snapshot.NO_HEART_RATE;
+        if (HeartRateMeasurementDecoder.decode(value, measurement)) {
+            rrCount = measurement.copyRR(rrBuffer, 0);
+            heartRate = measurement.getHeartRate();
+            decodeTime.recordSince(start);
+            trace.record(Trace.DEBUG, Trace.EV_NOTIFICATION, heartRate, rrCount, measurement.getFlags());
+        } else {
+            malformed.inc();
+            trace.record(Trace.WARN, Trace.EV_MALFORMED, value == null ? -1 : value.length,
+                    value == null || value.length == 0 ? 0 : value[0] & 0xFF);
+            listener.onMalformed(value);
+        }
+        trackRecording(now);
+        for (int i = 0; i < rrCount; i++) {
+            rrMillis[i] = HeartRateMeasurement.rrToMillis(rrBuffer[i]);
+        }
+        rrFilter.process(rrMillis, rrQuality, 0, rrCount);
+        if (trace.isEnabled(Trace.DEBUG)) {
+            for (int i = 0; i < rrCount; i++) {
+                trace.record(Trace.DEBUG, Trace.EV_RR, rrBuffer[i], rrQuality[i]);
+            }
+        }
+        for (int i = 0; i < rrCount; i++) {
+            if (rrQuality[i] == RrQuality.REJECTED) continue;
+            hrvEngine.add(rrMillis[i]);
+            spectralEstimator.add(rrMillis[i]);
+        }
+        if (channel != null) {
+            long t = System.nanoTime();
+            channel.publish(now, heartRate, rrBuffer, rrCount, hrvEngine.window(hrvWindow));
+            publishTime.recordSince(t);
+        }
+        if (recording && rrCount > 0) {
+            // raw sensor values are stored, with the quality the filter gave them and the value it
+            // used for the corrected ones, so nothing downstream filters them again
+            CompactHeartbeat beat = CompactHeartbeat.copyOf(now, heartRate, rrBuffer, rrQuality, rrMillis, rrCount);
+            activityJoin.onBeat(beat);
+            long t = System.nanoTime();
+            boolean queued = writer.submit(beat);
+            submitTime.recordSince(t);
+            if (!queued) {
+                trace.record(Trace.ERROR, Trace.EV_DROPPED, now, rrCount);
+                listener.onDropped(beat);
+            }
+        }
+        notificationTime.recordSince(start);
+    }
+
+    /**
+     * Starts a new HRV session when recording starts and reports it when it stops
+     */
+    private void trackRecording(long now) {
+        if (recordingRequested == recording) return;
+        recording = recordingRequested;
+        if (recording) {
+            rrFilter.reset();
+            hrvEngine.reset();
+            spectralEstimator.reset();
+            trace.record(Trace.INFO, Trace.EV_RECORDING_START);
+            DailyActivity a = activity;
+            if (a != null) {
+                activityJoin.onStart(Math.min(now, a.getDt().getTime()),
+                        String.valueOf(a.getActivityName()), a.getPosture());
+            } else {
+                activityJoin.onStart(now, "", "");
+            }
+        } else {
+            activityJoin.onStop(now);
+            hrvEngine.session(hrvSession);
+            trace.record(Trace.INFO, Trace.EV_RECORDING_STOP, hrvSession.count);
+            listener.onRecordingStopped(hrvSession, spectralEstimator.metrics(spectralMetrics));
+        }
+    }
+
+    public boolean isRecording() { return recording; }
+}
@@ -0,0 +1,108 @@
+package herv.app.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ *
+ * Each slot carries a sequence number telling whether it is free for the producer claiming
+ * position p (sequence == p) or holds an element ready for the consumer (sequence == p + 1),
+ * as in Dmitry Vyukov's bounded queue. {@link #offer(Object)} never blocks: it fails when the
+ * buffer is full, so a producer running on a callback thread always returns immediately.
+ * Only one thread may call {@link #poll()} / {@link #drainTo(Object[])}.
+ */
+public class RingBuffer<E> {
+
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.mask = size - 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.lazySet(i, i);
+        }
+    }
+
+    /**
+     * Adds e at the tail of the queue
+     * @return false if the queue is full
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements[index] = e;
+                    sequences.set(index, pos + 1); // publishes the element
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // slot still used by the previous lap: full
+            }
+            // another producer claimed pos, retry with the new tail
+        }
+    }
+
+    /**
+     * Removes the head of the queue. Consumer thread only.
+     * @return null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E e = (E) elements[index];
+        elements[index] = null;
+        sequences.set(index, pos + elements.length);
+        head = pos + 1;
+        return e;
+    }
+
+    /**
+     * Moves as many elements as fit in dst to it. Consumer thread only.
+     * @return number of elements moved
+     */
+    public int drainTo(E[] dst) {
+        int n = 0;
+        E e;
+        while (n < dst.length && (e = poll()) != null) {
+            dst[n++] = e;
+        }
+        return n;
+    }
+
+    /** Approximate number of elements waiting, safe to call from any thread */
+    public int size() {
+        long size = tail.get() - head;
+        if (size < 0) return 0;
+        return (int) Math.min(size, elements.length);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+}
@@ -0,0 +1,178 @@
+package herv.app.sim;
+
+import java.util.Random;
+
+import herv.app.hrm.HeartRateMeasurement;
+import herv.app.hrm.HeartRateMeasurementDecoder;
+
+/**
+ * Synthetic chest strap: emits Heart Rate Measurement notification values, as a Polar H7
+ * would, for a heart whose RR intervals follow a slowly wandering rate modulated by breathing
+ * (respiratory sinus arrhythmia) and a slower baroreflex rhythm, plus noise.
+ *
+ * Notifications are sent once per second with the beats of that second. To exercise every
+ * branch of the decoder and of the artifact filter the strap also
+ * <ul>
+ *     <li>switches between 8 and 16 bit heart rate values and adds the energy expended
+ *     field every {@link #ENERGY_INTERVAL} notifications</li>
+ *     <li>loses skin contact for a few seconds (contact not detected, no RR)</li>
+ *     <li>sometimes holds its notifications for a few seconds and sends up to
+ *     {@link HeartRateMeasurement#MAX_RR_INTERVALS} RR at once</li>
+ *     <li>produces ectopic beats (a short RR followed by a compensatory pause) and missed
+ *     beats (two RR detected as one)</li>
+ * </ul>
+ * Deterministic for a given seed. Not thread safe, one instance per strap.
+ */
+public class HrmSimulator {
+
+    /** Longest notification value: flags, uint16 HR, energy expended and 9 RR */
+    public final static int MAX_PAYLOAD = 1 + 2 + 2 + 2 * HeartRateMeasurement.MAX_RR_INTERVALS;
+
+    /** Notifications between two energy expended fields */
+    public final static int ENERGY_INTERVAL = 10;
+
+    // per second
+    private final static double DROPOUT_PROBABILITY = 0.005;
+    private final static double DELAY_PROBABILITY = 0.02;
+    private final static double UINT16_SWITCH_PROBABILITY = 0.01;
+    // per beat
+    private final static double ECTOPIC_PROBABILITY = 0.003;
+    private final static double MISSED_PROBABILITY = 0.002;
+
+    private final Random random;
+    private final int[] rr = new int[HeartRateMeasurement.MAX_RR_INTERVALS];
+
+    // heart
+    private double baseRate;
+    private final double restingRate;
+    private double breathPhase;
+    private double mayerPhase;
+    private long nextBeat;
+    private double compensatory;
+
+    // strap
+    private long time;
+    private int notifications;
+    private int energy;
+    private boolean uint16;
+    private int dropoutSeconds;
+    private int delaySeconds;
+    private int rrCount;
+
+    /**
+     * @param restingRate heart rate in beats per minute around which the rate wanders
+     * @param start time of the first notification, in ms
+     */
+    public HrmSimulator(long seed, int restingRate, long start) {
+        this.random = new Random(seed);
+        this.restingRate = restingRate;
+        this.baseRate = restingRate;
+        this.breathPhase = random.nextDouble() * 2 * Math.PI;
+        this.mayerPhase = random.nextDouble() * 2 * Math.PI;
+        this.time = start;
+        this.nextBeat = start + random.nextInt(1000);
+    }
+
+    /** Time of the next notification, in ms */
+    public long getTime() { return time; }
+
+    /**
+     * Advances the strap to its next notification
+     * @param out at least {@link #MAX_PAYLOAD} bytes
+     * @return length of the notification value written to out
+     */
+    public int next(byte[] out) {
+        time += 1000;
+        baseRate += (restingRate - baseRate) * 0.01 + random.nextGaussian() * 0.5;
+
+        boolean contact = dropoutSeconds == 0;
+        if (contact && random.nextDouble() < DROPOUT_PROBABILITY) {
+            dropoutSeconds = 2 + random.nextInt(8);
+            contact = false;
+        }
+        // beats during a dropout are not detected
+        if (!contact) {
+            dropoutSeconds--;
+            rrCount = 0;
+            while (nextBeat <= time) nextBeat += beat();
+            return encode(out, false, 0);
+        }
+
+        while (nextBeat <= time) {
+            int interval = beat();
+            nextBeat += interval;
+            if (rrCount < rr.length) {
+                rr[rrCount++] = (int) Math.round(interval * 1.024);
+            }
+        }
+        if (delaySeconds == 0 && random.nextDouble() < DELAY_PROBABILITY) {
+            delaySeconds = 2 + random.nextInt(3);
+        }
+        if (delaySeconds > 0 && --delaySeconds > 0 && rrCount < rr.length) {
+            // held back, sent with the next notification
+            return next(out);
+        }
+        int heartRate = rrCount > 0 ? (int) Math.round(61440.0 * rrCount / sum(rr, rrCount)) : (int) baseRate;
+        int length = encode(out, true, heartRate);
+        rrCount = 0;
+        return length;
+    }
+
+    /**
+     * Length of the next beat in ms, with its artifacts
+     */
+    private int beat() {
+        if (compensatory > 0) {
+            int interval = (int) compensatory;
+            compensatory = 0;
+            return interval;
+        }
+        double mean = 60000.0 / baseRate;
+        double interval = mean * (1 + 0.04 * Math.sin(breathPhase) + 0.02 * Math.sin(mayerPhase))
+                + random.nextGaussian() * 8;
+        // breathing at 0.25 Hz, Mayer waves at 0.1 Hz
+        breathPhase += 2 * Math.PI * 0.25 * interval / 1000;
+        mayerPhase += 2 * Math.PI * 0.1 * interval / 1000;
+
+        double p = random.nextDouble();
+        if (p < ECTOPIC_PROBABILITY) {
+            compensatory = interval * 1.4;
+            interval *= 0.6;
+        } else if (p < ECTOPIC_PROBABILITY + MISSED_PROBABILITY) {
+            interval *= 2;
+        }
+        return (int) Math.max(250, Math.min(interval, 3000));
+    }
+
+    private int encode(byte[] out, boolean contact, int heartRate) {
+        if (random.nextDouble() < UINT16_SWITCH_PROBABILITY) uint16 = !uint16;
+        int flags = HeartRateMeasurementDecoder.FLAG_SENSOR_CONTACT_SUPPORTED;
+        if (contact) flags |= HeartRateMeasurementDecoder.FLAG_SENSOR_CONTACT_DETECTED;
+        if (uint16 || heartRate > 255) flags |= HeartRateMeasurementDecoder.FLAG_HR_UINT16;
+        boolean energyField = ++notifications % ENERGY_INTERVAL == 0;
+        if (energyField) flags |= HeartRateMeasurementDecoder.FLAG_ENERGY_EXPENDED;
+        if (rrCount > 0) flags |= HeartRateMeasurementDecoder.FLAG_RR_INTERVALS;
+
+        int pos = 0;
+        out[pos++] = (byte) flags;
+        out[pos++] = (byte) heartRate;
+        if ((flags & HeartRateMeasurementDecoder.FLAG_HR_UINT16) != 0) out[pos++] = (byte) (heartRate >> 8);
+        if (energyField) {
+            // about 25 kJ per minute at rest
+            energy = Math.min(energy + 4, 0xFFFF);
+            out[pos++] = (byte) energy;
+            out[pos++] = (byte) (energy >> 8);
+        }
+        for (int i = 0; i < rrCount; i++) {
+            out[pos++] = (byte) rr[i];
+            out[pos++] = (byte) (rr[i] >> 8);
+        }
+        return pos;
+    }
+
+    private static long sum(int[] values, int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) sum += values[i];
+        return sum;
+    }
+}
@@ -0,0 +1,403 @@
+package herv.app.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import herv.app.analytics.ActivityJoin;
+import herv.app.analytics.ActivitySession;
+import herv.app.analytics.HistoryAnalyzer;
+import herv.app.hrv.HrvMetrics;
+import herv.app.hrv.SpectralMetrics;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.pipeline.HeartbeatPipeline;
+import herv.app.storage.EventQueue;
+import herv.app.storage.EventWriter;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.RollupEventStore;
+import herv.app.storage.RollupStore;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.TimeIndex;
+import herv.app.upload.BatchTransport;
+import herv.app.upload.BatchUploader;
+import herv.app.upload.ExponentialBackoff;
+import herv.app.upload.Outbox;
+
+/**
+ * Drives N simulated straps through the same {@link HeartbeatPipeline} the GATT callback uses,
+ * at 1x to 1000x real time, into an {@link EventWriter} and optionally an uploader, and reports
+ * throughput, queue depths and the latency from notification to durable write.
+ *
+ * {@link #main} sets things up as the service does: the writer spills to a file when its queue
+ * is full, and an {@link Outbox} uploads from the log, so the saturation point found is that
+ * of the app. The in-memory {@link BatchUploader} of the service without log can be driven
+ * instead.
+ *
+ * Each strap has its own thread, as each connected device has its own GATT callback. A
+ * notification due at virtual time t is processed at real time start + (t - t0) / speed;
+ * when the pipeline cannot keep up the straps fall behind and the latency grows, which is
+ * the saturation point.
+ *
+ * Usage: LoadDriver &lt;straps&gt; &lt;speed&gt; &lt;virtual seconds&gt; [upload latency ms] [HeRV folder]
+ * [outbox|uploader]
+ */
+public class LoadDriver {
+
+    private final static int LATENCY_SAMPLES = 1 << 16;
+    private final static long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // how long the outbox gets to deliver what is left once the straps are done
+    private final static long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    public static class Report {
+        public int straps;
+        public double speed;
+        public long virtualMillis;
+        public long realMillis;
+
+        public long notifications;
+        public long malformed;
+        public long beatsWritten;
+        public long beatsDropped;
+        public long beatsSpilled;
+        public long writeFailed;
+        public long sessions;
+
+        public long uploaded;
+        public long uploadFailed;
+        public long uploadDropped;
+
+        public int maxWriterQueue;
+        public double meanWriterQueue;
+        // with an outbox, the records written but not delivered yet
+        public long maxUploadQueue;
+        public double meanUploadQueue;
+
+        // latency from the notification to its durable write, in real microseconds
+        public long latencyCount;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+
+        /** Beats written per real second */
+        public double getThroughput() {
+            return realMillis == 0 ? 0 : beatsWritten * 1000.0 / realMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d straps at %.0fx: %d s virtual in %d ms%n"
+                            + "notifications %d, malformed %d, sessions %d%n"
+                            + "beats written %d (%.0f/s), dropped %d, spilled %d, failed %d%n"
+                            + "uploaded %d, upload failed %d, upload dropped %d%n"
+                            + "writer queue max %d mean %.1f, upload queue max %d mean %.1f%n"
+                            + "latency us p50 %d p90 %d p99 %d max %d (%d samples)",
+                    straps, speed, virtualMillis / 1000, realMillis,
+                    notifications, malformed, sessions,
+                    beatsWritten, getThroughput(), beatsDropped, beatsSpilled, writeFailed,
+                    uploaded, uploadFailed, uploadDropped,
+                    maxWriterQueue, meanWriterQueue, maxUploadQueue, meanUploadQueue,
+                    p50, p90, p99, max, latencyCount);
+        }
+    }
+
+    private final EventWriter writer;
+    private final BatchUploader uploader;
+    private final Outbox outbox;
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong sessions = new AtomicLong();
+
+    // written by the writer thread only, read once it has stopped
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private final Random reservoir = new Random(1);
+    private long latencyCount;
+    private long maxLatency;
+
+    private long virtualStart;
+    private long realStart;
+    private double speed;
+
+    /**
+     * @param writer not started yet, it is started and closed by {@link #run}
+     */
+    public LoadDriver(EventWriter writer) {
+        this(writer, null, null);
+    }
+
+    /**
+     * @param writer not started yet, it is started and closed by {@link #run}
+     * @param uploader every written event is queued for upload as in the service without
+     *                 outbox; started and closed by {@link #run}
+     */
+    public LoadDriver(EventWriter writer, BatchUploader uploader) {
+        this(writer, uploader, null);
+    }
+
+    /**
+     * @param writer not started yet, writing to the log the outbox reads; it is started and
+     *               closed by {@link #run}
+     * @param outbox started by {@link #run}, and closed once it delivered every written beat
+     */
+    public LoadDriver(EventWriter writer, Outbox outbox) {
+        this(writer, null, outbox);
+    }
+
+    private LoadDriver(EventWriter writer, BatchUploader uploader, Outbox outbox) {
+        this.writer = writer;
+        this.uploader = uploader;
+        this.outbox = outbox;
+    }
+
+    /**
+     * Runs the straps for the given virtual duration and waits until every beat is written
+     * (and uploaded)
+     * @param speed virtual seconds per real second, 1 to 1000
+     */
+    public Report run(int straps, double speed, int seconds) {
+        if (speed < 1 || speed > 1000) throw new IllegalArgumentException("speed " + speed);
+        this.speed = speed;
+        this.virtualStart = System.currentTimeMillis();
+        this.realStart = System.nanoTime();
+        final long virtualStop = virtualStart + seconds * 1000L;
+
+        writer.setListener(new EventWriter.Listener() {
+            @Override
+            public void onWritten(Event event) {
+                if (event instanceof CompactHeartbeat) {
+                    recordLatency(System.nanoTime() - due(((CompactHeartbeat) event).getTimestamp()));
+                }
+                if (uploader != null) uploader.add(event);
+            }
+        });
+        writer.start();
+        if (uploader != null) uploader.start();
+        if (outbox != null) outbox.start();
+
+        Thread[] threads = new Thread[straps];
+        for (int i = 0; i < straps; i++) {
+            final HrmSimulator strap = new HrmSimulator(i, 55 + 5 * (i % 6), virtualStart);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runStrap(strap, virtualStop);
+                }
+            }, "herv-strap-" + i);
+            threads[i].start();
+        }
+
+        Report report = new Report();
+        long samples = 0, writerQueue = 0, uploadQueue = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                int w = writer.getQueueSize();
+                long u = getUploadQueue();
+                report.maxWriterQueue = Math.max(report.maxWriterQueue, w);
+                report.maxUploadQueue = Math.max(report.maxUploadQueue, u);
+                writerQueue += w;
+                uploadQueue += u;
+                samples++;
+                LockSupport.parkNanos(SAMPLE_INTERVAL_NANOS);
+            }
+        }
+        // joins the writer thread, so its latencies are visible from here
+        writer.close();
+        if (uploader != null) uploader.close();
+        if (outbox != null) {
+            // the log is complete, wait until it is all delivered
+            long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            while (outbox.getDeliveredCount() < writer.getWrittenCount() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(SAMPLE_INTERVAL_NANOS);
+            }
+            outbox.close();
+        }
+        long realStop = System.nanoTime();
+
+        report.straps = straps;
+        report.speed = speed;
+        report.virtualMillis = virtualStop - virtualStart;
+        report.realMillis = TimeUnit.NANOSECONDS.toMillis(realStop - realStart);
+        report.notifications = notifications.get();
+        report.malformed = malformed.get();
+        report.sessions = sessions.get();
+        report.beatsWritten = writer.getWrittenCount();
+        report.beatsDropped = writer.getDroppedCount();
+        report.beatsSpilled = writer.getQueue().getSpilledCount();
+        report.writeFailed = writer.getFailedCount();
+        if (uploader != null) {
+            report.uploaded = uploader.getSentCount();
+            report.uploadFailed = uploader.getFailedCount();
+            report.uploadDropped = uploader.getDroppedCount();
+        }
+        if (outbox != null) {
+            report.uploaded = outbox.getDeliveredCount();
+            report.uploadFailed = outbox.getFailedAttempts();
+        }
+        if (samples > 0) {
+            report.meanWriterQueue = (double) writerQueue / samples;
+            report.meanUploadQueue = (double) uploadQueue / samples;
+        }
+        fillLatencies(report);
+        return report;
+    }
+
+    private long getUploadQueue() {
+        if (uploader != null) return uploader.getQueueSize();
+        if (outbox != null) return Math.max(0, writer.getWrittenCount() - outbox.getDeliveredCount());
+        return 0;
+    }
+
+    private void runStrap(HrmSimulator strap, long virtualStop) {
+        HeartbeatPipeline pipeline = new HeartbeatPipeline(null, writer, new ActivityJoin.Listener() {
+            @Override
+            public void onSession(ActivitySession session) {
+                sessions.incrementAndGet();
+            }
+        }, new HeartbeatPipeline.Listener() {
+            @Override
+            public void onMalformed(byte[] value) {
+                malformed.incrementAndGet();
+            }
+
+            @Override
+            public void onDropped(CompactHeartbeat beat) {
+                // counted by the writer
+            }
+
+            @Override
+            public void onRecordingStopped(HrvMetrics session, SpectralMetrics recent) {
+            }
+        });
+        pipeline.setRecording(true, new DailyActivity(Event.TP_START, "simulated", DailyActivity.PT_SIT,
+                new Date(virtualStart)));
+
+        byte[] value = new byte[HrmSimulator.MAX_PAYLOAD];
+        while (true) {
+            int length = strap.next(value);
+            long now = strap.getTime();
+            if (now > virtualStop) break;
+            long wait;
+            while ((wait = due(now) - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // the GATT callback gets a new array for every notification
+            pipeline.onNotification(Arrays.copyOf(value, length), now);
+            notifications.incrementAndGet();
+        }
+        pipeline.setRecording(false, null);
+        pipeline.onNotification(new byte[] {0, 0}, virtualStop);
+    }
+
+    /** Real time, in System.nanoTime units, at which the virtual time t is due */
+    private long due(long t) {
+        return realStart + (long) ((t - virtualStart) * 1000000.0 / speed);
+    }
+
+    private void recordLatency(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        maxLatency = Math.max(maxLatency, micros);
+        if (latencyCount < latencies.length) {
+            latencies[(int) latencyCount] = micros;
+        } else {
+            // reservoir sampling, every latency has the same chance to be kept
+            long i = (long) (reservoir.nextDouble() * (latencyCount + 1));
+            if (i < latencies.length) latencies[(int) i] = micros;
+        }
+        latencyCount++;
+    }
+
+    private void fillLatencies(Report report) {
+        int n = (int) Math.min(latencyCount, latencies.length);
+        report.latencyCount = latencyCount;
+        report.max = maxLatency;
+        if (n == 0) return;
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        report.p50 = sorted[(int) (n * 0.50)];
+        report.p90 = sorted[(int) (n * 0.90)];
+        report.p99 = sorted[(int) (n * 0.99)];
+    }
+
+    /**
+     * Transport that answers 200 after a fixed delay, standing for the network
+     */
+    private static class SimulatedTransport implements BatchTransport {
+        private final long latencyMillis;
+
+        SimulatedTransport(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public int post(byte[] body, int offset, int length) throws IOException {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+            return 200;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: LoadDriver <straps> <speed> <virtual seconds> [upload latency ms] [HeRV folder]"
+                    + " [outbox|uploader]");
+            System.exit(2);
+        }
+        int straps = Integer.parseInt(args[0]);
+        double speed = Double.parseDouble(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        long uploadLatency = args.length > 3 ? Long.parseLong(args[3]) : -1;
+        File dir = args.length > 4 ? new File(args[4]) : createTempDir();
+        boolean useOutbox = args.length <= 5 || !"uploader".equals(args[5]);
+
+        // same stores and writer queue as the service
+        File logDir = new File(dir, HistoryAnalyzer.LOG_FOLDER);
+        LogEventStore store = new LogEventStore(new SegmentLog(logDir), new TimeIndex(logDir));
+        EventWriter writer = new EventWriter(new RollupEventStore(store, new RollupStore(new File(dir, "rollup"))),
+                newSpillQueue(dir, "writer", EventWriter.DEFAULT_CAPACITY), EventWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+        LoadDriver driver;
+        if (uploadLatency < 0) {
+            driver = new LoadDriver(writer);
+        } else if (useOutbox) {
+            // the batch deadline and the polling are real time, scale them as the straps are
+            Outbox outbox = new Outbox(logDir, new File(logDir, Outbox.STATE_FILE),
+                    new SimulatedTransport(uploadLatency), new ExponentialBackoff(5 * 1000, 30 * 60 * 1000),
+                    Outbox.DEFAULT_MAX_BATCH, Math.max(1, (long) (Outbox.DEFAULT_MAX_DELAY_MILLIS / speed)),
+                    Math.max(1, (long) (Outbox.DEFAULT_POLL_MILLIS / speed)));
+            driver = new LoadDriver(writer, outbox);
+        } else {
+            driver = new LoadDriver(writer, new BatchUploader(new SimulatedTransport(uploadLatency),
+                    newSpillQueue(dir, "upload", BatchUploader.DEFAULT_CAPACITY), BatchUploader.DEFAULT_MAX_BATCH,
+                    Math.max(1, (long) (BatchUploader.DEFAULT_MAX_DELAY_MILLIS / speed))));
+        }
+        System.out.println(driver.run(straps, speed, seconds));
+        // per stage times; store.latency is meaningless here, beats are stamped in virtual time
+        MetricsRegistry.getDefault().dump(System.currentTimeMillis(), System.out, false);
+        System.err.println("written to " + dir);
+    }
+
+    /**
+     * Queue that spills to a file under dir/spill when full, as the service's queues
+     */
+    private static EventQueue newSpillQueue(File dir, String name, int capacity) throws IOException {
+        File spillDir = new File(dir, "spill");
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) throw new IOException("Cannot create " + spillDir);
+        return new EventQueue(name, capacity, EventQueue.SPILL, new File(spillDir, name + ".spill"),
+                EventQueue.DEFAULT_BLOCK_MILLIS);
+    }
+
+    private static File createTempDir() throws IOException {
+        File file = File.createTempFile("herv-load", "");
+        if (!file.delete() || !file.mkdirs()) throw new IOException("Cannot create " + file);
+        return file;
+    }
+}
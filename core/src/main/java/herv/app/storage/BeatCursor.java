@@ -0,0 +1,20 @@
+package herv.app.storage;
+
+import java.io.IOException;
+
+import herv.app.model.CompactHeartbeat;
+
+/**
+ * Heartbeats read one at a time, in timestamp order.
+ * Usage: {@code while (cursor.next()) { cursor.beat() ... }}
+ */
+public interface BeatCursor {
+
+    /**
+     * @return false when there are no more beats
+     */
+    boolean next() throws IOException;
+
+    /** Current beat, valid after {@link #next()} returned true */
+    CompactHeartbeat beat();
+}
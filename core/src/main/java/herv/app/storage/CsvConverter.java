@@ -0,0 +1,172 @@
+package herv.app.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.model.TimestampFormatter;
+
+/**
+ * Converts the csv scratch files into the binary stream of {@link EventEncoder}: rr*.csv rows
+ * ("dt, hr") become heartbeats without RR, act*.csv rows ("dt,type,activity,posture") become
+ * activities. Blank and malformed lines are skipped and counted.
+ */
+public class CsvConverter {
+
+    private final TimestampFormatter formatter;
+    private final int[] noRR = new int[0];
+    private long converted;
+    private long skipped;
+
+    public CsvConverter() {
+        this(TimestampFormatter.getDefault());
+    }
+
+    public CsvConverter(TimestampFormatter formatter) {
+        this.formatter = formatter;
+    }
+
+    /**
+     * Sorted by day (rrYYMMDDHH.csv, actYYMMDD.csv), then heartbeats of a day before its
+     * activities, so the timestamps of the stream mostly go forward
+     * @return the rr and act csv files of dir, oldest first
+     */
+    public static File[] listConvertible(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                String name = f.getName();
+                return f.isFile() && name.endsWith(".csv") && (name.startsWith("rr") || name.startsWith("act"));
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files, BY_DAY);
+        return files;
+    }
+
+    private final static Comparator<File> BY_DAY = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            String nameA = a.getName();
+            String nameB = b.getName();
+            int c = day(nameA).compareTo(day(nameB));
+            if (c != 0) return c;
+            // "rr" sorts after "act": heartbeats go first
+            c = -Boolean.compare(nameA.startsWith("rr"), nameB.startsWith("rr"));
+            if (c != 0) return c;
+            return nameA.compareTo(nameB);
+        }
+    };
+
+    /**
+     * @return the YYMMDD of a rr or act file name, or what follows the prefix if shorter
+     */
+    private static String day(String name) {
+        int start = name.startsWith("rr") ? 2 : 3;
+        int end = Math.min(start + 6, name.length() - ".csv".length());
+        return name.substring(start, Math.max(start, end));
+    }
+
+    /**
+     * Appends the rows of csv to encoder
+     */
+    public void convert(File csv, EventEncoder encoder) throws IOException {
+        boolean activities = csv.getName().startsWith("act");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"), 64 * 1024);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) continue;
+                boolean ok = activities ? convertActivity(line, encoder) : convertHeartbeat(line, encoder);
+                if (ok) converted++;
+                else skipped++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean convertHeartbeat(String line, EventEncoder encoder) throws IOException {
+        CompactHeartbeat beat = parseHeartbeat(line);
+        if (beat == null) return false;
+        encoder.write(beat);
+        return true;
+    }
+
+    /**
+     * Parses a rr*.csv row, "dt, hr"
+     * @return the heartbeat, without RR, or null if the line is not a valid row
+     */
+    public CompactHeartbeat parseHeartbeat(String line) {
+        long ts = formatter.parse(line, 0);
+        int comma = line.indexOf(',', 19);
+        if (ts < 0 || comma < 0) return null;
+        int hr = 0;
+        int digits = 0;
+        for (int i = comma + 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hr = hr * 10 + c - '0';
+                if (++digits > 3) return null;
+            } else if (c != ' ' || digits > 0) {
+                return null;
+            }
+        }
+        if (digits == 0) return null;
+        return new CompactHeartbeat(ts, hr, noRR);
+    }
+
+    private boolean convertActivity(String line, EventEncoder encoder) throws IOException {
+        String[] fields = line.split(",", -1);
+        long ts = formatter.parse(fields[0], 0);
+        if (ts < 0 || fields.length < 2) return false;
+        String type = fields[1].trim();
+        if (!Event.TP_START.equals(type) && !Event.TP_STOP.equals(type)) return false;
+        String name = fields.length > 2 ? fields[2].trim() : "";
+        String posture = fields.length > 3 ? fields[3].trim() : "";
+        encoder.write(new DailyActivity(type, name, posture, new Date(ts)));
+        return true;
+    }
+
+    /** Rows converted so far */
+    public long getConvertedCount() { return converted; }
+
+    /** Lines that were not valid rows */
+    public long getSkippedCount() { return skipped; }
+
+    /**
+     * Converts every csv file of a HeRV folder into one event stream
+     * Usage: CsvConverter &lt;HeRV folder&gt; &lt;output file&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CsvConverter <HeRV folder> <output file>");
+            System.exit(2);
+        }
+        File[] files = listConvertible(new File(args[0]));
+        long csvBytes = 0;
+        CsvConverter converter = new CsvConverter();
+        EventEncoder encoder = new EventEncoder(new BufferedOutputStream(new FileOutputStream(args[1])), 0);
+        try {
+            for (File f : files) {
+                csvBytes += f.length();
+                converter.convert(f, encoder);
+            }
+        } finally {
+            encoder.close();
+        }
+        System.err.println(converter.getConvertedCount() + " rows, " + converter.getSkippedCount()
+                + " skipped, " + csvBytes + " bytes of csv to " + new File(args[1]).length());
+    }
+}
@@ -0,0 +1,113 @@
+package herv.app.storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import herv.app.model.Event;
+
+/**
+ * Appends events as csv lines to the scratch files chosen by a {@link FileRouter}.
+ * Files stay open between batches and are closed after being idle for a while, so the hourly
+ * rr files are released once the hour is over.
+ */
+public class CsvEventStore implements EventStore {
+
+    private final static long IDLE_CLOSE_MILLIS = 60 * 1000;
+
+    private final File dir;
+    private final FileRouter router;
+    private final Map<String, OpenFile> files = new HashMap<String, OpenFile>();
+
+    private static final class OpenFile {
+        final Writer writer;
+        long lastWrite;
+        boolean dirty;
+
+        OpenFile(Writer writer) {
+            this.writer = writer;
+        }
+    }
+
+    public CsvEventStore(File dir) {
+        this(dir, new ScratchFileRouter());
+    }
+
+    public CsvEventStore(File dir, FileRouter router) {
+        this.dir = dir;
+        this.router = router;
+    }
+
+    @Override
+    public void append(Event event) throws IOException {
+        String line = event.toCSV();
+        if (line.length() == 0) return;
+        OpenFile file = open(router.fileFor(event));
+        // scratch files have always been written with the new line before the data
+        file.writer.write('\n');
+        file.writer.write(line);
+        file.lastWrite = System.currentTimeMillis();
+        file.dirty = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        IOException failure = null;
+        for (OpenFile file : files.values()) {
+            if (!file.dirty) continue;
+            try {
+                file.writer.flush();
+                file.dirty = false;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void idle(long now) {
+        Iterator<OpenFile> it = files.values().iterator();
+        while (it.hasNext()) {
+            OpenFile file = it.next();
+            if (now - file.lastWrite > IDLE_CLOSE_MILLIS) {
+                closeQuietly(file.writer);
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (OpenFile file : files.values()) {
+            closeQuietly(file.writer);
+        }
+        files.clear();
+    }
+
+    private OpenFile open(String name) throws IOException {
+        OpenFile file = files.get(name);
+        if (file == null) {
+            if (!dir.exists()) dir.mkdirs();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(dir, name), true), "UTF-8"));
+            file = new OpenFile(writer);
+            files.put(name, file);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(Writer writer) {
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package herv.app.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.model.RrQuality;
+
+/**
+ * Reads the stream written by {@link EventEncoder}, one event at a time.
+ * Usage: {@code while ((type = decoder.next()) != END) { decoder.heartbeat() or decoder.activity() }}
+ *
+ * Not thread safe.
+ */
+public class EventDecoder {
+
+    public final static int END = 0;
+    public final static int HEARTBEAT = 1;
+    public final static int ACTIVITY = 2;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+
+    private long lastTimestamp;
+    private int lastRR;
+    private final List<String> dictionary = new ArrayList<String>();
+
+    private CompactHeartbeat heartbeat;
+    private DailyActivity activity;
+
+    /**
+     * Reads the header
+     * @throws IOException if the stream does not start with one
+     */
+    public EventDecoder(InputStream in) throws IOException {
+        this.in = in;
+        if (readInt() != EventEncoder.MAGIC) throw new IOException("Not an event stream");
+        lastTimestamp = (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads the next event
+     * @return its type, {@link #HEARTBEAT} or {@link #ACTIVITY}, or {@link #END}
+     */
+    public int next() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) return END;
+            int tag = buffer[position++] & 0xFF;
+            int kind = tag >>> 4;
+            switch (kind) {
+                case EventEncoder.KIND_HEARTBEAT:
+                case EventEncoder.KIND_HEARTBEAT_QUALITY:
+                case EventEncoder.KIND_HEARTBEAT_CORRECTED:
+                    readHeartbeat(tag, kind);
+                    return HEARTBEAT;
+                case EventEncoder.KIND_START:
+                case EventEncoder.KIND_STOP:
+                    long timestamp = readTimestamp();
+                    String name = word(readVarint());
+                    String posture = word(readVarint());
+                    activity = new DailyActivity(kind == EventEncoder.KIND_START ? Event.TP_START : Event.TP_STOP,
+                            name, posture, new Date(timestamp));
+                    return ACTIVITY;
+                case EventEncoder.KIND_STRING:
+                    byte[] bytes = new byte[readVarint()];
+                    for (int i = 0; i < bytes.length; i++) bytes[i] = readByte();
+                    dictionary.add(new String(bytes, EventEncoder.UTF8));
+                    break;
+                default:
+                    throw new IOException("Unknown event kind " + kind);
+            }
+        }
+    }
+
+    /** Heartbeat read by the last {@link #next()} */
+    public CompactHeartbeat heartbeat() { return heartbeat; }
+
+    /** Activity read by the last {@link #next()} */
+    public DailyActivity activity() { return activity; }
+
+    private void readHeartbeat(int tag, int kind) throws IOException {
+        long timestamp = readTimestamp();
+        int hr = readVarint() - 1;
+        int n = tag & 0x0F;
+        if (n == EventEncoder.COUNT_FOLLOWS) n = readVarint();
+        int[] rr = new int[n];
+        for (int i = 0; i < n; i++) {
+            int v = readVarint();
+            lastRR += (v >>> 1) ^ -(v & 1);
+            rr[i] = lastRR;
+        }
+        byte[] quality = null;
+        if (kind != EventEncoder.KIND_HEARTBEAT && n > 0) {
+            quality = new byte[n];
+            for (int i = 0; i < n; i++) quality[i] = readByte();
+        }
+        int[] corrected = null;
+        if (kind == EventEncoder.KIND_HEARTBEAT_CORRECTED && n > 0) {
+            corrected = new int[n];
+            for (int i = 0; i < n; i++) {
+                corrected[i] = quality[i] == RrQuality.CORRECTED ? readVarint() : CompactHeartbeat.NO_RR;
+            }
+        }
+        heartbeat = new CompactHeartbeat(null, timestamp, hr, rr, quality, corrected);
+    }
+
+    private String word(int id) throws IOException {
+        if (id < 0 || id >= dictionary.size()) throw new IOException("Unknown string " + id);
+        return dictionary.get(id);
+    }
+
+    private long readTimestamp() throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+            if (shift > 63) throw new IOException("Malformed varint");
+        }
+        lastTimestamp += (v >>> 1) ^ -(v & 1);
+        return lastTimestamp;
+    }
+
+    private int readVarint() throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = readByte();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) return v;
+            if (shift > 28) throw new IOException("Malformed varint");
+        }
+    }
+
+    private int readInt() throws IOException {
+        return (readByte() & 0xFF) << 24 | (readByte() & 0xFF) << 16 | (readByte() & 0xFF) << 8 | (readByte() & 0xFF);
+    }
+
+    private byte readByte() throws IOException {
+        if (position == limit && !fill()) throw new EOFException("Truncated event stream");
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) return false;
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
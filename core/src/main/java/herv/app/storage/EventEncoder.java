@@ -0,0 +1,200 @@
+package herv.app.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.model.Heartbeat;
+import herv.app.model.RrQuality;
+
+/**
+ * Writes events as a compact binary stream, read back by {@link EventDecoder}.
+ *
+ * Header: [int magic "HEV1"][long base timestamp]. Then one record per event, starting with a
+ * tag byte whose high nibble is the kind and, for heartbeats, whose low nibble is the number of
+ * RR intervals (15 meaning the count follows as a varint):
+ * <ul>
+ * <li>heartbeat: [tag][zigzag varint ms since the previous event][varint hr + 1][count?]
+ * [zigzag varint difference with the previous RR, per RR], then [byte quality] per RR for
+ * {@link #KIND_HEARTBEAT_QUALITY}, and also [varint ms] per corrected RR (the value the
+ * artifact filter replaced it with) for {@link #KIND_HEARTBEAT_CORRECTED}</li>
+ * <li>activity START/STOP: [tag][zigzag varint ms since the previous event]
+ * [varint activity id][varint posture id]</li>
+ * <li>string: [tag][varint length][UTF-8 bytes], defines the next id of the dictionary, written
+ * the first time an activity or posture name is used</li>
+ * </ul>
+ * The first timestamp is relative to the base. A beat a second after the previous one with one
+ * RR interval close to the previous takes 5 or 6 bytes instead of about 25 in the csv files.
+ *
+ * Used where events are read back in order from the start: the {@link EventQueue} spill files
+ * and the exports of {@link CsvConverter}. The {@link SegmentLog} keeps {@link HeartbeatCodec}
+ * records, which decode on their own, as needed to start reading at any indexed offset; the
+ * upload bodies are text (herv.app.upload.BatchEncoder), the format the server accepts.
+ *
+ * Not thread safe.
+ */
+public class EventEncoder {
+
+    public final static int MAGIC = 0x48455631; // "HEV1"
+    public final static int KIND_HEARTBEAT = 1;
+    public final static int KIND_HEARTBEAT_QUALITY = 2;
+    public final static int KIND_START = 3;
+    public final static int KIND_STOP = 4;
+    public final static int KIND_STRING = 5;
+    public final static int KIND_HEARTBEAT_CORRECTED = 6;
+    final static int COUNT_FOLLOWS = 15;
+    final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int length;
+
+    private long lastTimestamp;
+    private int lastRR;
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    private long events;
+
+    /**
+     * Writes the header; timestamps are encoded relative to baseTimestamp
+     */
+    public EventEncoder(OutputStream out, long baseTimestamp) throws IOException {
+        this.out = out;
+        this.lastTimestamp = baseTimestamp;
+        ensure(12);
+        putInt(MAGIC);
+        putInt((int) (baseTimestamp >>> 32));
+        putInt((int) baseTimestamp);
+    }
+
+    /**
+     * Writes a heartbeat; other events are not supported
+     */
+    public void write(Event event) throws IOException {
+        if (event instanceof CompactHeartbeat) {
+            write((CompactHeartbeat) event);
+        } else if (event instanceof Heartbeat) {
+            write(CompactHeartbeat.of((Heartbeat) event));
+        } else {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getType());
+        }
+    }
+
+    public void write(CompactHeartbeat beat) throws IOException {
+        int n = beat.getRRCount();
+        // tag, timestamp, heart rate, count, and up to 5 + 1 + 5 bytes per RR
+        ensure(1 + 10 + 5 + 5 + 11 * n);
+        int kind = beat.hasCorrections() ? KIND_HEARTBEAT_CORRECTED
+                : beat.hasQuality() ? KIND_HEARTBEAT_QUALITY : KIND_HEARTBEAT;
+        buffer[length++] = (byte) (kind << 4 | Math.min(n, COUNT_FOLLOWS));
+        putTimestamp(beat.getTimestamp());
+        putVarint(beat.getHeartRate() + 1);
+        if (n >= COUNT_FOLLOWS) putVarint(n);
+        for (int i = 0; i < n; i++) {
+            int rr = beat.getRR(i);
+            putVarint(zigzag(rr - lastRR));
+            lastRR = rr;
+        }
+        if (kind != KIND_HEARTBEAT) {
+            for (int i = 0; i < n; i++) {
+                buffer[length++] = beat.getQuality(i);
+            }
+        }
+        if (kind == KIND_HEARTBEAT_CORRECTED) {
+            for (int i = 0; i < n; i++) {
+                if (beat.getQuality(i) == RrQuality.CORRECTED) putVarint(beat.getCorrectedMillis(i));
+            }
+        }
+        events++;
+    }
+
+    public void write(DailyActivity activity) throws IOException {
+        int name = idOf(String.valueOf(activity.getActivityName()));
+        int posture = idOf(activity.getPosture() == null ? "" : activity.getPosture());
+        ensure(1 + 10 + 5 + 5);
+        int kind = Event.TP_START.equals(activity.getType()) ? KIND_START : KIND_STOP;
+        buffer[length++] = (byte) (kind << 4);
+        putTimestamp(activity.getDt().getTime());
+        putVarint(name);
+        putVarint(posture);
+        events++;
+    }
+
+    /**
+     * Writes the buffered records to the stream
+     */
+    public void flush() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    /** Events written */
+    public long getEventCount() { return events; }
+
+    private int idOf(String s) throws IOException {
+        Integer id = dictionary.get(s);
+        if (id != null) return id;
+        byte[] bytes = s.getBytes(UTF8);
+        ensure(1 + 5 + bytes.length);
+        buffer[length++] = (byte) (KIND_STRING << 4);
+        putVarint(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        id = dictionary.size();
+        dictionary.put(s, id);
+        return id;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (length + bytes <= buffer.length) return;
+        out.write(buffer, 0, length);
+        length = 0;
+        if (bytes > buffer.length) throw new IOException("Event too large: " + bytes + " bytes");
+    }
+
+    private void putTimestamp(long timestamp) {
+        putVarlong(zigzag(timestamp - lastTimestamp));
+        lastTimestamp = timestamp;
+    }
+
+    private void putInt(int v) {
+        buffer[length++] = (byte) (v >>> 24);
+        buffer[length++] = (byte) (v >>> 16);
+        buffer[length++] = (byte) (v >>> 8);
+        buffer[length++] = (byte) v;
+    }
+
+    private void putVarint(int v) {
+        while ((v & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    private void putVarlong(long v) {
+        while ((v & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+}
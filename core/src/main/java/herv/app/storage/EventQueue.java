@@ -0,0 +1,331 @@
+package herv.app.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import herv.app.metrics.Gauge;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.Event;
+import herv.app.pipeline.RingBuffer;
+import herv.app.trace.Trace;
+
+/**
+ * Bounded queue of events between two stages of the pipeline (ingest to the writer, writer to
+ * the uploader), with an explicit policy for when the consumer falls behind and the ring is
+ * full:
+ * <ul>
+ *     <li>{@link #DROP}: the new event is dropped and counted</li>
+ *     <li>{@link #BLOCK}: the producer waits for room, at most the block timeout, then drops</li>
+ *     <li>{@link #COALESCE}: only the latest overflowing event is kept, delivered once the ring
+ *     is empty; the ones it replaced are counted</li>
+ *     <li>{@link #SPILL}: the overflow is appended to a spill file with {@link EventEncoder}
+ *     (heartbeats only, others are dropped)
+ *     and read back, in order, once the ring is empty. Every event offered while the spill
+ *     file is not read back yet goes to it too, so the consumer sees them in order.</li>
+ * </ul>
+ * Whatever the policy, memory is the ring plus one buffer, however long the consumer is
+ * stuck. A spill file left by a killed process is read back first when the queue is created.
+ *
+ * Many producers, a single consumer, as {@link RingBuffer}. Depth and overflow counts are
+ * exposed as gauges "&lt;name&gt;.queue", ".dropped", ".coalesced", ".spilled" and ".blocked".
+ */
+public class EventQueue {
+
+    public final static int DROP = 0;
+    public final static int BLOCK = 1;
+    public final static int COALESCE = 2;
+    public final static int SPILL = 3;
+
+    public final static long DEFAULT_BLOCK_MILLIS = 100;
+    private final static long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+    private final RingBuffer<Event> ring;
+    private final int policy;
+    private final long blockNanos;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    // COALESCE
+    private final AtomicReference<Event> latest = new AtomicReference<Event>();
+
+    // SPILL: written by the producers under the lock
+    private final File spillFile;
+    private final Object spillLock = new Object();
+    private EventEncoder spillOut;
+    private volatile boolean spilling;
+    private final AtomicLong spillPending = new AtomicLong();
+    // read back by the consumer only
+    private final List<File> toDrain = new ArrayList<File>();
+    private EventDecoder draining;
+    private File drainingFile;
+    // spill files read back are named "<spill file>.<sequence>"
+    private long drainSequence;
+
+    public EventQueue(String name, int capacity, int policy) {
+        this(name, capacity, policy, null, DEFAULT_BLOCK_MILLIS);
+    }
+
+    /**
+     * @param spillFile required by {@link #SPILL}, ignored otherwise
+     * @param blockMillis longest wait of a producer with {@link #BLOCK}
+     */
+    public EventQueue(String name, int capacity, int policy, File spillFile, long blockMillis) {
+        if (policy == SPILL && spillFile == null) throw new IllegalArgumentException("No spill file for " + name);
+        this.name = name;
+        this.ring = new RingBuffer<Event>(capacity);
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        if (policy == SPILL) recoverSpill();
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.gauge(name + ".queue", new Gauge() {
+            @Override
+            public long get() { return size(); }
+        });
+        metrics.gauge(name + ".dropped", new Gauge() {
+            @Override
+            public long get() { return dropped.get(); }
+        });
+        metrics.gauge(name + ".coalesced", new Gauge() {
+            @Override
+            public long get() { return coalesced.get(); }
+        });
+        metrics.gauge(name + ".spilled", new Gauge() {
+            @Override
+            public long get() { return spilled.get(); }
+        });
+        metrics.gauge(name + ".blocked", new Gauge() {
+            @Override
+            public long get() { return blocked.get(); }
+        });
+    }
+
+    /**
+     * Queues the event, applying the policy if the ring is full
+     * @return false if the event was dropped
+     */
+    public boolean offer(Event event) {
+        if (policy == SPILL && spilling) return spill(event);
+        if (ring.offer(event)) return true;
+        switch (policy) {
+            case BLOCK:
+                blocked.incrementAndGet();
+                long deadline = System.nanoTime() + blockNanos;
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (ring.offer(event)) return true;
+                }
+                break;
+            case COALESCE:
+                if (latest.getAndSet(event) != null) coalesced.incrementAndGet();
+                return true;
+            case SPILL:
+                return spill(event);
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Removes the next event. Consumer thread only.
+     * @return null if the queue is empty
+     */
+    public Event poll() {
+        if (draining != null || !toDrain.isEmpty()) {
+            Event event = pollSpill();
+            if (event != null) return event;
+        }
+        Event event = ring.poll();
+        if (event != null) return event;
+        if (policy == COALESCE) return latest.getAndSet(null);
+        if (spilling) {
+            swapSpill();
+            return pollSpill();
+        }
+        return null;
+    }
+
+    /**
+     * Moves as many events as fit in dst to it. Consumer thread only.
+     * @return number of events moved
+     */
+    public int drainTo(Event[] dst) {
+        int n = 0;
+        Event e;
+        while (n < dst.length && (e = poll()) != null) {
+            dst[n++] = e;
+        }
+        return n;
+    }
+
+    /** Approximate number of events waiting, in the ring and spilled */
+    public int size() {
+        long size = ring.size() + spillPending.get() + (latest.get() != null ? 1 : 0);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Consumer thread only, counts spill files left by a previous process
+     */
+    public boolean isEmpty() {
+        return size() == 0 && draining == null && toDrain.isEmpty();
+    }
+
+    public int capacity() {
+        return ring.capacity();
+    }
+
+    public int getPolicy() { return policy; }
+
+    public String getName() { return name; }
+
+    /** Events dropped by the policy */
+    public long getDroppedCount() { return dropped.get(); }
+
+    /** Events replaced by a later one with {@link #COALESCE} */
+    public long getCoalescedCount() { return coalesced.get(); }
+
+    /** Events written to the spill file */
+    public long getSpilledCount() { return spilled.get(); }
+
+    /** Times a producer had to wait for room with {@link #BLOCK} */
+    public long getBlockedCount() { return blocked.get(); }
+
+    //region spill
+
+    private boolean spill(Event event) {
+        synchronized (spillLock) {
+            try {
+                if (spillOut == null) {
+                    spillOut = new EventEncoder(new FileOutputStream(spillFile), System.currentTimeMillis());
+                    spilling = true;
+                    Trace.getDefault().record(Trace.WARN, Trace.EV_SPILL, ring.size());
+                }
+                spillOut.write(event);
+                spilled.incrementAndGet();
+                spillPending.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Closes the spill file and queues it to be read back; later events go to the ring again
+     */
+    private void swapSpill() {
+        synchronized (spillLock) {
+            if (spillOut == null) return;
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            spillOut = null;
+            spilling = false;
+            File file = drainFile(++drainSequence);
+            if (spillFile.renameTo(file)) {
+                toDrain.add(file);
+            } else {
+                dropped.addAndGet(spillPending.getAndSet(0));
+                spillFile.delete();
+            }
+        }
+    }
+
+    private Event pollSpill() {
+        while (true) {
+            try {
+                if (draining == null) {
+                    if (toDrain.isEmpty()) return null;
+                    drainingFile = toDrain.remove(0);
+                    draining = new EventDecoder(new FileInputStream(drainingFile));
+                }
+                int type;
+                while ((type = draining.next()) == EventDecoder.ACTIVITY) {
+                    // only heartbeats are spilled
+                }
+                if (type == EventDecoder.HEARTBEAT) {
+                    if (spillPending.get() > 0) spillPending.decrementAndGet();
+                    return draining.heartbeat();
+                }
+            } catch (IOException e) {
+                // cut by a crash while spilling, what was read is kept
+                e.printStackTrace();
+            }
+            closeDraining();
+        }
+    }
+
+    private void closeDraining() {
+        if (draining != null) {
+            try {
+                draining.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            draining = null;
+        }
+        if (drainingFile != null) {
+            if (!drainingFile.delete()) drainingFile.deleteOnExit();
+            drainingFile = null;
+        }
+    }
+
+    /**
+     * Queues the files a killed process did not read back, oldest first
+     */
+    private void recoverSpill() {
+        File dir = spillFile.getAbsoluteFile().getParentFile();
+        String[] names = dir != null ? dir.list() : null;
+        if (names != null) {
+            String prefix = spillFile.getName() + ".";
+            List<Long> sequences = new ArrayList<Long>();
+            for (String n : names) {
+                if (!n.startsWith(prefix)) continue;
+                try {
+                    sequences.add(Long.parseLong(n.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a spill file
+                }
+            }
+            Collections.sort(sequences);
+            for (Long sequence : sequences) {
+                toDrain.add(drainFile(sequence));
+                drainSequence = Math.max(drainSequence, sequence);
+            }
+        }
+        if (spillFile.length() > 0) {
+            File file = drainFile(++drainSequence);
+            if (spillFile.renameTo(file)) toDrain.add(file);
+        } else {
+            // killed before its first buffer was written
+            spillFile.delete();
+        }
+    }
+
+    private File drainFile(long sequence) {
+        return new File(spillFile.getPath() + "." + sequence);
+    }
+
+    //endregion
+}
@@ -0,0 +1,25 @@
+package herv.app.storage;
+
+import java.io.IOException;
+
+import herv.app.model.Event;
+
+/**
+ * Where {@link EventWriter} persists events. Only ever called from the writer thread.
+ */
+public interface EventStore {
+
+    void append(Event event) throws IOException;
+
+    /**
+     * Called once after each batch of appends (group commit)
+     */
+    void flush() throws IOException;
+
+    /**
+     * Called when the writer thread is idle, for housekeeping such as closing files or syncing
+     */
+    void idle(long now) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,222 @@
+package herv.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import herv.app.metrics.Gauge;
+import herv.app.metrics.LatencyHistogram;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.Event;
+import herv.app.trace.Trace;
+
+/**
+ * Single writer thread persisting events to an {@link EventStore}.
+ *
+ * Producers (the GATT callback thread) only put the event in a bounded {@link EventQueue},
+ * whose policy decides what happens when the writer falls behind (dropped by default), and
+ * return. The writer thread wakes up every flush interval, drains everything that arrived,
+ * appends it to the store and flushes the store once per batch (group commit).
+ *
+ * Append and flush times, and the age of each beat once flushed (from its notification to
+ * bytes on disk), are recorded in the {@link MetricsRegistry} as "store.append",
+ * "store.flush" and "store.latency", with the counts as gauges. Every flush is
+ * traced at {@link Trace#DEBUG} and a failed write is traced as a problem.
+ */
+public class EventWriter implements Runnable {
+
+    public final static int DEFAULT_CAPACITY = 4096;
+    public final static long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    private final static int BATCH_SIZE = 256;
+
+    /**
+     * Called from the writer thread for every event appended to the store
+     */
+    public interface Listener {
+        void onWritten(Event event);
+    }
+
+    private final EventStore store;
+    private final EventQueue queue;
+    private final long flushIntervalNanos;
+    private final Event[] batch = new Event[BATCH_SIZE];
+    // notification times of the heartbeats of the batch, for their latency once flushed
+    private final long[] beatTimes = new long[BATCH_SIZE];
+
+    private final LatencyHistogram appendTime;
+    private final LatencyHistogram flushTime;
+    private final LatencyHistogram latency;
+    private final Trace trace = Trace.getDefault();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile Listener listener;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Writer for the csv scratch files in dir
+     */
+    public EventWriter(File dir) {
+        this(new CsvEventStore(dir));
+    }
+
+    public EventWriter(EventStore store) {
+        this(store, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public EventWriter(EventStore store, int capacity, long flushIntervalMillis) {
+        this(store, new EventQueue("writer", capacity, EventQueue.DROP), flushIntervalMillis);
+    }
+
+    /**
+     * @param queue between the producers and the writer thread, with its overflow policy
+     */
+    public EventWriter(EventStore store, EventQueue queue, long flushIntervalMillis) {
+        this.store = store;
+        this.queue = queue;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.appendTime = metrics.histogram("store.append");
+        this.flushTime = metrics.histogram("store.flush");
+        this.latency = metrics.histogram("store.latency");
+        metrics.gauge("writer.written", new Gauge() {
+            @Override
+            public long get() { return written.get(); }
+        });
+        metrics.gauge("writer.failed", new Gauge() {
+            @Override
+            public long get() { return failed.get(); }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "herv-event-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the event to be written. Only blocks with the {@link EventQueue#BLOCK} policy.
+     * @return false if the queue is full and the event was dropped
+     */
+    public boolean submit(Event event) {
+        return queue.offer(event);
+    }
+
+    /**
+     * Stops the writer thread after writing every queued event and closes the store
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                int n = writeBatch();
+                if (n < batch.length) {
+                    try {
+                        store.idle(System.currentTimeMillis());
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        e.printStackTrace();
+                    }
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                }
+            }
+            while (writeBatch() > 0) {
+                // drain what was queued before close
+            }
+        } finally {
+            try {
+                store.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Drains one batch of events, appends them and flushes the store
+     * @return number of events drained
+     */
+    int writeBatch() {
+        int n = queue.drainTo(batch);
+        if (n == 0) return 0;
+        Listener l = listener;
+        int beats = 0;
+        for (int i = 0; i < n; i++) {
+            Event event = batch[i];
+            batch[i] = null;
+            try {
+                long start = System.nanoTime();
+                store.append(event);
+                appendTime.recordSince(start);
+                if (event instanceof CompactHeartbeat) {
+                    beatTimes[beats++] = ((CompactHeartbeat) event).getTimestamp();
+                }
+                written.incrementAndGet();
+                if (l != null) l.onWritten(event);
+            } catch (IOException e) {
+                trace.record(Trace.ERROR, Trace.EV_STORE_FAILED, failed.incrementAndGet());
+                e.printStackTrace();
+            } catch (IllegalArgumentException e) {
+                trace.record(Trace.ERROR, Trace.EV_STORE_FAILED, failed.incrementAndGet());
+                e.printStackTrace();
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            store.flush();
+            long elapsed = System.nanoTime() - start;
+            flushTime.record(elapsed);
+            trace.record(Trace.DEBUG, Trace.EV_FLUSH, n, elapsed / 1000);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < beats; i++) {
+                latency.record(TimeUnit.MILLISECONDS.toNanos(now - beatTimes[i]));
+            }
+        } catch (IOException e) {
+            trace.record(Trace.ERROR, Trace.EV_STORE_FAILED, failed.incrementAndGet());
+            e.printStackTrace();
+        }
+        return n;
+    }
+
+    /** Number of events appended to the store */
+    public long getWrittenCount() { return written.get(); }
+
+    /** Number of events rejected because the queue was full */
+    public long getDroppedCount() { return queue.getDroppedCount(); }
+
+    /** Number of append, flush or sync errors */
+    public long getFailedCount() { return failed.get(); }
+
+    /** Approximate number of events waiting to be written */
+    public int getQueueSize() { return queue.size(); }
+
+    public EventQueue getQueue() { return queue; }
+}
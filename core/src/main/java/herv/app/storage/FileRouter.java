@@ -0,0 +1,14 @@
+package herv.app.storage;
+
+import herv.app.model.Event;
+
+/**
+ * Decides in which file of the HeRV folder an event is stored
+ */
+public interface FileRouter {
+
+    /**
+     * @return name of the file (relative to the HeRV folder) for the event
+     */
+    String fileFor(Event event);
+}
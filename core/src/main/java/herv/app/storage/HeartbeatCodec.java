@@ -0,0 +1,83 @@
+package herv.app.storage;
+
+import java.nio.ByteBuffer;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+
+/**
+ * Binary form of a heartbeat used for {@link SegmentLog} records:
+ * [byte type][long timestamp][short heart rate][byte n][n x ushort RR]
+ * followed, for {@link #TYPE_HEARTBEAT_QUALITY}, by [n x byte RrQuality], and for
+ * {@link #TYPE_HEARTBEAT_CORRECTED} by the qualities and [ushort ms] for each corrected RR,
+ * the value the artifact filter replaced it with.
+ * Unlike the smaller delta encoding of {@link EventEncoder}, a record does not depend on the
+ * previous one, so a reader can start at any record the {@link TimeIndex} points to.
+ */
+public final class HeartbeatCodec {
+
+    public final static byte TYPE_HEARTBEAT = 1;
+    public final static byte TYPE_HEARTBEAT_QUALITY = 2;
+    public final static byte TYPE_HEARTBEAT_CORRECTED = 3;
+
+    /** Largest encoded heartbeat, with 255 corrected RR intervals */
+    public final static int MAX_SIZE = 1 + 8 + 2 + 1 + 5 * 255;
+
+    private HeartbeatCodec() {}
+
+    public static void encode(CompactHeartbeat beat, ByteBuffer out) {
+        int n = Math.min(beat.getRRCount(), 255);
+        out.put(beat.hasCorrections() ? TYPE_HEARTBEAT_CORRECTED
+                : beat.hasQuality() ? TYPE_HEARTBEAT_QUALITY : TYPE_HEARTBEAT);
+        out.putLong(beat.getTimestamp());
+        out.putShort((short) beat.getHeartRate());
+        out.put((byte) n);
+        for (int i = 0; i < n; i++) {
+            out.putShort((short) beat.getRR(i));
+        }
+        if (beat.hasQuality()) {
+            for (int i = 0; i < n; i++) {
+                out.put(beat.getQuality(i));
+            }
+        }
+        if (beat.hasCorrections()) {
+            for (int i = 0; i < n; i++) {
+                if (beat.getQuality(i) != RrQuality.CORRECTED) continue;
+                out.putShort((short) beat.getCorrectedMillis(i));
+            }
+        }
+    }
+
+    /**
+     * @return the decoded heartbeat, or null if the record is not a heartbeat
+     */
+    public static CompactHeartbeat decode(ByteBuffer in) {
+        if (in.remaining() < 12) return null;
+        byte type = in.get(in.position());
+        if (type != TYPE_HEARTBEAT && type != TYPE_HEARTBEAT_QUALITY && type != TYPE_HEARTBEAT_CORRECTED) {
+            return null;
+        }
+        in.get();
+        long timestamp = in.getLong();
+        int hr = in.getShort();
+        int n = in.get() & 0xFF;
+        int[] rr = new int[n];
+        for (int i = 0; i < n; i++) {
+            rr[i] = in.getShort() & 0xFFFF;
+        }
+        byte[] quality = null;
+        if (type != TYPE_HEARTBEAT && n > 0) {
+            quality = new byte[n];
+            in.get(quality);
+        }
+        int[] corrected = null;
+        if (type == TYPE_HEARTBEAT_CORRECTED && n > 0) {
+            corrected = new int[n];
+            for (int i = 0; i < n; i++) {
+                corrected[i] = quality[i] == RrQuality.CORRECTED
+                        ? in.getShort() & 0xFFFF : CompactHeartbeat.NO_RR;
+            }
+        }
+        return new CompactHeartbeat(null, timestamp, hr, rr, quality, corrected);
+    }
+}
@@ -0,0 +1,75 @@
+package herv.app.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.Event;
+
+/**
+ * Stores heartbeats as {@link HeartbeatCodec} records in a {@link SegmentLog}.
+ * Records are written on every flush and forced to disk at most once per sync interval.
+ * If given a {@link TimeIndex}, it is told where each record went so ranges can be read back.
+ */
+public class LogEventStore implements EventStore {
+
+    public final static long DEFAULT_SYNC_INTERVAL_MILLIS = 10 * 1000;
+
+    private final SegmentLog log;
+    private final TimeIndex index;
+    private final long syncIntervalMillis;
+    private final ByteBuffer buffer = ByteBuffer.allocate(HeartbeatCodec.MAX_SIZE);
+    private long lastSync;
+
+    public LogEventStore(SegmentLog log) {
+        this(log, null, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public LogEventStore(SegmentLog log, TimeIndex index) {
+        this(log, index, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public LogEventStore(SegmentLog log, TimeIndex index, long syncIntervalMillis) {
+        this.log = log;
+        this.index = index;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    @Override
+    public void append(Event event) throws IOException {
+        if (!(event instanceof CompactHeartbeat)) {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getType());
+        }
+        buffer.clear();
+        HeartbeatCodec.encode((CompactHeartbeat) event, buffer);
+        buffer.flip();
+        long sequence = log.append(buffer);
+        if (index != null) {
+            index.onAppend(log.getActiveBaseSequence(), log.getLastOffset(), sequence,
+                    ((CompactHeartbeat) event).getTimestamp());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        log.flush();
+    }
+
+    @Override
+    public void idle(long now) throws IOException {
+        if (now - lastSync >= syncIntervalMillis) {
+            log.sync();
+            lastSync = now;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    public SegmentLog getLog() { return log; }
+
+    /** null if the log is not indexed */
+    public TimeIndex getIndex() { return index; }
+}
@@ -0,0 +1,90 @@
+package herv.app.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summary of the beats of one time bucket (a second, a minute or an hour) in the
+ * {@link RollupStore}. Every field is additive (or a min/max), so rollups of the same bucket
+ * written at different times, or of finer buckets, merge exactly.
+ *
+ * Fixed width record of {@link #RECORD_SIZE} bytes: [int hr count][int hr sum][short hr min]
+ * [short hr max][int beats][int successive differences][long sum of squared differences].
+ * An all zero record is an empty bucket.
+ */
+public class Rollup {
+
+    public final static int RECORD_SIZE = 28;
+
+    /** Start of the bucket, epoch millis */
+    public long start;
+    public long resolutionMillis;
+    /** Heart rate measurements in the bucket */
+    public int hrCount;
+    public int hrSum;
+    public int hrMin;
+    public int hrMax;
+    /** RR intervals in the bucket */
+    public int beats;
+    /** Successive differences between valid RR intervals, in ms */
+    public int diffCount;
+    public long diffSquares;
+
+    public boolean isEmpty() {
+        return hrCount == 0 && beats == 0;
+    }
+
+    public void clear() {
+        hrCount = hrSum = hrMin = hrMax = beats = diffCount = 0;
+        diffSquares = 0;
+    }
+
+    public void addHeartRate(int hr) {
+        if (hrCount == 0 || hr < hrMin) hrMin = hr;
+        if (hrCount == 0 || hr > hrMax) hrMax = hr;
+        hrCount++;
+        hrSum += hr;
+    }
+
+    public void merge(Rollup other) {
+        if (other.hrCount > 0) {
+            if (hrCount == 0 || other.hrMin < hrMin) hrMin = other.hrMin;
+            if (hrCount == 0 || other.hrMax > hrMax) hrMax = other.hrMax;
+            hrCount += other.hrCount;
+            hrSum += other.hrSum;
+        }
+        beats += other.beats;
+        diffCount += other.diffCount;
+        diffSquares += other.diffSquares;
+    }
+
+    /** NaN if there was no heart rate */
+    public double getMeanHeartRate() {
+        return hrCount == 0 ? Double.NaN : (double) hrSum / hrCount;
+    }
+
+    /** RMSSD in ms, NaN without successive differences */
+    public double getRmssd() {
+        return diffCount == 0 ? Double.NaN : Math.sqrt((double) diffSquares / diffCount);
+    }
+
+    void read(ByteBuffer in) {
+        hrCount = in.getInt();
+        hrSum = in.getInt();
+        hrMin = in.getShort();
+        hrMax = in.getShort();
+        beats = in.getInt();
+        diffCount = in.getInt();
+        diffSquares = in.getLong();
+    }
+
+    void write(ByteBuffer out) {
+        out.putInt(hrCount).putInt(hrSum).putShort((short) hrMin).putShort((short) hrMax)
+                .putInt(beats).putInt(diffCount).putLong(diffSquares);
+    }
+
+    @Override
+    public String toString() {
+        return start + "+" + resolutionMillis + ": HR " + hrMin + "-" + hrMax + " mean " + getMeanHeartRate()
+                + ", " + beats + " beats, RMSSD " + getRmssd();
+    }
+}
@@ -0,0 +1,53 @@
+package herv.app.storage;
+
+import java.io.IOException;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.Event;
+
+/**
+ * Stores events in another {@link EventStore} and keeps the {@link RollupStore} up to date with
+ * the heartbeats, in the same writer thread and with the same group commit
+ */
+public class RollupEventStore implements EventStore {
+
+    private final EventStore store;
+    private final RollupStore rollups;
+
+    public RollupEventStore(EventStore store, RollupStore rollups) {
+        this.store = store;
+        this.rollups = rollups;
+    }
+
+    @Override
+    public void append(Event event) throws IOException {
+        store.append(event);
+        if (event instanceof CompactHeartbeat) {
+            rollups.add((CompactHeartbeat) event);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        store.flush();
+        rollups.flush();
+    }
+
+    @Override
+    public void idle(long now) throws IOException {
+        store.idle(now);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            rollups.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    public EventStore getStore() { return store; }
+
+    public RollupStore getRollups() { return rollups; }
+}
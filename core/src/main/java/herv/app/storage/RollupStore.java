@@ -0,0 +1,232 @@
+package herv.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import herv.app.model.CompactHeartbeat;
+
+/**
+ * Per second, minute and hour {@link Rollup}s of the heartbeats (min/max/mean HR, beat count,
+ * RMSSD), maintained as beats arrive so history views never re-read the raw log.
+ *
+ * Each resolution is kept in fixed width files covering a fixed period (an hour of seconds, a
+ * day of minutes, 32 days of hours), named after the period index since the epoch, e.g.
+ * "m17653.rol". The rollup of a bucket is at slot (bucket - period start) / resolution, so
+ * reading a time range is one positional read per file. Buckets are merged into their slot on
+ * {@link #flush()}, so reopening the store or receiving late beats is fine.
+ *
+ * {@link #query} picks the finest resolution giving at most the requested number of points:
+ * a week at hour resolution reads 168 records (under 5 KB).
+ *
+ * RR intervals are taken as cleaned by the artifact filter
+ * ({@link CompactHeartbeat#getCleanRRMillis}), like the live HRV: the corrected ones count
+ * with the value the filter gave them, and a rejected one breaks the succession for RMSSD.
+ */
+public class RollupStore {
+
+    public final static int SECOND = 0;
+    public final static int MINUTE = 1;
+    public final static int HOUR = 2;
+
+    public final static long[] RESOLUTION_MILLIS = {1000L, 60 * 1000L, 60 * 60 * 1000L};
+    private final static long[] PERIOD_MILLIS = {60 * 60 * 1000L, 24 * 60 * 60 * 1000L, 32 * 24 * 60 * 60 * 1000L};
+    private final static String[] PREFIX = {"s", "m", "h"};
+    public final static String SUFFIX = ".rol";
+
+    /** Intervals further apart than this are not successive (sensor lost in between) */
+    private final static long MAX_GAP_MILLIS = 5 * 1000;
+
+    private final File dir;
+    private final Rollup[] buckets = new Rollup[3];
+    private final long[] openPeriod = {-1, -1, -1};
+    private final RandomAccessFile[] files = new RandomAccessFile[3];
+    private final ByteBuffer record = ByteBuffer.allocate(Rollup.RECORD_SIZE);
+    private final Rollup stored = new Rollup();
+    private final Rollup beat = new Rollup();
+
+    private int lastRR = -1;
+    private long lastTimestamp;
+    private long bytesRead;
+
+    public RollupStore(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        this.dir = dir;
+        for (int level = SECOND; level <= HOUR; level++) {
+            buckets[level] = new Rollup();
+            buckets[level].resolutionMillis = RESOLUTION_MILLIS[level];
+            buckets[level].start = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Adds a beat to the buckets of its time, writing the buckets it leaves
+     */
+    public synchronized void add(CompactHeartbeat event) throws IOException {
+        long timestamp = event.getTimestamp();
+        beat.clear();
+        if (event.hasHeartRate()) beat.addHeartRate(event.getHeartRate());
+        if (timestamp - lastTimestamp > MAX_GAP_MILLIS || timestamp < lastTimestamp) lastRR = -1;
+        for (int i = 0; i < event.getRRCount(); i++) {
+            beat.beats++;
+            int rr = event.getCleanRRMillis(i);
+            if (rr == CompactHeartbeat.NO_RR) {
+                lastRR = -1;
+                continue;
+            }
+            if (lastRR >= 0) {
+                long diff = rr - lastRR;
+                beat.diffCount++;
+                beat.diffSquares += diff * diff;
+            }
+            lastRR = rr;
+        }
+        lastTimestamp = timestamp;
+
+        for (int level = SECOND; level <= HOUR; level++) {
+            Rollup bucket = buckets[level];
+            long start = timestamp - floorMod(timestamp, RESOLUTION_MILLIS[level]);
+            if (bucket.start != start) {
+                write(level);
+                bucket.start = start;
+            }
+            bucket.merge(beat);
+        }
+    }
+
+    /**
+     * Merges the buckets being filled into their files
+     */
+    public synchronized void flush() throws IOException {
+        for (int level = SECOND; level <= HOUR; level++) write(level);
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        for (int level = SECOND; level <= HOUR; level++) {
+            if (files[level] != null) {
+                files[level].close();
+                files[level] = null;
+                openPeriod[level] = -1;
+            }
+        }
+    }
+
+    private void write(int level) throws IOException {
+        Rollup bucket = buckets[level];
+        if (bucket.isEmpty()) return;
+        long period = floorDiv(bucket.start, PERIOD_MILLIS[level]);
+        if (openPeriod[level] != period) {
+            if (files[level] != null) files[level].close();
+            files[level] = new RandomAccessFile(file(level, period), "rw");
+            openPeriod[level] = period;
+        }
+        FileChannel channel = files[level].getChannel();
+        long position = slot(level, bucket.start, period) * Rollup.RECORD_SIZE;
+        record.clear();
+        stored.clear();
+        if (readFully(channel, record, position)) {
+            record.flip();
+            stored.read(record);
+        }
+        stored.merge(bucket);
+        record.clear();
+        stored.write(record);
+        record.flip();
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        bucket.clear();
+    }
+
+    /**
+     * Rollups with data between from (inclusive) and to (exclusive), oldest first, at the finest
+     * resolution that gives at most maxPoints buckets over the range (hours if none does)
+     */
+    public synchronized List<Rollup> query(long from, long to, int maxPoints) throws IOException {
+        int level = SECOND;
+        while (level < HOUR && (to - from + RESOLUTION_MILLIS[level] - 1) / RESOLUTION_MILLIS[level] > maxPoints) {
+            level++;
+        }
+        return query(level, from, to);
+    }
+
+    /**
+     * Rollups with data at the given resolution between from (inclusive) and to (exclusive)
+     */
+    public synchronized List<Rollup> query(int level, long from, long to) throws IOException {
+        List<Rollup> result = new ArrayList<Rollup>();
+        long resolution = RESOLUTION_MILLIS[level];
+        long first = from - floorMod(from, resolution);
+        Rollup pending = buckets[level];
+        for (long period = floorDiv(first, PERIOD_MILLIS[level]); period * PERIOD_MILLIS[level] < to; period++) {
+            long periodStart = period * PERIOD_MILLIS[level];
+            long start = Math.max(first, periodStart);
+            long end = Math.min(to, periodStart + PERIOD_MILLIS[level]);
+            int firstSlot = (int) slot(level, start, period);
+            int slots = (int) ((end - start + resolution - 1) / resolution);
+            File file = file(level, period);
+            ByteBuffer data = ByteBuffer.allocate(0);
+            if (file.exists()) {
+                data = ByteBuffer.allocate(slots * Rollup.RECORD_SIZE);
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    readFully(raf.getChannel(), data, (long) firstSlot * Rollup.RECORD_SIZE);
+                } finally {
+                    raf.close();
+                }
+                data.flip();
+                bytesRead += data.limit();
+            }
+            for (int i = 0; i < slots; i++) {
+                Rollup rollup = new Rollup();
+                rollup.start = start + i * resolution;
+                rollup.resolutionMillis = resolution;
+                if (data.remaining() >= Rollup.RECORD_SIZE) rollup.read(data);
+                if (pending.start == rollup.start) rollup.merge(pending); // not flushed yet
+                if (!rollup.isEmpty()) result.add(rollup);
+            }
+        }
+        return result;
+    }
+
+    private File file(int level, long period) {
+        return new File(dir, PREFIX[level] + period + SUFFIX);
+    }
+
+    private static long slot(int level, long bucketStart, long period) {
+        return (bucketStart - period * PERIOD_MILLIS[level]) / RESOLUTION_MILLIS[level];
+    }
+
+    /**
+     * @return false if the file ends before the buffer is full
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) return false;
+            position += n;
+        }
+        return true;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    /** Bytes read from rollup files by queries, to check what a view costs */
+    public synchronized long getBytesRead() { return bytesRead; }
+
+    public File getDirectory() { return dir; }
+}
@@ -0,0 +1,43 @@
+package herv.app.storage;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.Event;
+import herv.app.model.TimestampFormatter;
+
+/**
+ * Keeps the naming used by the scratch files: heartbeats go to hourly rr&lt;yyMMddHH&gt;.csv
+ * files and any other event to daily act&lt;yyMMdd&gt;.csv files.
+ */
+public class ScratchFileRouter implements FileRouter {
+
+    private final TimestampFormatter formatter;
+    private final StringBuilder sb = new StringBuilder(16);
+
+    public ScratchFileRouter() {
+        this(TimestampFormatter.getDefault());
+    }
+
+    public ScratchFileRouter(TimestampFormatter formatter) {
+        this.formatter = formatter;
+    }
+
+    /**
+     * Not thread safe, meant to be called from the writer thread only
+     */
+    @Override
+    public String fileFor(Event event) {
+        sb.setLength(0);
+        if (event instanceof CompactHeartbeat) {
+            sb.append("rr");
+            formatter.formatHourKey(((CompactHeartbeat) event).getTimestamp(), sb);
+        } else if (Event.TP_HEARTBEAT.equals(event.getType())) {
+            sb.append("rr");
+            formatter.formatHourKey(event.getDt().getTime(), sb);
+        } else {
+            sb.append("act");
+            formatter.formatDayKey(event.getDt().getTime(), sb);
+        }
+        sb.append(".csv");
+        return sb.toString();
+    }
+}
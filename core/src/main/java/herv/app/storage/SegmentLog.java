@@ -0,0 +1,291 @@
+package herv.app.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records split in preallocated segment files.
+ *
+ * Segment layout: a {@link #HEADER_SIZE} bytes header (magic, version, sequence of the first
+ * record, creation time) followed by records [int length][int crc32][payload]. The unused
+ * part of a preallocated segment is zeroed, so a zero length marks the end of the data.
+ * When a record does not fit, the segment is forced to disk and sealed, and a new one is
+ * started. Segment files never shrink: readers on other threads map the whole file, and
+ * touching a mapped page past a truncated end crashes the process (SIGBUS), so a sealed
+ * segment keeps its zeroed tail (less than one record) and a torn tail is zeroed, not cut.
+ *
+ * Appended records are buffered and written with a single positional {@link FileChannel} write
+ * on {@link #flush()}; once written they survive a process kill. {@link #sync()} (called
+ * periodically, on seal and on close) forces them to the device, so there is no fsync per
+ * record. On open, the last segment is scanned and anything after the last record with a
+ * valid checksum (a torn tail) is zeroed.
+ *
+ * Every record gets a sequence number, consecutive across segments.
+ *
+ * Only heartbeats go through the log. The activity rows (a START and a STOP per session) are
+ * still appended to the act*.csv files that ActivityLog and ActivityIndex read, one forced
+ * write per row. A row cut short by a power loss does not damage the rows around it; the
+ * readers skip it, unless only its activity name or posture was cut.
+ *
+ * Not thread safe: appends must come from a single writer thread. Sealed segments can be
+ * read from any thread with {@link SegmentReader}.
+ */
+public class SegmentLog {
+
+    public final static int MAGIC = 0x48525631; // "HRV1"
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 24;
+    public final static int RECORD_OVERHEAD = 8;
+    public final static String SUFFIX = ".seg";
+    public final static int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    private final static int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer pending;
+
+    private File activeFile;
+    private RandomAccessFile active;
+    private FileChannel channel;
+    private long activeBase;
+    private long position;          // end of the appended records, flushed or not
+    private long flushedPosition;   // end of the records written to the file
+    private long nextSequence;
+    private long lastOffset = -1;   // of the last appended record, in the active segment
+    private boolean unsynced;
+    private long truncatedBytes;
+
+    public SegmentLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the log in dir, recovering the last segment if there is one
+     */
+    public SegmentLog(File dir, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_OVERHEAD + 1) {
+            throw new IllegalArgumentException("segment size too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.pending = ByteBuffer.allocate(Math.min(WRITE_BUFFER_SIZE, segmentSize));
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File[] segments = listSegments(dir);
+        if (segments.length == 0) {
+            openSegment(0);
+        } else {
+            recover(segments[segments.length - 1]);
+        }
+    }
+
+    //region segment files
+
+    /**
+     * @return segment files in dir, oldest first
+     */
+    public static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files); // names are zero padded base sequences
+        return files;
+    }
+
+    public static String segmentName(long baseSequence) {
+        String base = Long.toString(baseSequence);
+        StringBuilder sb = new StringBuilder(20 + SUFFIX.length());
+        for (int i = base.length(); i < 20; i++) sb.append('0');
+        return sb.append(base).append(SUFFIX).toString();
+    }
+
+    /**
+     * @return sequence of the first record of a segment, from its name
+     */
+    public static long baseSequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private void openSegment(long base) throws IOException {
+        activeFile = new File(dir, segmentName(base));
+        active = new RandomAccessFile(activeFile, "rw");
+        channel = active.getChannel();
+        active.setLength(segmentSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base).putLong(System.currentTimeMillis());
+        header.flip();
+        writeFully(header, 0);
+        activeBase = base;
+        lastOffset = -1;
+        position = HEADER_SIZE;
+        flushedPosition = HEADER_SIZE;
+        nextSequence = base;
+        unsynced = true;
+    }
+
+    private void recover(File last) throws IOException {
+        SegmentReader.Scan scan = SegmentReader.scan(last);
+        if (!scan.validHeader) {
+            // not even the header made it to disk, start the segment again
+            if (!last.delete()) throw new IOException("Unable to delete " + last);
+            openSegment(baseSequenceOf(last));
+            return;
+        }
+        activeFile = last;
+        active = new RandomAccessFile(last, "rw");
+        channel = active.getChannel();
+        activeBase = scan.baseSequence;
+        position = scan.end;
+        flushedPosition = scan.end;
+        nextSequence = scan.baseSequence + scan.records;
+        if (scan.torn) {
+            // zero the torn tail so the next scan stops at our end again
+            truncatedBytes = active.length() - scan.end;
+            zero(scan.end, active.length());
+            channel.force(true);
+        }
+        if (active.length() < segmentSize) {
+            active.setLength(segmentSize);
+        }
+    }
+
+    private void seal() throws IOException {
+        flush();
+        channel.force(true);
+        active.close();
+        unsynced = false;
+    }
+
+    //endregion
+
+    /**
+     * Appends a record, rolling to a new segment if needed
+     * @return sequence of the record
+     */
+    public long append(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (length == 0 || length > segmentSize - HEADER_SIZE - RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Invalid record length: " + length);
+        }
+        if (position + RECORD_OVERHEAD + length > segmentSize) {
+            seal();
+            openSegment(nextSequence);
+        }
+        crc.reset();
+        if (payload.hasArray()) {
+            crc.update(payload.array(), payload.arrayOffset() + payload.position(), length);
+        } else {
+            for (int i = payload.position(); i < payload.limit(); i++) crc.update(payload.get(i));
+        }
+        if (pending.remaining() < RECORD_OVERHEAD + length) {
+            flush();
+        }
+        if (pending.remaining() < RECORD_OVERHEAD + length) {
+            // bigger than the write buffer, write it on its own
+            ByteBuffer header = ByteBuffer.allocate(RECORD_OVERHEAD);
+            header.putInt(length).putInt((int) crc.getValue());
+            header.flip();
+            writeFully(payload, position + RECORD_OVERHEAD);
+            writeFully(header, position);
+            flushedPosition = position + RECORD_OVERHEAD + length;
+            unsynced = true;
+        } else {
+            pending.putInt(length).putInt((int) crc.getValue()).put(payload);
+        }
+        lastOffset = position;
+        position += RECORD_OVERHEAD + length;
+        return nextSequence++;
+    }
+
+    /**
+     * Writes the buffered records to the segment file
+     */
+    public void flush() throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        writeFully(pending, flushedPosition);
+        pending.clear();
+        flushedPosition = position;
+        unsynced = true;
+    }
+
+    /**
+     * Forces the records written so far to the storage device
+     */
+    public void sync() throws IOException {
+        flush();
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    public void close() throws IOException {
+        if (active == null) return;
+        sync();
+        active.close();
+        active = null;
+    }
+
+    private void zero(long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(WRITE_BUFFER_SIZE, to - from));
+        while (from < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to - from));
+            writeFully(zeros, from);
+            from += zeros.limit();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    /** Sequence the next appended record will get */
+    public long getNextSequence() { return nextSequence; }
+
+    /** Segment currently being written */
+    public File getActiveSegment() { return activeFile; }
+
+    /** Sequence of the first record of the active segment */
+    public long getActiveBaseSequence() { return activeBase; }
+
+    /** Offset of the last appended record in the active segment, -1 if none since opening */
+    public long getLastOffset() { return lastOffset; }
+
+    /** Bytes written to the active segment file, header included */
+    public long getActiveSize() { return flushedPosition; }
+
+    /** Bytes of torn data zeroed at the end of the last segment when the log was opened */
+    public long getTruncatedBytes() { return truncatedBytes; }
+
+    public File getDirectory() { return dir; }
+
+    /**
+     * @return every segment but the active one
+     */
+    public List<File> getSealedSegments() {
+        List<File> sealed = new ArrayList<File>();
+        for (File f : listSegments(dir)) {
+            if (!f.equals(activeFile)) sealed.add(f);
+        }
+        return sealed;
+    }
+}
@@ -0,0 +1,162 @@
+package herv.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of one {@link SegmentLog} segment, stopping at the first record that is
+ * missing or fails its checksum. Works on sealed segments and on the active one (records
+ * being written at the same time are just not seen yet).
+ *
+ * Usage: {@code while (reader.next()) { reader.payload() ... }}
+ */
+public class SegmentReader {
+
+    /**
+     * Result of scanning a whole segment
+     */
+    public static class Scan {
+        public boolean validHeader;
+        public long baseSequence;
+        public long createdMillis;
+        public long records;
+        /** offset right after the last valid record */
+        public long end;
+        /** true if there are non zero bytes after the last valid record */
+        public boolean torn;
+    }
+
+    private final ByteBuffer data;
+    private final CRC32 crc = new CRC32();
+    private final long baseSequence;
+    private final long createdMillis;
+    private final boolean validHeader;
+
+    private long sequence;
+    private int recordOffset = -1;
+    private int next;
+    private final ByteBuffer payload;
+
+    public SegmentReader(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+        payload = data.duplicate();
+        if (data.limit() >= SegmentLog.HEADER_SIZE
+                && data.getInt(0) == SegmentLog.MAGIC
+                && data.getInt(4) == SegmentLog.VERSION) {
+            validHeader = true;
+            baseSequence = data.getLong(8);
+            createdMillis = data.getLong(16);
+        } else {
+            validHeader = false;
+            baseSequence = SegmentLog.baseSequenceOf(segment);
+            createdMillis = 0;
+        }
+        next = validHeader ? SegmentLog.HEADER_SIZE : data.limit();
+        sequence = baseSequence - 1;
+    }
+
+    /**
+     * Scans the segment to find where its valid data ends
+     */
+    public static Scan scan(File segment) throws IOException {
+        SegmentReader reader = new SegmentReader(segment);
+        Scan scan = new Scan();
+        scan.validHeader = reader.validHeader;
+        scan.baseSequence = reader.baseSequence;
+        scan.createdMillis = reader.createdMillis;
+        while (reader.next()) {
+            scan.records++;
+        }
+        scan.end = reader.next;
+        ByteBuffer data = reader.data;
+        for (int i = reader.next; i < data.limit(); i++) {
+            if (data.get(i) != 0) {
+                scan.torn = true;
+                break;
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Finds where the data of a sealed segment ends by following the record lengths, without
+     * checking the records: they were all checked when the segment was written or recovered.
+     * Much cheaper than {@link #scan(File)}, which the active segment still needs.
+     * @return offset right after the last record
+     */
+    public static long dataEnd(File segment) throws IOException {
+        SegmentReader reader = new SegmentReader(segment);
+        ByteBuffer data = reader.data;
+        int pos = reader.next;
+        while (pos + SegmentLog.RECORD_OVERHEAD <= data.limit()) {
+            int length = data.getInt(pos);
+            if (length <= 0 || pos + SegmentLog.RECORD_OVERHEAD + length > data.limit()) break;
+            pos += SegmentLog.RECORD_OVERHEAD + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Moves to the next valid record
+     * @return false at the end of the data
+     */
+    public boolean next() {
+        int pos = next;
+        if (pos + SegmentLog.RECORD_OVERHEAD > data.limit()) return false;
+        int length = data.getInt(pos);
+        if (length <= 0 || pos + SegmentLog.RECORD_OVERHEAD + length > data.limit()) return false;
+        int start = pos + SegmentLog.RECORD_OVERHEAD;
+        crc.reset();
+        for (int i = start; i < start + length; i++) {
+            crc.update(data.get(i));
+        }
+        if ((int) crc.getValue() != data.getInt(pos + 4)) return false;
+        payload.limit(start + length);
+        payload.position(start);
+        recordOffset = pos;
+        next = start + length;
+        sequence++;
+        return true;
+    }
+
+    /**
+     * Positions the reader so that {@link #next()} reads the record at offset, which must be
+     * the start of a record with the given sequence (as kept by an index)
+     */
+    public void seek(long offset, long recordSequence) {
+        if (offset < SegmentLog.HEADER_SIZE || offset > data.limit()) {
+            throw new IllegalArgumentException("Offset out of segment: " + offset);
+        }
+        next = (int) offset;
+        sequence = recordSequence - 1;
+        recordOffset = -1;
+    }
+
+    /** Payload of the current record, valid until the next call to {@link #next()} */
+    public ByteBuffer payload() { return payload; }
+
+    /** Sequence of the current record */
+    public long sequence() { return sequence; }
+
+    /** Offset of the current record in the segment file */
+    public long offset() { return recordOffset; }
+
+    /** Offset where the next record would start */
+    public long nextOffset() { return next; }
+
+    public long getBaseSequence() { return baseSequence; }
+
+    public long getCreatedMillis() { return createdMillis; }
+
+    public boolean hasValidHeader() { return validHeader; }
+}
@@ -0,0 +1,359 @@
+package herv.app.storage;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import herv.app.model.CompactHeartbeat;
+
+/**
+ * Time-range index over the heartbeats of a {@link SegmentLog}.
+ *
+ * Each segment has a sparse index, one entry (timestamp, offset, sequence) every
+ * {@link #INTERVAL} records, saved next to it as "&lt;segment&gt;.idx" when the segment is sealed.
+ * A manifest ("index.manifest", one line "base firstTimestamp lastTimestamp records" per
+ * segment) keeps the time bounds of every segment. A range query binary searches the manifest
+ * for the first segment, then that segment's index for the offset to seek to, and streams the
+ * records from there: O(log n + k) instead of scanning whole files.
+ *
+ * The index is fed by the writer thread through {@link #onAppend}; segments not in the
+ * manifest when opening (the active one, or any sealed while the process died) are indexed by
+ * scanning them once. Timestamps are expected to increase along the log. A sealed segment
+ * deleted from the log (by the upload outbox) is dropped with {@link #onSegmentDeleted}, and
+ * the manifest never lists a segment whose file is gone.
+ */
+public class TimeIndex {
+
+    public final static int INTERVAL = 64;
+    public final static String MANIFEST_FILE = "index.manifest";
+    public final static String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Sparse index and bounds of one segment
+     */
+    static class SegmentEntry {
+        final long base;
+        long firstTimestamp = Long.MAX_VALUE;
+        long lastTimestamp = Long.MIN_VALUE;
+        long records;
+        long[] timestamps = new long[16];
+        long[] offsets = new long[16];
+        int size;
+
+        SegmentEntry(long base) {
+            this.base = base;
+        }
+
+        void add(long timestamp, long offset, long sequence) {
+            if (records % INTERVAL == 0) {
+                if (size == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, size * 2);
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                }
+                timestamps[size] = timestamp;
+                offsets[size] = offset;
+                size++;
+            }
+            if (records == 0) firstTimestamp = timestamp;
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+            records++;
+        }
+
+        /**
+         * @return index of the last entry at or before timestamp, 0 if none
+         */
+        int floor(long timestamp) {
+            int lo = 0, hi = size - 1, found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[mid] <= timestamp) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    private final File dir;
+    private final List<SegmentEntry> segments = new ArrayList<SegmentEntry>();
+
+    /**
+     * Loads the manifest and the indexes of dir, indexing the segments missing from them
+     */
+    public TimeIndex(File dir) throws IOException {
+        this.dir = dir;
+        List<long[]> manifest = loadManifest();
+        File[] files = SegmentLog.listSegments(dir);
+        for (int i = 0; i < files.length; i++) {
+            long base = SegmentLog.baseSequenceOf(files[i]);
+            SegmentEntry entry = null;
+            boolean sealed = i < files.length - 1;
+            if (sealed) {
+                for (long[] line : manifest) {
+                    if (line[0] == base) entry = loadIndex(files[i], line);
+                }
+            }
+            if (entry == null) {
+                entry = scan(files[i]);
+                if (sealed) saveIndex(entry);
+            }
+            segments.add(entry);
+        }
+        saveManifest();
+    }
+
+    //region writer side
+
+    /**
+     * Called by the writer after each heartbeat appended to the log
+     * @param base base sequence of the segment the record went to
+     */
+    public synchronized void onAppend(long base, long offset, long sequence, long timestamp) throws IOException {
+        SegmentEntry active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.base != base) {
+            if (active != null) {
+                // the previous segment was sealed
+                saveIndex(active);
+                segments.add(new SegmentEntry(base));
+                saveManifest();
+            } else {
+                segments.add(new SegmentEntry(base));
+            }
+            active = segments.get(segments.size() - 1);
+        }
+        active.add(timestamp, offset, sequence);
+    }
+
+    /**
+     * Called after a sealed segment was deleted from the log, so that queries stop planning
+     * reads over it
+     * @param base base sequence of the deleted segment
+     */
+    public synchronized void onSegmentDeleted(long base) throws IOException {
+        // the last entry is the active segment, never deleted
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (segments.get(i).base == base) {
+                segments.remove(i);
+                saveManifest();
+                return;
+            }
+        }
+    }
+
+    private SegmentEntry scan(File segment) throws IOException {
+        SegmentReader reader = new SegmentReader(segment);
+        SegmentEntry entry = new SegmentEntry(reader.getBaseSequence());
+        while (reader.next()) {
+            CompactHeartbeat beat = HeartbeatCodec.decode(reader.payload());
+            if (beat != null) entry.add(beat.getTimestamp(), reader.offset(), reader.sequence());
+            else entry.records++;
+        }
+        return entry;
+    }
+
+    //endregion
+
+    //region files
+
+    private void saveIndex(SegmentEntry entry) throws IOException {
+        File file = new File(dir, SegmentLog.segmentName(entry.base) + INDEX_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(entry.size);
+            for (int i = 0; i < entry.size; i++) {
+                out.writeLong(entry.timestamps[i]);
+                out.writeLong(entry.offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private SegmentEntry loadIndex(File segment, long[] bounds) {
+        File file = new File(dir, segment.getName() + INDEX_SUFFIX);
+        if (!file.exists()) return null;
+        SegmentEntry entry = new SegmentEntry(bounds[0]);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int size = in.readInt();
+                entry.timestamps = new long[Math.max(1, size)];
+                entry.offsets = new long[Math.max(1, size)];
+                for (int i = 0; i < size; i++) {
+                    entry.timestamps[i] = in.readLong();
+                    entry.offsets[i] = in.readLong();
+                }
+                entry.size = size;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null; // rebuilt by scanning
+        }
+        entry.firstTimestamp = bounds[1];
+        entry.lastTimestamp = bounds[2];
+        entry.records = bounds[3];
+        return entry;
+    }
+
+    private List<long[]> loadManifest() throws IOException {
+        List<long[]> lines = new ArrayList<long[]>();
+        File file = new File(dir, MANIFEST_FILE);
+        if (!file.exists()) return lines;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 4) continue;
+                lines.add(new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3])});
+            }
+        } catch (NumberFormatException e) {
+            lines.clear(); // corrupted, every segment is scanned again
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Bounds of the sealed segments, written to a temporary file and renamed. Segments whose
+     * file is gone are dropped first.
+     */
+    private void saveManifest() throws IOException {
+        for (int i = segments.size() - 2; i >= 0; i--) {
+            if (!new File(dir, SegmentLog.segmentName(segments.get(i).base)).exists()) segments.remove(i);
+        }
+        File tmp = new File(dir, MANIFEST_FILE + ".tmp");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            SegmentEntry e = segments.get(i);
+            sb.append(e.base).append(' ').append(e.firstTimestamp).append(' ')
+                    .append(e.lastTimestamp).append(' ').append(e.records).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(dir, MANIFEST_FILE))) {
+            throw new IOException("Unable to save index manifest in " + dir);
+        }
+    }
+
+    //endregion
+
+    /**
+     * Heartbeats with from &lt;= timestamp &lt; to, read lazily in log order
+     */
+    public synchronized RangeReader query(long from, long to) {
+        // first segment that may hold beats at or after from
+        int lo = 0, hi = segments.size() - 1, first = segments.size();
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segments.get(mid).lastTimestamp >= from) {
+                first = mid;
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        List<long[]> plan = new ArrayList<long[]>(); // base, offset to start at
+        for (int i = first; i < segments.size(); i++) {
+            SegmentEntry e = segments.get(i);
+            if (e.records == 0) continue;
+            if (e.firstTimestamp >= to) break;
+            long offset = e.size == 0 ? SegmentLog.HEADER_SIZE : e.offsets[e.floor(from)];
+            plan.add(new long[]{e.base, offset});
+        }
+        return new RangeReader(dir, plan, from, to);
+    }
+
+    /** Segments indexed */
+    public synchronized int getSegmentCount() { return segments.size(); }
+
+    /**
+     * Timestamp of the last beat appended, Long.MIN_VALUE if the log is empty
+     */
+    public synchronized long getLastTimestamp() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).records > 0) return segments.get(i).lastTimestamp;
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Streams the heartbeats of a range, one segment mapped at a time
+     */
+    public static class RangeReader implements BeatCursor {
+        private final File dir;
+        private final List<long[]> plan;
+        private final long from;
+        private final long to;
+        private int planIndex = -1;
+        private SegmentReader reader;
+        private CompactHeartbeat beat;
+        private long recordsRead;
+
+        RangeReader(File dir, List<long[]> plan, long from, long to) {
+            this.dir = dir;
+            this.plan = plan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (reader == null) {
+                    if (++planIndex >= plan.size()) return false;
+                    long[] step = plan.get(planIndex);
+                    File segment = new File(dir, SegmentLog.segmentName(step[0]));
+                    if (!segment.exists()) continue; // deleted meanwhile
+                    reader = new SegmentReader(segment);
+                    // the sequence is unknown here and not needed
+                    reader.seek(step[1], 0);
+                }
+                if (!reader.next()) {
+                    reader = null;
+                    continue;
+                }
+                recordsRead++;
+                ByteBuffer payload = reader.payload();
+                CompactHeartbeat candidate = HeartbeatCodec.decode(payload);
+                if (candidate == null || candidate.getTimestamp() < from) continue;
+                if (candidate.getTimestamp() >= to) {
+                    planIndex = plan.size(); // past the range, and timestamps only grow
+                    reader = null;
+                    return false;
+                }
+                beat = candidate;
+                return true;
+            }
+        }
+
+        @Override
+        public CompactHeartbeat beat() { return beat; }
+
+        /** Records decoded so far, including the few skipped before the range */
+        public long getRecordsRead() { return recordsRead; }
+    }
+}
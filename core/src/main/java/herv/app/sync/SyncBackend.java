@@ -0,0 +1,22 @@
+package herv.app.sync;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remote storage the recorded files are synced to
+ */
+public interface SyncBackend {
+
+    /**
+     * Uploads length bytes of file, starting at offset, as the object remotePath.
+     * Blocks until the upload is finished.
+     */
+    void put(String remotePath, File file, long offset, long length) throws IOException;
+
+    /**
+     * Deletes the object remotePath, doing nothing if there is no such object.
+     * Blocks until it is deleted.
+     */
+    void delete(String remotePath) throws IOException;
+}
@@ -0,0 +1,174 @@
+package herv.app.sync;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import herv.app.storage.SegmentLog;
+import herv.app.storage.SegmentReader;
+
+/**
+ * Incremental sync of the HeRV folder to a {@link SyncBackend}.
+ *
+ * Instead of uploading every file on every call, the {@link SyncManifest} remembers how many
+ * bytes of each file were uploaded. A file whose size and modification time did not change is
+ * skipped without being read. A file that grew (the rr file of the current hour, the active
+ * log segment) only has its new tail uploaded, as a separate "name.part-offset" object.
+ * A file that is new, or whose already uploaded bytes changed, is uploaded whole again, after
+ * deleting the parts uploaded for it before so the remote object and its parts always join to
+ * a prefix of the file. The manifest keeps the offsets of the parts for that.
+ *
+ * Only the recorded data is synced: the rr and act csv files of the folder and the segments of
+ * its log. Diagnostics (metrics, trace) and service state, which roll over or are rewritten
+ * all the time, stay local.
+ *
+ * For the active log segment, which is preallocated, only the bytes up to the last valid
+ * record count. The manifest is saved after each upload, so a sync interrupted half way
+ * resumes where it stopped.
+ */
+public class SyncEngine {
+
+    /** Bytes before the uploaded offset hashed to detect rewritten files */
+    public final static int HASH_WINDOW = 4096;
+    public final static String LOG_FOLDER = "log";
+    public final static String PART_SEPARATOR = ".part-";
+
+    private final SyncBackend backend;
+    private final SyncManifest manifest;
+    private final byte[] buffer = new byte[HASH_WINDOW];
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Outcome of one sync
+     */
+    public static class Result {
+        public int files;
+        public int uploadedWhole;
+        public int uploadedTails;
+        public int unchanged;
+        public int failed;
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return files + " files: " + uploadedWhole + " uploaded, " + uploadedTails
+                    + " tails appended, " + unchanged + " unchanged, " + failed + " failed, "
+                    + bytes + " bytes";
+        }
+    }
+
+    public SyncEngine(SyncBackend backend, SyncManifest manifest) {
+        this.backend = backend;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Syncs the data files of dir and the segments of its log folder under remotePrefix
+     */
+    public Result sync(File dir, String remotePrefix) throws IOException {
+        Result result = new Result();
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && isDataFile(f.getName());
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                syncFile(file, file.getName(), remotePrefix + file.getName(), file.length(), result);
+            }
+        }
+
+        File[] segments = SegmentLog.listSegments(new File(dir, LOG_FOLDER));
+        for (int i = 0; i < segments.length; i++) {
+            File segment = segments[i];
+            String name = LOG_FOLDER + "/" + segment.getName();
+            // up to the last record, not the preallocated zeros; the active segment may be
+            // being written, so its records are checked
+            long size = i == segments.length - 1
+                    ? SegmentReader.scan(segment).end : SegmentReader.dataEnd(segment);
+            syncFile(segment, name, remotePrefix + name, size, result);
+        }
+        return result;
+    }
+
+    /**
+     * rr and act csv files, as named by the {@link herv.app.storage.ScratchFileRouter}
+     */
+    static boolean isDataFile(String name) {
+        return name.endsWith(".csv") && (name.startsWith("rr") || name.startsWith("act"));
+    }
+
+    private void syncFile(File file, String name, String remotePath, long size, Result result) {
+        result.files++;
+        long lastModified = file.lastModified();
+        SyncManifest.Entry entry = manifest.get(name);
+        try {
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                result.unchanged++;
+                return;
+            }
+            if (entry != null && size >= entry.size && hash(file, entry.size) == entry.hash) {
+                if (size > entry.size) {
+                    backend.put(remotePath + PART_SEPARATOR + entry.size, file, entry.size, size - entry.size);
+                    entry.parts.add(entry.size);
+                    result.uploadedTails++;
+                    result.bytes += size - entry.size;
+                } else {
+                    result.unchanged++;
+                }
+            } else {
+                if (entry != null) deleteParts(remotePath, name, entry);
+                backend.put(remotePath, file, 0, size);
+                result.uploadedWhole++;
+                result.bytes += size;
+                entry = new SyncManifest.Entry();
+            }
+            entry.size = size;
+            entry.lastModified = lastModified;
+            entry.hash = hash(file, size);
+            manifest.put(name, entry);
+            manifest.save();
+        } catch (IOException e) {
+            result.failed++;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes the parts of a file about to be uploaded whole. Without its parts the remote
+     * object is still a prefix of the old file, and the manifest is saved after each delete so
+     * those not deleted yet are retried on the next sync.
+     */
+    private void deleteParts(String remotePath, String name, SyncManifest.Entry entry) throws IOException {
+        while (!entry.parts.isEmpty()) {
+            long offset = entry.parts.get(entry.parts.size() - 1);
+            backend.delete(remotePath + PART_SEPARATOR + offset);
+            entry.parts.remove(entry.parts.size() - 1);
+            manifest.put(name, entry);
+            manifest.save();
+        }
+    }
+
+    /**
+     * CRC32 of the (up to) {@link #HASH_WINDOW} bytes before end
+     */
+    private long hash(File file, long end) throws IOException {
+        crc.reset();
+        int length = (int) Math.min(HASH_WINDOW, end);
+        if (length > 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < end) return -1;
+                raf.seek(end - length);
+                raf.readFully(buffer, 0, length);
+            } finally {
+                raf.close();
+            }
+            crc.update(buffer, 0, length);
+        }
+        return crc.getValue();
+    }
+}
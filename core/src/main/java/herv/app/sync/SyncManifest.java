@@ -0,0 +1,112 @@
+package herv.app.sync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local record of what has already been uploaded for each file: how many bytes, the file
+ * modification time at that point, a hash of the last uploaded bytes and the offsets of the
+ * tails uploaded as separate objects.
+ * Saved as one tab separated line per file, through a temporary file and a rename so a kill
+ * never leaves a half written manifest.
+ */
+public class SyncManifest {
+
+    public static class Entry {
+        /** bytes of the file already uploaded, i.e. offset of the next tail to upload */
+        public long size;
+        public long lastModified;
+        /** CRC32 of the last (up to) {@link SyncEngine#HASH_WINDOW} uploaded bytes */
+        public long hash;
+        /** offsets of the "name.part-offset" objects uploaded after the whole file */
+        public final List<Long> parts = new ArrayList<Long>();
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private SyncManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the manifest kept in file, empty if the file does not exist yet
+     */
+    public static SyncManifest load(File file) throws IOException {
+        SyncManifest manifest = new SyncManifest(file);
+        if (!file.exists()) return manifest;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 4 && parts.length != 5) continue;
+                Entry entry = new Entry();
+                entry.size = Long.parseLong(parts[1]);
+                entry.lastModified = Long.parseLong(parts[2]);
+                entry.hash = Long.parseLong(parts[3]);
+                if (parts.length == 5) {
+                    for (String offset : parts[4].split(",")) {
+                        entry.parts.add(Long.parseLong(offset));
+                    }
+                }
+                manifest.entries.put(parts[0], entry);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted sync manifest " + file, e);
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    public void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(e.getKey() + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.hash);
+                for (int i = 0; i < entry.parts.size(); i++) {
+                    writer.write((i == 0 ? "\t" : ",") + entry.parts.get(i));
+                }
+                writer.write("\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to save sync manifest " + file);
+        }
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public void put(String name, Entry entry) {
+        entries.put(name, entry);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
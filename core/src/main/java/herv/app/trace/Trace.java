@@ -0,0 +1,198 @@
+package herv.app.trace;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import herv.app.model.TimestampFormatter;
+
+/**
+ * Preallocated ring of the last trace events of the pipeline, replacing per beat logging.
+ *
+ * An event is an id from the EV_ constants, a level, the time, the thread and up to three
+ * primitive arguments, stored in a fixed slot of a long array: recording builds no string and
+ * allocates nothing, and an event above the current level costs one volatile read. The ring is
+ * only turned into text when it is dumped, on demand or by the {@link TraceDumper} when a
+ * problem is recorded, so it shows what happened just before.
+ *
+ * Any thread may record. Each slot has a sequence written before and after its values, so a
+ * dump running while events are recorded skips the slots being overwritten instead of
+ * printing torn events.
+ */
+public class Trace {
+
+    public final static int OFF = 0;
+    public final static int ERROR = 1;
+    public final static int WARN = 2;
+    public final static int INFO = 3;
+    public final static int DEBUG = 4;
+
+    public final static int DEFAULT_CAPACITY = 2048;
+
+    //region event ids
+
+    /** heart rate, RR count, flags */
+    public final static int EV_NOTIFICATION = 1;
+    /** RR in 1/1024 s, quality */
+    public final static int EV_RR = 2;
+    /** length, first byte */
+    public final static int EV_MALFORMED = 3;
+    /** beat timestamp, RR count */
+    public final static int EV_DROPPED = 4;
+    public final static int EV_RECORDING_START = 5;
+    /** RR intervals of the session */
+    public final static int EV_RECORDING_STOP = 6;
+    /** events, flush us */
+    public final static int EV_FLUSH = 7;
+    /** events failed so far */
+    public final static int EV_STORE_FAILED = 8;
+    /** events, HTTP status, post ms */
+    public final static int EV_UPLOAD = 9;
+    /** newState, status */
+    public final static int EV_CONNECTION = 10;
+    /** reconnect ms, attempts */
+    public final static int EV_RECONNECTED = 11;
+    /** events in the ring when a queue starts spilling to disk */
+    public final static int EV_SPILL = 12;
+
+    private final static String[] NAMES = {"?", "notification", "rr", "malformed", "dropped",
+            "recording_start", "recording_stop", "flush", "store_failed", "upload", "connection",
+            "reconnected", "spill"};
+
+    //endregion
+
+    /**
+     * Told about every event recorded at {@link #ERROR}
+     */
+    public interface ProblemListener {
+        void onProblem(int id);
+    }
+
+    private final static Trace DEFAULT = new Trace(DEFAULT_CAPACITY);
+
+    // time, header (id, level, thread), a, b, c
+    private final static int SLOT = 5;
+    private final static int IN_PROGRESS = -1;
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong next = new AtomicLong();
+    // event times are System.nanoTime, shown as wall time from this pair
+    private final long wallMillis = System.currentTimeMillis();
+    private final long wallNanos = System.nanoTime();
+
+    private volatile int level = INFO;
+    private volatile ProblemListener problemListener;
+
+    /**
+     * Trace shared by the whole process
+     */
+    public static Trace getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param capacity events kept, rounded up to the next power of two
+     */
+    public Trace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity));
+        if (size < capacity) size <<= 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * SLOT);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.lazySet(i, IN_PROGRESS);
+        }
+    }
+
+    /**
+     * Events above level are not recorded, {@link #OFF} records nothing
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() { return level; }
+
+    public boolean isEnabled(int level) {
+        return level <= this.level;
+    }
+
+    public void setProblemListener(ProblemListener listener) {
+        this.problemListener = listener;
+    }
+
+    public void record(int level, int id) {
+        record(level, id, 0, 0, 0);
+    }
+
+    public void record(int level, int id, long a) {
+        record(level, id, a, 0, 0);
+    }
+
+    public void record(int level, int id, long a, long b) {
+        record(level, id, a, b, 0);
+    }
+
+    public void record(int level, int id, long a, long b, long c) {
+        if (level > this.level || level <= OFF) return;
+        long position = next.getAndIncrement();
+        int index = (int) (position & mask);
+        int base = index * SLOT;
+        sequences.set(index, IN_PROGRESS);
+        slots.lazySet(base, System.nanoTime());
+        slots.lazySet(base + 1, (Thread.currentThread().getId() << 24) | (level << 16) | (id & 0xFFFF));
+        slots.lazySet(base + 2, a);
+        slots.lazySet(base + 3, b);
+        slots.lazySet(base + 4, c);
+        sequences.lazySet(index, position);
+        if (level == ERROR) {
+            ProblemListener l = problemListener;
+            if (l != null) l.onProblem(id);
+        }
+    }
+
+    /** Number of events recorded since the start, including those overwritten */
+    public long getRecordedCount() { return next.get(); }
+
+    /**
+     * Writes the events still in the ring, oldest first, one per line:
+     * "dt.millis level thread name a b c"
+     * @return number of events written
+     */
+    public int dump(Appendable out) throws IOException {
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        StringBuilder line = new StringBuilder(96);
+        TimestampFormatter formatter = TimestampFormatter.getDefault();
+        int written = 0;
+        for (long position = start; position < end; position++) {
+            int index = (int) (position & mask);
+            int base = index * SLOT;
+            if (sequences.get(index) != position) continue;
+            long time = slots.get(base);
+            long header = slots.get(base + 1);
+            long a = slots.get(base + 2);
+            long b = slots.get(base + 3);
+            long c = slots.get(base + 4);
+            // overwritten while it was read
+            if (sequences.get(index) != position) continue;
+
+            long millis = wallMillis + (time - wallNanos) / 1000000;
+            int id = (int) (header & 0xFFFF);
+            line.setLength(0);
+            formatter.formatTo(millis, line);
+            int ms = (int) (((millis % 1000) + 1000) % 1000);
+            line.append('.').append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10))
+                    .append((char) ('0' + ms % 10));
+            line.append(' ').append("-EWID".charAt((int) (header >>> 16) & 0xFF))
+                    .append(' ').append(header >>> 24)
+                    .append(' ').append(id < NAMES.length ? NAMES[id] : Integer.toString(id))
+                    .append(' ').append(a).append(' ').append(b).append(' ').append(c).append('\n');
+            out.append(line);
+            written++;
+        }
+        return written;
+    }
+}
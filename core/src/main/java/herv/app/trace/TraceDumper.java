@@ -0,0 +1,120 @@
+package herv.app.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the {@link Trace} ring to a local file when a problem is recorded, from its own
+ * thread so the thread hitting the problem (often the GATT callback) does no I/O, or on demand.
+ *
+ * A problem repeating on every beat (a full queue) dumps at most once per
+ * {@link #MIN_INTERVAL_MILLIS}. The file is rolled over to "&lt;name&gt;.1" when it reaches
+ * {@link #MAX_FILE_BYTES}.
+ */
+public class TraceDumper implements Runnable, Trace.ProblemListener {
+
+    public final static long MIN_INTERVAL_MILLIS = 60 * 1000;
+    public final static long MAX_FILE_BYTES = 512 * 1024;
+
+    private final Trace trace;
+    private final File file;
+    private final long minIntervalNanos;
+
+    private volatile int problem;
+    private volatile long lastDump;
+    private volatile boolean running;
+    private Thread thread;
+
+    public TraceDumper(Trace trace, File file) {
+        this(trace, file, MIN_INTERVAL_MILLIS);
+    }
+
+    public TraceDumper(Trace trace, File file, long minIntervalMillis) {
+        this.trace = trace;
+        this.file = file;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.lastDump = System.nanoTime() - minIntervalNanos;
+    }
+
+    /**
+     * Starts the dump thread and listens to the problems of the trace
+     */
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "herv-trace");
+        thread.setDaemon(true);
+        thread.start();
+        trace.setProblemListener(this);
+    }
+
+    public void close() {
+        trace.setProblemListener(null);
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onProblem(int id) {
+        if (problem != 0 || System.nanoTime() - lastDump < minIntervalNanos) return;
+        problem = id;
+        Thread t = thread;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            int id = problem;
+            if (id != 0) {
+                dump("problem " + id);
+                problem = 0;
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Appends the trace to the file now, from the calling thread
+     * @param reason written before the events
+     */
+    public synchronized void dump(String reason) {
+        lastDump = System.nanoTime();
+        try {
+            if (file.length() >= MAX_FILE_BYTES) {
+                File old = new File(file.getPath() + ".1");
+                if (old.exists() && !old.delete()) throw new IOException("Cannot delete " + old);
+                if (!file.renameTo(old)) throw new IOException("Cannot roll over " + file);
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "US-ASCII"));
+            try {
+                out.write("--- " + reason + ", " + trace.getRecordedCount() + " events recorded\n");
+                trace.dump(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public File getFile() { return file; }
+}
@@ -0,0 +1,103 @@
+package herv.app.upload;
+
+import herv.app.model.CompactHeartbeat;
+
+/**
+ * Builds the body of the batches posted to the server, the one layout shared by the
+ * {@link Outbox}, the {@link BatchUploader} and the {@link BulkImporter}:
+ * <pre>
+ * herv-batch, 1
+ * log, &lt;id&gt;
+ * &lt;sequence&gt;, &lt;dt&gt;, &lt;hr&gt;, &lt;rr&gt;, &lt;quality&gt;
+ * ...
+ * </pre>
+ * The first line gives the version of the layout. A "log" line starts the rows of one series
+ * of records, a batch may hold several (an import spanning files). Within a log the sequence
+ * of a row never changes, even when its batch is retried, so the server drops the rows it
+ * already has by log id and sequence. The other columns are those of
+ * {@link CompactHeartbeat#appendUploadCSV}.
+ *
+ * Reused batch after batch, allocates nothing once the body is big enough. Not thread safe.
+ */
+public class BatchEncoder {
+
+    public final static int VERSION = 1;
+    public final static String HEADER = "herv-batch, " + VERSION;
+    public final static String LOG_PREFIX = "log, ";
+
+    private final StringBuilder line = new StringBuilder(64);
+    private byte[] body;
+    private int length;
+    private int rows;
+    private String log;
+
+    public BatchEncoder() {
+        this(8192);
+    }
+
+    public BatchEncoder(int initialCapacity) {
+        body = new byte[Math.max(64, initialCapacity)];
+        reset();
+    }
+
+    /**
+     * Starts a new batch, dropping the current one
+     */
+    public void reset() {
+        length = 0;
+        rows = 0;
+        log = null;
+        line.setLength(0);
+        line.append(HEADER);
+        appendLine();
+    }
+
+    /**
+     * Starts the rows of the log id, unless the last rows already belong to it
+     */
+    public void log(String id) {
+        if (id.equals(log)) return;
+        log = id;
+        line.setLength(0);
+        line.append(LOG_PREFIX).append(id);
+        appendLine();
+    }
+
+    /**
+     * Appends the row of a beat to the current log; a beat with neither heart rate nor RR is
+     * left out
+     * @return true if a row was written
+     */
+    public boolean add(long sequence, CompactHeartbeat beat) {
+        if (log == null) throw new IllegalStateException("No log started");
+        if (!beat.hasHeartRate() && beat.getRRCount() == 0) return false;
+        line.setLength(0);
+        line.append(sequence).append(", ");
+        beat.appendUploadCSV(line);
+        appendLine();
+        rows++;
+        return true;
+    }
+
+    private void appendLine() {
+        int needed = length + line.length() + 1;
+        if (needed > body.length) {
+            byte[] bigger = new byte[Math.max(needed, body.length * 2)];
+            System.arraycopy(body, 0, bigger, 0, length);
+            body = bigger;
+        }
+        // plain ASCII: ids, dates and numbers
+        for (int i = 0; i < line.length(); i++) {
+            body[length++] = (byte) line.charAt(i);
+        }
+        body[length++] = '\n';
+    }
+
+    /** Buffer holding the batch, valid up to {@link #length()} and until the next change */
+    public byte[] body() { return body; }
+
+    public int length() { return length; }
+
+    /** Rows in the batch */
+    public int rows() { return rows; }
+}
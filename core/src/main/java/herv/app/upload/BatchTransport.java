@@ -0,0 +1,15 @@
+package herv.app.upload;
+
+import java.io.IOException;
+
+/**
+ * Sends one encoded batch of events to the server
+ */
+public interface BatchTransport {
+
+    /**
+     * @return HTTP status code of the response
+     * @throws IOException if the server could not be reached
+     */
+    int post(byte[] body, int offset, int length) throws IOException;
+}
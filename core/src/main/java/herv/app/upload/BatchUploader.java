@@ -0,0 +1,280 @@
+package herv.app.upload;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import herv.app.metrics.Gauge;
+import herv.app.metrics.LatencyHistogram;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.Event;
+import herv.app.storage.EventQueue;
+import herv.app.trace.Trace;
+
+/**
+ * Uploads events in batches instead of one HTTP request per beat.
+ *
+ * Events are queued with {@link #add(Event)} in a bounded {@link EventQueue}, whose policy
+ * decides what happens when the uploader falls behind (dropped by default), and an uploader
+ * thread sends them as one POST built by {@link BatchEncoder}. There is no log behind, so the
+ * log id is a random UUID of this uploader and the sequence counts the events it polled.
+ * Only heartbeats are uploaded; other events are skipped, activities reach the server with
+ * the folder sync.
+ * A batch is sent when it reaches the maximum size or when its oldest event has waited the
+ * maximum delay. A batch that fails is kept and sent again after an {@link ExponentialBackoff}
+ * delay before anything else is polled, so while the server is unreachable events pile up in
+ * the queue and its policy applies (spilled to disk with {@link EventQueue#SPILL}). When
+ * closing, what is queued gets one more attempt per batch, up to the first failure.
+ * The outcome of every attempt is reported to the {@link Listener}.
+ * The time of each POST is recorded in the {@link MetricsRegistry} as "upload.post".
+ */
+public class BatchUploader implements Runnable {
+
+    public final static int DEFAULT_CAPACITY = 4096;
+    public final static int DEFAULT_MAX_BATCH = 120;
+    public final static long DEFAULT_MAX_DELAY_MILLIS = 60 * 1000;
+    public final static long DEFAULT_RETRY_MILLIS = 5 * 1000;
+    public final static long DEFAULT_MAX_RETRY_MILLIS = 5 * 60 * 1000;
+    private final static long POLL_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Called from the uploader thread after each batch
+     */
+    public interface Listener {
+        /**
+         * @param success false if the batch will be sent again, or given up when closing
+         * @param status HTTP status, or -1 if the server could not be reached
+         */
+        void onBatchSent(int events, int bytes, boolean success, int status);
+    }
+
+    private final BatchTransport transport;
+    private final EventQueue queue;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final long pollIntervalNanos;
+    private final ExponentialBackoff backoff;
+
+    private final Event[] batch;
+    private int batchSize;
+    private long batchStart;
+    /** When to send the failed batch again, 0 if the last attempt succeeded */
+    private long retryAt;
+    /** Sequence of the first event of the batch */
+    private long batchSequence;
+    private final String logId = UUID.randomUUID().toString();
+    private final BatchEncoder encoder = new BatchEncoder(4096);
+
+    private final AtomicLong sentEvents = new AtomicLong();
+    private final AtomicLong failedEvents = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final LatencyHistogram postTime;
+    private final Trace trace = Trace.getDefault();
+
+    private volatile Listener listener;
+    private volatile boolean running;
+    private Thread thread;
+
+    public BatchUploader(BatchTransport transport) {
+        this(transport, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public BatchUploader(BatchTransport transport, int capacity, int maxBatch, long maxDelayMillis) {
+        this(transport, new EventQueue("upload", capacity, EventQueue.DROP), maxBatch, maxDelayMillis);
+    }
+
+    /**
+     * @param queue between the producers and the uploader thread, with its overflow policy
+     */
+    public BatchUploader(BatchTransport transport, EventQueue queue, int maxBatch, long maxDelayMillis) {
+        this(transport, queue, maxBatch, maxDelayMillis,
+                new ExponentialBackoff(DEFAULT_RETRY_MILLIS, DEFAULT_MAX_RETRY_MILLIS));
+    }
+
+    /**
+     * @param backoff delays between the attempts of a failed batch
+     */
+    public BatchUploader(BatchTransport transport, EventQueue queue, int maxBatch, long maxDelayMillis,
+                         ExponentialBackoff backoff) {
+        this.transport = transport;
+        this.queue = queue;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        this.pollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.min(POLL_INTERVAL_MILLIS, Math.max(1, maxDelayMillis)));
+        this.backoff = backoff;
+        this.batch = new Event[maxBatch];
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.postTime = metrics.histogram("upload.post");
+        metrics.gauge("upload.sent", new Gauge() {
+            @Override
+            public long get() { return sentEvents.get(); }
+        });
+        metrics.gauge("upload.failed", new Gauge() {
+            @Override
+            public long get() { return failedEvents.get(); }
+        });
+        metrics.gauge("upload.retries", new Gauge() {
+            @Override
+            public long get() { return retries.get(); }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "herv-batch-uploader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the uploader thread after trying to send what is queued
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an event for upload. Only blocks with the {@link EventQueue#BLOCK} policy.
+     * @return false if the queue is full and the event was dropped
+     */
+    public boolean add(Event event) {
+        return queue.offer(event);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (retryAt != 0) {
+                // nothing is polled until the failed batch goes through
+                long wait = retryAt - System.currentTimeMillis();
+                if (wait <= 0) {
+                    send();
+                } else {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                }
+                continue;
+            }
+            fill();
+            if (batchSize == maxBatch
+                    || (batchSize > 0 && System.currentTimeMillis() - batchStart >= maxDelayMillis)) {
+                send();
+            } else {
+                LockSupport.parkNanos(this, pollIntervalNanos);
+            }
+        }
+        do {
+            fill();
+            if (batchSize > 0 && !send()) {
+                // given up, what is left in the queue stays there (on disk with SPILL)
+                failedEvents.addAndGet(batchSize);
+                clearBatch();
+                break;
+            }
+        } while (!queue.isEmpty());
+    }
+
+    private void fill() {
+        Event event;
+        while (batchSize < maxBatch && (event = queue.poll()) != null) {
+            if (batchSize == 0) batchStart = System.currentTimeMillis();
+            batch[batchSize++] = event;
+        }
+    }
+
+    /**
+     * Sends the current batch, cleared if the server acknowledged it, kept for a retry otherwise
+     * @return true if the batch was sent
+     */
+    private boolean send() {
+        int events = batchSize;
+        encoder.reset();
+        encoder.log(logId);
+        for (int i = 0; i < events; i++) {
+            if (batch[i] instanceof CompactHeartbeat) {
+                encoder.add(batchSequence + i, (CompactHeartbeat) batch[i]);
+            }
+        }
+        if (encoder.rows() == 0) {
+            // nothing to upload in it
+            clearBatch();
+            return true;
+        }
+
+        int length = encoder.length();
+        int status = -1;
+        long start = System.nanoTime();
+        try {
+            status = transport.post(encoder.body(), 0, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long elapsed = System.nanoTime() - start;
+        postTime.record(elapsed);
+        trace.record(status >= 200 && status < 300 ? Trace.INFO : Trace.WARN, Trace.EV_UPLOAD, events, status,
+                elapsed / 1000000);
+        boolean success = status >= 200 && status < 300;
+        batches.incrementAndGet();
+        if (success) {
+            sentEvents.addAndGet(events);
+            clearBatch();
+            backoff.reset();
+            retryAt = 0;
+        } else {
+            retries.incrementAndGet();
+            retryAt = System.currentTimeMillis() + backoff.nextDelay();
+        }
+        Listener l = listener;
+        if (l != null) l.onBatchSent(events, length, success, status);
+        return success;
+    }
+
+    private void clearBatch() {
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = null;
+        }
+        batchSequence += batchSize;
+        batchSize = 0;
+    }
+
+    /** Events acknowledged by the server */
+    public long getSentCount() { return sentEvents.get(); }
+
+    /** Events given up on: the batch still failing when the uploader was closed */
+    public long getFailedCount() { return failedEvents.get(); }
+
+    /** Attempts the server rejected or could not be reached for */
+    public long getRetryCount() { return retries.get(); }
+
+    /** Events rejected because the queue was full */
+    public long getDroppedCount() { return queue.getDroppedCount(); }
+
+    public long getBatchCount() { return batches.get(); }
+
+    /** Id of the log sent with every batch */
+    public String getLogId() { return logId; }
+
+    /** Approximate number of events waiting for a batch */
+    public int getQueueSize() { return queue.size(); }
+}
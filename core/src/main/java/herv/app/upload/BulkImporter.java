@@ -0,0 +1,300 @@
+package herv.app.upload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.CsvConverter;
+
+/**
+ * Re-uploads the heartbeat csv scratch files (rr*.csv) of the HeRV folder in bulk.
+ * The activity files are not imported: their rows are not heartbeats and the batch endpoint
+ * has no counterpart for them, they reach the server with the folder sync.
+ *
+ * Files are streamed line by line, never loaded whole, and their rows packed into batches of
+ * at most maxBatch rows by {@link BatchEncoder}, like every other upload. The rows of a file
+ * are logged as "csv/&lt;file name&gt;" with their line number as sequence, which does not
+ * change when a batch is retried or a file imported again, so the server drops the rows it
+ * already has. Lines that are not valid rows are skipped and counted. A fixed number of sender
+ * threads post the batches, each with its own {@link BatchTransport}; the reader blocks when
+ * they fall behind, so memory stays bounded by a few batches whatever the size of the history.
+ * A failed batch is retried with {@link ExponentialBackoff} a few times before being counted
+ * as failed; {@link #cancel()} wakes up the senders waiting to retry.
+ *
+ * {@link #run(List)} blocks until everything is sent, so it must be called from a background
+ * thread. Progress is reported to the {@link Listener} from that thread.
+ */
+public class BulkImporter {
+
+    public final static int DEFAULT_CONCURRENCY = 2;
+    public final static int DEFAULT_MAX_BATCH = 500;
+    public final static int DEFAULT_MAX_ATTEMPTS = 4;
+    public final static String LOG_PREFIX = "csv/";
+    private final static long PROGRESS_INTERVAL_MILLIS = 500;
+
+    /**
+     * Creates the transport of one sender thread
+     */
+    public interface TransportFactory {
+        BatchTransport create();
+    }
+
+    public interface Listener {
+        void onProgress(Progress progress);
+        void onFinished(Progress progress);
+    }
+
+    /**
+     * Snapshot of the state of an import
+     */
+    public static class Progress {
+        public int files;
+        public int filesDone;
+        public long totalBytes;
+        public long bytesRead;
+        public long lines;
+        public long skippedLines;
+        public long sentLines;
+        public long failedLines;
+        public long batches;
+        public long elapsedMillis;
+
+        /** Lines acknowledged by the server per second */
+        public double getLinesPerSecond() {
+            return elapsedMillis == 0 ? 0 : sentLines * 1000.0 / elapsedMillis;
+        }
+
+        /** 0 to 100 */
+        public int getPercent() {
+            return totalBytes == 0 ? 100 : (int) (bytesRead * 100 / totalBytes);
+        }
+
+        @Override
+        public String toString() {
+            return filesDone + "/" + files + " files, " + getPercent() + "%, " + sentLines + " lines sent, "
+                    + failedLines + " failed, " + Math.round(getLinesPerSecond()) + " lines/s";
+        }
+    }
+
+    private static class Batch {
+        final byte[] body;
+        final int length;
+        final int lines;
+
+        Batch(byte[] body, int length, int lines) {
+            this.body = body;
+            this.length = length;
+            this.lines = lines;
+        }
+    }
+
+    private final static Batch END = new Batch(new byte[0], 0, 0);
+
+    private final TransportFactory transports;
+    private final int concurrency;
+    private final int maxBatch;
+    private final int maxAttempts;
+    private final long backoffInitialMillis;
+    private final long backoffMaxMillis;
+    private final BlockingQueue<Batch> queue;
+
+    private final AtomicLong sentLines = new AtomicLong();
+    private final AtomicLong failedLines = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    private volatile Listener listener;
+    private volatile boolean cancelled;
+    // released by cancel, so senders waiting between attempts stop right away
+    private final CountDownLatch cancelSignal = new CountDownLatch(1);
+
+    public BulkImporter(TransportFactory transports) {
+        this(transports, DEFAULT_CONCURRENCY, DEFAULT_MAX_BATCH, DEFAULT_MAX_ATTEMPTS, 1000, 30 * 1000);
+    }
+
+    public BulkImporter(TransportFactory transports, int concurrency, int maxBatch, int maxAttempts,
+                        long backoffInitialMillis, long backoffMaxMillis) {
+        if (concurrency < 1 || maxBatch < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid importer settings");
+        }
+        this.transports = transports;
+        this.concurrency = concurrency;
+        this.maxBatch = maxBatch;
+        this.maxAttempts = maxAttempts;
+        this.backoffInitialMillis = backoffInitialMillis;
+        this.backoffMaxMillis = backoffMaxMillis;
+        this.queue = new ArrayBlockingQueue<Batch>(concurrency);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stops the import, the batches not sent yet are counted as failed; can be called from any
+     * thread
+     */
+    public void cancel() {
+        cancelled = true;
+        cancelSignal.countDown();
+    }
+
+    /**
+     * @return the rr csv files of dir, oldest first
+     */
+    public static File[] listImportable(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                String name = f.getName();
+                return f.isFile() && name.endsWith(".csv") && name.startsWith("rr");
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files); // names end with yyMMdd(HH)
+        return files;
+    }
+
+    /**
+     * Reads and uploads the files, blocking until done or cancelled
+     */
+    public Progress run(List<File> files) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Progress progress = new Progress();
+        progress.files = files.size();
+        for (File f : files) progress.totalBytes += f.length();
+
+        Thread[] senders = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            senders[i] = new Thread(new Sender(transports.create()), "herv-import-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+
+        long lastReport = start;
+        BatchEncoder encoder = new BatchEncoder(maxBatch * 64);
+        CsvConverter converter = new CsvConverter();
+        try {
+            for (File file : files) {
+                if (cancelled) break;
+                String log = LOG_PREFIX + file.getName();
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 64 * 1024);
+                    String line;
+                    long lineNumber = 0;
+                    while (!cancelled && (line = reader.readLine()) != null) {
+                        lineNumber++;
+                        progress.bytesRead += line.length() + 1;
+                        if (line.trim().length() == 0) continue;
+                        CompactHeartbeat beat = converter.parseHeartbeat(line);
+                        if (beat == null) {
+                            progress.skippedLines++;
+                            continue;
+                        }
+                        encoder.log(log);
+                        encoder.add(lineNumber, beat);
+                        progress.lines++;
+                        if (encoder.rows() == maxBatch) {
+                            queue.put(new Batch(Arrays.copyOf(encoder.body(), encoder.length()),
+                                    encoder.length(), encoder.rows()));
+                            encoder.reset();
+                        }
+                        long now = System.currentTimeMillis();
+                        if (now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                            lastReport = now;
+                            report(progress, start, false);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                progress.filesDone++;
+            }
+            if (encoder.rows() > 0 && !cancelled) {
+                queue.put(new Batch(Arrays.copyOf(encoder.body(), encoder.length()),
+                        encoder.length(), encoder.rows()));
+            }
+        } finally {
+            for (int i = 0; i < concurrency; i++) queue.put(END);
+            for (Thread sender : senders) sender.join();
+        }
+        report(progress, start, true);
+        return progress;
+    }
+
+    private void report(Progress progress, long start, boolean finished) {
+        progress.sentLines = sentLines.get();
+        progress.failedLines = failedLines.get();
+        progress.batches = batches.get();
+        progress.elapsedMillis = System.currentTimeMillis() - start;
+        Listener l = listener;
+        if (l == null) return;
+        if (finished) {
+            l.onFinished(progress);
+        } else {
+            l.onProgress(progress);
+        }
+    }
+
+    private class Sender implements Runnable {
+        private final BatchTransport transport;
+        private final ExponentialBackoff backoff;
+
+        Sender(BatchTransport transport) {
+            this.transport = transport;
+            this.backoff = new ExponentialBackoff(backoffInitialMillis, backoffMaxMillis);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != END) {
+                    send(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void send(Batch batch) throws InterruptedException {
+            batches.incrementAndGet();
+            for (int attempt = 1; !cancelled; attempt++) {
+                int status = -1;
+                try {
+                    status = transport.post(batch.body, 0, batch.length);
+                } catch (IOException e) {
+                    // server unreachable, retried below
+                }
+                if (status >= 200 && status < 300) {
+                    backoff.reset();
+                    sentLines.addAndGet(batch.lines);
+                    return;
+                }
+                if (attempt == maxAttempts) break;
+                if (cancelSignal.await(backoff.nextDelay(), TimeUnit.MILLISECONDS)) break;
+            }
+            backoff.reset();
+            failedLines.addAndGet(batch.lines);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package herv.app.upload;
+
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with jitter: the n-th delay is picked at random between half and
+ * all of min(max, initial * 2^n), so clients that failed together do not retry together.
+ * Not thread safe.
+ */
+public class ExponentialBackoff {
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts;
+
+    public ExponentialBackoff(long initialMillis, long maxMillis) {
+        this(initialMillis, maxMillis, new Random());
+    }
+
+    public ExponentialBackoff(long initialMillis, long maxMillis, Random random) {
+        if (initialMillis <= 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("Invalid backoff " + initialMillis + "-" + maxMillis);
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    /**
+     * @return how long to wait before the next attempt
+     */
+    public long nextDelay() {
+        long cap = maxMillis;
+        // initial * 2^attempts without overflowing
+        if (attempts < 62 && initialMillis <= (maxMillis >> attempts)) {
+            cap = Math.min(maxMillis, initialMillis << attempts);
+        }
+        attempts++;
+        long half = cap / 2;
+        return cap - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /** Called after a success */
+    public void reset() {
+        attempts = 0;
+    }
+
+    /** Failed attempts since the last success */
+    public int getAttempts() {
+        return attempts;
+    }
+}
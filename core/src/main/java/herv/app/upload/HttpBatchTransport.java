@@ -0,0 +1,73 @@
+package herv.app.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Posts batches with {@link HttpURLConnection}. The response body is always read to the end
+ * and the streams closed (never {@code disconnect()}), so the underlying keep-alive
+ * connection goes back to the pool and is reused by the next batch.
+ * Meant to be used from a single uploader thread.
+ */
+public class HttpBatchTransport implements BatchTransport {
+
+    public final static String DEFAULT_URL = "http://uspio.pythonanywhere.com/AgregarHeartBatch_ajax/";
+
+    private final URL url;
+    private final String contentType;
+    private final byte[] discard = new byte[512];
+
+    public HttpBatchTransport(String url) {
+        this(toURL(url));
+    }
+
+    public HttpBatchTransport(URL url) {
+        this(url, "text/csv; charset=utf-8");
+    }
+
+    public HttpBatchTransport(URL url, String contentType) {
+        this.url = url;
+        this.contentType = contentType;
+    }
+
+    private static URL toURL(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid upload url: " + url, e);
+        }
+    }
+
+    @Override
+    public int post(byte[] body, int offset, int length) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setReadTimeout(10000 /* milliseconds */);
+        conn.setConnectTimeout(15000 /* milliseconds */);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", contentType);
+        conn.setFixedLengthStreamingMode(length);
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body, offset, length);
+        } finally {
+            out.close();
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (in != null) {
+            try {
+                while (in.read(discard) != -1) {
+                    // drain so the connection can be reused
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,417 @@
+package herv.app.upload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import herv.app.metrics.Gauge;
+import herv.app.metrics.LatencyHistogram;
+import herv.app.metrics.MetricsRegistry;
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.HeartbeatCodec;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.SegmentReader;
+import herv.app.storage.TimeIndex;
+import herv.app.trace.Trace;
+
+/**
+ * Durable outbox over the {@link SegmentLog}: delivers every record of the log to the server
+ * at least once, in order.
+ *
+ * The log itself holds the unacknowledged records, so nothing is kept in memory but the batch
+ * being sent, however long the phone stays offline. The position of the first record not yet
+ * acknowledged (sequence, segment and offset) is saved in a small state file after each
+ * successful batch, so uploading resumes where it stopped after the process is restarted.
+ * Failed batches are retried with {@link ExponentialBackoff}. Until a batch is due (full, or
+ * its first record old enough), polling only counts the records appended since the last poll;
+ * the batch is read and encoded once, when it is sent.
+ *
+ * Batches are built by {@link BatchEncoder}, the sequence of each row being its sequence in
+ * the log. The log id is a random UUID created with the outbox state and saved in it, so it
+ * changes when the log folder is wiped or the app reinstalled and the sequences restart at 0:
+ * the server tells logs (and so devices) apart by the id, and drops the records of a log it
+ * already got from a batch that was retried by their sequence.
+ *
+ * The log is also the local history, so acknowledged records are not deleted right away: a
+ * sealed segment is deleted, with its time index, once all of its records are acknowledged and
+ * it was last written more than the retention period ago; the {@link TimeIndex} set with
+ * {@link #setTimeIndex} is told, so it stops planning reads over it.
+ *
+ * The time of each POST is recorded in the {@link MetricsRegistry} as "upload.post".
+ */
+public class Outbox implements Runnable {
+
+    public final static int DEFAULT_MAX_BATCH = 120;
+    public final static long DEFAULT_MAX_DELAY_MILLIS = 60 * 1000;
+    public final static long DEFAULT_POLL_MILLIS = 5 * 1000;
+    public final static long DEFAULT_RETENTION_MILLIS = 30L * 24 * 3600 * 1000;
+    /** Name of the state file, kept in the log folder */
+    public final static String STATE_FILE = "outbox.state";
+
+    private final File logDir;
+    private final File stateFile;
+    private final BatchTransport transport;
+    private final ExponentialBackoff backoff;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final long pollMillis;
+    private final long retentionMillis;
+
+    // identifies this log to the server, see the class comment
+    private String logId;
+
+    // first record not acknowledged yet
+    private long ackedSequence;
+    private long ackedSegment;
+    private long ackedOffset;
+
+    // end of the records counted so far, see countAvailable
+    private long countSequence;
+    private long countSegment;
+    private long countOffset;
+
+    // end of the batch being built
+    private long batchSequence;
+    private long batchSegment;
+    private long batchOffset;
+
+    private final BatchEncoder encoder = new BatchEncoder();
+    private boolean pending;
+    private long pendingSince;
+    private long retryAt;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong deletedSegments = new AtomicLong();
+    private final LatencyHistogram postTime;
+    private final Trace trace = Trace.getDefault();
+
+    private volatile TimeIndex timeIndex;
+    private volatile boolean running;
+    private Thread thread;
+
+    public Outbox(File logDir, File stateFile, BatchTransport transport) throws IOException {
+        this(logDir, stateFile, transport, new ExponentialBackoff(5 * 1000, 30 * 60 * 1000),
+                DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_POLL_MILLIS);
+    }
+
+    public Outbox(File logDir, File stateFile, BatchTransport transport, ExponentialBackoff backoff,
+                  int maxBatch, long maxDelayMillis, long pollMillis) throws IOException {
+        this(logDir, stateFile, transport, backoff, maxBatch, maxDelayMillis, pollMillis,
+                DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * @param retentionMillis how long acknowledged segments are kept after their last write
+     */
+    public Outbox(File logDir, File stateFile, BatchTransport transport, ExponentialBackoff backoff,
+                  int maxBatch, long maxDelayMillis, long pollMillis, long retentionMillis)
+            throws IOException {
+        this.logDir = logDir;
+        this.stateFile = stateFile;
+        this.transport = transport;
+        this.backoff = backoff;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        this.pollMillis = pollMillis;
+        this.retentionMillis = retentionMillis;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.postTime = metrics.histogram("upload.post");
+        metrics.gauge("outbox.delivered", new Gauge() {
+            @Override
+            public long get() { return delivered.get(); }
+        });
+        metrics.gauge("outbox.failed", new Gauge() {
+            @Override
+            public long get() { return failedAttempts.get(); }
+        });
+        loadState();
+    }
+
+    /**
+     * @param timeIndex index of the log, told about the segments deleted; may be null
+     */
+    public void setTimeIndex(TimeIndex timeIndex) {
+        this.timeIndex = timeIndex;
+    }
+
+    //region thread
+
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "herv-outbox");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long wait;
+            try {
+                wait = step(System.currentTimeMillis());
+            } catch (IOException e) {
+                e.printStackTrace();
+                wait = pollMillis;
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+            }
+        }
+    }
+
+    //endregion
+
+    /**
+     * Sends one batch if it is due
+     * @return how long to wait before calling again, 0 to call again right away
+     */
+    long step(long now) throws IOException {
+        if (now < retryAt) {
+            return retryAt - now;
+        }
+        long available = countAvailable();
+        if (available == 0) {
+            pending = false;
+            return pollMillis;
+        }
+        if (!pending) {
+            pending = true;
+            pendingSince = now;
+        }
+        if (available < maxBatch && now - pendingSince < maxDelayMillis) {
+            return Math.min(pollMillis, pendingSince + maxDelayMillis - now);
+        }
+        // due: encoded once, and again only if it has to be retried
+        int records = collect();
+
+        int status = -1;
+        long start = System.nanoTime();
+        try {
+            status = transport.post(encoder.body(), 0, encoder.length());
+        } catch (IOException e) {
+            // offline or server unreachable, retried below
+        }
+        long elapsed = System.nanoTime() - start;
+        postTime.record(elapsed);
+        trace.record(status >= 200 && status < 300 ? Trace.INFO : Trace.WARN, Trace.EV_UPLOAD, records, status,
+                elapsed / 1000000);
+        if (status >= 200 && status < 300) {
+            ackedSequence = batchSequence;
+            ackedSegment = batchSegment;
+            ackedOffset = batchOffset;
+            saveState();
+            delivered.addAndGet(records);
+            backoff.reset();
+            pending = false;
+            deleteAcknowledged(now);
+            return 0;
+        }
+        failedAttempts.incrementAndGet();
+        retryAt = now + backoff.nextDelay();
+        return retryAt - now;
+    }
+
+    /**
+     * Counts the records appended since the last call, without decoding them: only what was
+     * appended in between is read, from where the last count stopped
+     * @return records not acknowledged yet, counting stops at maxBatch
+     */
+    private long countAvailable() throws IOException {
+        if (countSequence < ackedSequence) {
+            countSequence = ackedSequence;
+            countSegment = ackedSegment;
+            countOffset = ackedOffset;
+        }
+        if (countSequence - ackedSequence >= maxBatch) return maxBatch;
+        File[] segments = SegmentLog.listSegments(logDir);
+        int i = segments.length - 1;
+        while (i > 0 && SegmentLog.baseSequenceOf(segments[i]) > countSequence) i--;
+        if (i < 0) return 0;
+
+        long offset = SegmentLog.baseSequenceOf(segments[i]) == countSegment ? countOffset : -1;
+        while (true) {
+            long base = SegmentLog.baseSequenceOf(segments[i]);
+            if (countSequence < base) countSequence = base;
+            SegmentReader reader = open(segments[i], offset, countSequence);
+            while (countSequence - ackedSequence < maxBatch && reader.next()) {
+                countSequence = reader.sequence() + 1;
+            }
+            countSegment = base;
+            countOffset = reader.nextOffset();
+            if (countSequence - ackedSequence >= maxBatch || i == segments.length - 1) break;
+            i++;
+            offset = -1;
+        }
+        return Math.min(countSequence - ackedSequence, maxBatch);
+    }
+
+    /**
+     * @param offset of the record with the given sequence, or -1 to skip the records before it
+     */
+    private static SegmentReader open(File segment, long offset, long sequence) throws IOException {
+        SegmentReader reader = new SegmentReader(segment);
+        if (offset >= SegmentLog.HEADER_SIZE) {
+            reader.seek(offset, sequence);
+        } else {
+            while (reader.sequence() + 1 < sequence && reader.next()) {
+                // skip the records before
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Encodes up to maxBatch records starting at the first unacknowledged one
+     * @return number of records in the batch
+     */
+    private int collect() throws IOException {
+        encoder.reset();
+        encoder.log(logId);
+        File[] segments = SegmentLog.listSegments(logDir);
+        int i = segments.length - 1;
+        while (i > 0 && SegmentLog.baseSequenceOf(segments[i]) > ackedSequence) i--;
+        if (i < 0) return 0;
+
+        long sequence = ackedSequence;
+        long offset = SegmentLog.baseSequenceOf(segments[i]) == ackedSegment ? ackedOffset : -1;
+        int records = 0;
+        while (true) {
+            long base = SegmentLog.baseSequenceOf(segments[i]);
+            if (sequence < base) sequence = base; // records lost before this segment
+            SegmentReader reader = open(segments[i], offset, sequence);
+            while (records < maxBatch && reader.next()) {
+                append(reader.sequence(), reader.payload());
+                records++;
+                sequence = reader.sequence() + 1;
+            }
+            batchSegment = base;
+            batchOffset = reader.nextOffset();
+            batchSequence = sequence;
+            if (records == maxBatch || i == segments.length - 1) break;
+            // done with a sealed segment, continue on the next one
+            i++;
+            offset = -1;
+        }
+        return records;
+    }
+
+    private void append(long sequence, ByteBuffer payload) {
+        CompactHeartbeat beat = HeartbeatCodec.decode(payload);
+        // an empty or unknown record is left out, and acknowledged with the batch anyway
+        if (beat != null) encoder.add(sequence, beat);
+    }
+
+    /**
+     * Deletes the sealed segments whose records are all acknowledged and that were last written
+     * before the retention period
+     */
+    private void deleteAcknowledged(long now) {
+        File[] segments = SegmentLog.listSegments(logDir);
+        // the last one may be active, and a segment is fully acknowledged once the next one is
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (SegmentLog.baseSequenceOf(segments[i + 1]) > ackedSequence) break;
+            if (now - segments[i].lastModified() < retentionMillis) break;
+            File index = new File(logDir, segments[i].getName() + TimeIndex.INDEX_SUFFIX);
+            if (!segments[i].delete()) break;
+            index.delete();
+            deletedSegments.incrementAndGet();
+            TimeIndex t = timeIndex;
+            if (t != null) {
+                try {
+                    t.onSegmentDeleted(SegmentLog.baseSequenceOf(segments[i]));
+                } catch (IOException e) {
+                    e.printStackTrace(); // the manifest drops it on its next save
+                }
+            }
+        }
+    }
+
+    //region state file
+
+    private void loadState() throws IOException {
+        if (!stateFile.exists()) {
+            // a new log
+            logId = UUID.randomUUID().toString();
+            saveState();
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(stateFile), "UTF-8"));
+        try {
+            String[] parts = reader.readLine().trim().split(" ");
+            ackedSequence = Long.parseLong(parts[0]);
+            ackedSegment = Long.parseLong(parts[1]);
+            ackedOffset = Long.parseLong(parts[2]);
+            logId = parts.length > 3 ? parts[3] : null;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted outbox state " + stateFile, e);
+        } finally {
+            reader.close();
+        }
+        if (logId == null) {
+            // saved before logs had an id
+            logId = UUID.randomUUID().toString();
+            saveState();
+        }
+    }
+
+    /**
+     * Written to a temporary file and renamed, so a kill leaves either the old or the new state
+     */
+    private void saveState() throws IOException {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write((ackedSequence + " " + ackedSegment + " " + ackedOffset + " " + logId + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Unable to save outbox state " + stateFile);
+        }
+    }
+
+    //endregion
+
+    /** Sequence of the first record not acknowledged by the server */
+    public long getAckedSequence() { return ackedSequence; }
+
+    /** Records acknowledged by the server since start */
+    public long getDeliveredCount() { return delivered.get(); }
+
+    /** Batches that failed and were scheduled for retry */
+    public long getFailedAttempts() { return failedAttempts.get(); }
+
+    /** Acknowledged segments deleted by the retention rule since start */
+    public long getDeletedSegments() { return deletedSegments.get(); }
+
+    /** Id of the log sent with every batch */
+    public String getLogId() { return logId; }
+}
@@ -0,0 +1,90 @@
+package herv.app.analytics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import herv.app.model.TimestampFormatter;
+
+import static org.junit.Assert.*;
+
+public class ActivityIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static long T0 = 1525215600000L;
+    private final static long MIN = 60 * 1000L;
+
+    /** Sessions of 10 min every 30 min, alternating two activities */
+    private ActivityIndex record(int sessions) throws Exception {
+        ActivityIndex index = new ActivityIndex(new File(folder.getRoot(), ActivityIndex.INDEX_FILE));
+        for (int i = 0; i < sessions; i++) {
+            index.start(T0 + i * 30 * MIN, i % 2 == 0 ? "Walk" : "Read", i % 2 == 0 ? "stand" : "sit");
+            index.stop(T0 + i * 30 * MIN + 10 * MIN);
+        }
+        return index;
+    }
+
+    private static void assertLookups(ActivityIndex index) {
+        assertEquals("Walk", index.at(T0).activityName);
+        assertEquals("sit", index.at(T0 + 30 * MIN + 5 * MIN).posture);
+        assertNull(index.at(T0 + 10 * MIN)); // stop is exclusive
+        assertNull(index.at(T0 - 1));
+        List<ActivityIndex.Entry> range = index.query(T0 + 5 * MIN, T0 + 65 * MIN);
+        assertEquals(3, range.size());
+        assertEquals(T0, range.get(0).start);
+        assertEquals(T0 + 60 * MIN, range.get(2).start);
+        assertTrue(index.query(T0 + 11 * MIN, T0 + 29 * MIN).isEmpty());
+    }
+
+    @Test
+    public void findsActivitiesByTime() throws Exception {
+        ActivityIndex index = record(1000);
+        assertEquals(1000, index.size());
+        assertLookups(index);
+        assertEquals("Read", index.at(T0 + 999 * 30 * MIN).activityName);
+    }
+
+    @Test
+    public void reloadsFromFile() throws Exception {
+        record(1000);
+        ActivityIndex loaded = new ActivityIndex(new File(folder.getRoot(), ActivityIndex.INDEX_FILE));
+        assertTrue(loaded.load());
+        assertEquals(1000, loaded.size());
+        assertLookups(loaded);
+        // two labels for a thousand sessions
+        assertTrue(new File(folder.getRoot(), ActivityIndex.INDEX_FILE).length() < 1000 * 21 + 64);
+    }
+
+    @Test
+    public void rebuildsFromActivityFiles() throws Exception {
+        TimestampFormatter f = TimestampFormatter.getDefault();
+        File act = new File(folder.getRoot(), "act180502.csv");
+        FileOutputStream out = new FileOutputStream(act);
+        out.write(("\n" + f.format(T0) + ",start,Walk,stand"
+                + "\n" + f.format(T0 + 10 * MIN) + ",stop,,"
+                + "\n" + f.format(T0 + 30 * MIN) + ",start,Read,sit"
+                + "\n" + f.format(T0 + 40 * MIN) + ",stop,,"
+                + "\n" + f.format(T0 + 60 * MIN) + ",start,Walk,stand"
+                + "\n" + f.format(T0 + 70 * MIN) + ",start,Read,sit").getBytes("UTF-8"));
+        out.close();
+
+        ActivityIndex index = ActivityIndex.getDefault(folder.getRoot());
+        assertEquals(4, index.size());
+        assertLookups(index);
+        // the START closed the session before it, the last one was never stopped
+        assertEquals(T0 + 70 * MIN, index.at(T0 + 65 * MIN).stop);
+        assertTrue(index.at(T0 + 1000 * MIN).isOpen());
+
+        // process killed while recording: closed at the last beat
+        assertTrue(index.closeOpen(T0 + 75 * MIN));
+        assertNull(index.getOpen());
+        assertNull(index.at(T0 + 80 * MIN));
+        assertFalse(index.closeOpen(T0 + 90 * MIN));
+    }
+}
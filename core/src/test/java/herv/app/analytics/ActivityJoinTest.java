@@ -0,0 +1,129 @@
+package herv.app.analytics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+import herv.app.model.TimestampFormatter;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.TimeIndex;
+
+import static org.junit.Assert.*;
+
+public class ActivityJoinTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static long T0 = 1525215600000L;
+
+    private final List<ActivitySession> sessions = new ArrayList<ActivitySession>();
+    private final ActivityJoin.Listener collect = new ActivityJoin.Listener() {
+        @Override
+        public void onSession(ActivitySession session) {
+            sessions.add(session);
+        }
+    };
+
+    private static String row(long ts, String type, String activity, String posture) {
+        return "\n" + TimestampFormatter.getDefault().format(ts) + "," + type + "," + activity + "," + posture;
+    }
+
+    private void write(String name, String content) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), name));
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+    }
+
+    /** One beat per second for an hour, RR 1024 (1000 ms) before minute 30, 768 (750 ms) after */
+    private TimeIndex recordHour() throws Exception {
+        File dir = folder.newFolder("log");
+        LogEventStore store = new LogEventStore(new SegmentLog(dir, 16 * 1024), new TimeIndex(dir));
+        for (int s = 0; s < 3600; s++) {
+            int rr = s < 1800 ? 1024 : 768;
+            // every 100th interval is an artifact the filter rejected
+            byte quality = s % 100 == 50 ? RrQuality.REJECTED : RrQuality.OK;
+            store.append(new CompactHeartbeat(null, T0 + s * 1000L, 60, new int[]{rr}, new byte[]{quality}));
+        }
+        store.flush();
+        return store.getIndex();
+    }
+
+    @Test
+    public void assignsBeatsToTheirActivity() throws Exception {
+        TimeIndex index = recordHour();
+        write("act180502.csv", row(T0 + 60 * 1000, "start", "Walk", "stand")
+                + row(T0 + 10 * 60 * 1000, "stop", "", "")
+                + "\nnot a row"
+                + row(T0 + 40 * 60 * 1000, "start", "Read", "sit"));
+        write("act180503.csv", row(T0 + 50 * 60 * 1000, "stop", "", ""));
+
+        ActivityJoin join = ActivityJoin.joinHistory(folder.getRoot(), index, collect);
+
+        assertEquals(2, sessions.size());
+        ActivitySession walk = sessions.get(0);
+        assertEquals("Walk", walk.activityName);
+        assertEquals("stand", walk.posture);
+        assertTrue(walk.complete);
+        assertEquals(540, walk.beats);
+        assertEquals(5, walk.rejected);
+        assertEquals(535, walk.hrv.count);
+        assertEquals(60.0, walk.hrv.meanHeartRate, 1e-9);
+        assertEquals(0.0, walk.hrv.rmssd, 1e-9);
+
+        ActivitySession read = sessions.get(1);
+        assertEquals("Read", read.activityName);
+        assertEquals(600, read.beats);
+        assertEquals(80.0, read.hrv.meanHeartRate, 1e-9);
+        assertEquals(3600 - 540 - 600, join.getUnassignedBeats());
+    }
+
+    @Test
+    public void closesSessionsWithoutStop() throws Exception {
+        ActivityJoin join = new ActivityJoin(collect);
+        join.onStart(T0, "Walk", "stand");
+        join.onBeat(new CompactHeartbeat(T0 + 1000, 60, new int[]{1024}));
+        join.onStart(T0 + 2000, "Run", "move");
+        join.onBeat(new CompactHeartbeat(T0 + 3000, 60, new int[]{512}));
+        join.onBeat(new CompactHeartbeat(T0 + 4000, 60, new int[]{512}));
+        join.finish();
+
+        assertEquals(2, sessions.size());
+        assertFalse(sessions.get(0).complete);
+        assertEquals(T0 + 2000, sessions.get(0).stop);
+        assertFalse(sessions.get(1).complete);
+        assertEquals(T0 + 4000, sessions.get(1).stop);
+        assertEquals(2, sessions.get(1).hrv.count);
+        assertEquals(0, join.getUnassignedBeats());
+    }
+
+    @Test
+    public void usesTheCorrectedValueOfAMissedBeat() throws Exception {
+        ActivityJoin join = new ActivityJoin(collect);
+        join.onStart(T0, "Walk", "stand");
+        for (int s = 1; s <= 10; s++) {
+            if (s == 5) {
+                // missed beat, about 2000 ms, corrected to the 1000 ms median by the filter
+                join.onBeat(CompactHeartbeat.copyOf(T0 + s * 1000L, 60, new int[]{2048},
+                        new byte[]{RrQuality.CORRECTED}, new int[]{1000}, 1));
+            } else {
+                join.onBeat(new CompactHeartbeat(T0 + s * 1000L, 60, new int[]{1024}));
+            }
+        }
+        join.onStop(T0 + 11 * 1000);
+
+        ActivitySession walk = sessions.get(0);
+        assertEquals(10, walk.hrv.count);
+        assertEquals(0, walk.rejected);
+        assertEquals(0.0, walk.hrv.rmssd, 1e-9);
+        assertEquals(0.0, walk.hrv.sdnn, 1e-9);
+    }
+}
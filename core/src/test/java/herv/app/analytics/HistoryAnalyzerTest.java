@@ -0,0 +1,81 @@
+package herv.app.analytics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import herv.app.hrm.HeartRateMeasurement;
+import herv.app.hrv.HrvEngine;
+import herv.app.hrv.HrvMetrics;
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+import herv.app.model.TimestampFormatter;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.SegmentLog;
+
+import static org.junit.Assert.*;
+
+public class HistoryAnalyzerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static TimestampFormatter UTC = new TimestampFormatter(TimeZone.getTimeZone("UTC"));
+    private final static long DAY0 = 1525132800000L; // 2018-05-01 00:00 UTC
+
+    @Test
+    public void matchesSerialEngineWhateverTheThreads() throws Exception {
+        File log = folder.newFolder(HistoryAnalyzer.LOG_FOLDER);
+        LogEventStore store = new LogEventStore(new SegmentLog(log, 8 * 1024));
+        Map<String, HrvEngine> expected = new TreeMap<String, HrvEngine>();
+        Random random = new Random(3);
+        long ts = DAY0 + 20 * 3600 * 1000L;
+        for (int i = 0; i < 20000; i++) {
+            ts += 1000 + random.nextInt(20000);
+            int rr = 600 + random.nextInt(500);
+            int kind = random.nextInt(50);
+            byte quality = kind == 0 ? RrQuality.REJECTED : kind == 1 ? RrQuality.CORRECTED : RrQuality.OK;
+            int raw = (int) (rr * 1024L / 1000);
+            // a corrected interval is a missed beat, about twice its corrected value
+            if (quality == RrQuality.CORRECTED) raw *= 2;
+            store.append(CompactHeartbeat.copyOf(ts, 60000 / rr, new int[]{raw}, new byte[]{quality},
+                    new int[]{rr}, 1));
+
+            String day = UTC.formatDayKey(ts, new StringBuilder()).toString();
+            HrvEngine engine = expected.get(day);
+            if (engine == null) {
+                engine = new HrvEngine();
+                expected.put(day, engine);
+            }
+            if (quality == RrQuality.OK) {
+                engine.add(HeartRateMeasurement.rrToMillis(raw));
+            } else if (quality == RrQuality.CORRECTED) {
+                engine.add(rr);
+            }
+        }
+        store.close();
+        assertTrue(SegmentLog.listSegments(log).length > 20);
+
+        for (int threads : new int[]{1, 4}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            TreeMap<String, DayStats> days = new HistoryAnalyzer(pool, UTC).analyze(folder.getRoot());
+            pool.shutdown();
+            assertEquals(expected.keySet(), days.keySet());
+            for (Map.Entry<String, HrvEngine> e : expected.entrySet()) {
+                HrvMetrics want = e.getValue().session(new HrvMetrics());
+                HrvMetrics got = days.get(e.getKey()).getHrv(new HrvMetrics());
+                assertEquals(want.count, got.count);
+                assertEquals(want.sdnn, got.sdnn, 0);
+                assertEquals(want.rmssd, got.rmssd, 0);
+                assertEquals(want.pnn50, got.pnn50, 0);
+            }
+        }
+    }
+}
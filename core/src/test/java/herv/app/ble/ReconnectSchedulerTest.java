@@ -0,0 +1,132 @@
+package herv.app.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import herv.app.upload.ExponentialBackoff;
+
+import static org.junit.Assert.*;
+
+public class ReconnectSchedulerTest {
+
+    /** Virtual clock: tasks only run when the test advances time */
+    private static class VirtualClock implements ReconnectScheduler.Clock {
+        private static class Task {
+            final Runnable runnable;
+            final long at;
+            Task(Runnable runnable, long at) { this.runnable = runnable; this.at = at; }
+        }
+
+        long now;
+        final List<Task> tasks = new ArrayList<Task>();
+
+        @Override public long now() { return now; }
+
+        @Override
+        public Object schedule(Runnable task, long delayMillis) {
+            Task t = new Task(task, now + delayMillis);
+            tasks.add(t);
+            return t;
+        }
+
+        @Override
+        public void cancel(Object handle) {
+            tasks.remove(handle);
+        }
+
+        void advance(long millis) {
+            long end = now + millis;
+            while (true) {
+                Task next = null;
+                for (Task t : tasks) {
+                    if (t.at <= end && (next == null || t.at < next.at)) next = t;
+                }
+                if (next == null) break;
+                tasks.remove(next);
+                now = next.at;
+                next.runnable.run();
+            }
+            now = end;
+        }
+    }
+
+    /** Fake GATT layer: connect() fails until the sensor is back in range */
+    private static class FakeGatt implements ReconnectScheduler.Connector {
+        boolean inRange;
+        int calls;
+        @Override public boolean connect() {
+            calls++;
+            return inRange;
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock();
+    private final FakeGatt gatt = new FakeGatt();
+    // delays between 500 and 1000, 1000 and 2000, ... capped at 4000
+    private final ReconnectScheduler scheduler = new ReconnectScheduler(gatt, clock,
+            new ExponentialBackoff(1000, 4000, new Random(42)));
+
+    @Test
+    public void retriesWithBackoffOffTheCallbackThread() {
+        scheduler.onDisconnected();
+        assertEquals(0, gatt.calls); // nothing runs in the callback itself
+
+        clock.advance(0);
+        assertEquals(1, gatt.calls);
+        clock.advance(1000);
+        assertEquals(2, gatt.calls);
+        clock.advance(20 * 1000); // 2000, 4000, 4000, 4000... at most 4000 apart
+        assertTrue(gatt.calls >= 2 + 20 / 4);
+        assertTrue(gatt.calls <= 2 + 20 / 2 + 1);
+        assertEquals(gatt.calls, scheduler.getAttempts());
+        assertEquals(gatt.calls, scheduler.getFailedAttempts());
+
+        gatt.inRange = true;
+        clock.advance(4000);
+        int calls = gatt.calls;
+        clock.advance(60 * 1000);
+        assertEquals(calls, gatt.calls); // initiated, waiting for the callback
+        scheduler.onConnected();
+        assertEquals(1, scheduler.getReconnects());
+        assertEquals(clock.now, scheduler.getLastReconnectMillis());
+        assertFalse(scheduler.isReconnecting());
+        assertTrue(clock.tasks.isEmpty());
+    }
+
+    @Test
+    public void failedConnectionIsRetriedAfterBackoff() {
+        gatt.inRange = true;
+        scheduler.onDisconnected();
+        clock.advance(0);
+        assertEquals(1, gatt.calls);
+        scheduler.onDisconnected(); // gatt reports the attempt failed
+        clock.advance(499);
+        assertEquals(1, gatt.calls);
+        clock.advance(501);
+        assertEquals(2, gatt.calls);
+        clock.advance(100);
+        scheduler.onConnected();
+        assertEquals(1100, scheduler.getLastReconnectMillis());
+    }
+
+    @Test
+    public void cancelStopsReconnecting() {
+        scheduler.onDisconnected();
+        clock.advance(0);
+        scheduler.cancel();
+        assertFalse(scheduler.isEnabled());
+        assertTrue(clock.tasks.isEmpty());
+        scheduler.onDisconnected(); // disconnection asked for by the user
+        clock.advance(60 * 1000);
+        assertEquals(1, gatt.calls);
+
+        scheduler.enable();
+        assertTrue(scheduler.isEnabled());
+        scheduler.onDisconnected();
+        clock.advance(0);
+        assertEquals(2, gatt.calls);
+    }
+}
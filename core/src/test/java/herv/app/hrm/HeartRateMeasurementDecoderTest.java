@@ -0,0 +1,71 @@
+package herv.app.hrm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeartRateMeasurementDecoderTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    @Test
+    public void decodes8bitHeartRateWithoutRR() throws Exception {
+        HeartRateMeasurement m = new HeartRateMeasurement();
+        assertTrue(HeartRateMeasurementDecoder.decode(bytes(0x00, 72), m));
+        assertEquals(72, m.getHeartRate());
+        assertEquals(0, m.getRRCount());
+        assertFalse(m.hasEnergyExpended());
+        assertFalse(m.isSensorContactSupported());
+    }
+
+    @Test
+    public void decodes16bitHeartRateEnergyAndRR() throws Exception {
+        HeartRateMeasurement m = new HeartRateMeasurement();
+        // flags: uint16 HR, contact supported + detected, energy, RR
+        byte[] value = bytes(0x1F, 0x2C, 0x01, 0x10, 0x00, 0x00, 0x04, 0x20, 0x03);
+        assertTrue(HeartRateMeasurementDecoder.decode(value, m));
+        assertEquals(300, m.getHeartRate());
+        assertTrue(m.isSensorContactSupported());
+        assertTrue(m.isSensorContactDetected());
+        assertEquals(16, m.getEnergyExpended());
+        assertEquals(2, m.getRRCount());
+        assertEquals(1024, m.getRR(0));
+        assertEquals(800, m.getRR(1));
+        assertEquals(1000, HeartRateMeasurement.rrToMillis(m.getRR(0)));
+    }
+
+    @Test
+    public void holderIsOverwrittenOnReuse() throws Exception {
+        HeartRateMeasurement m = new HeartRateMeasurement();
+        HeartRateMeasurementDecoder.decode(bytes(0x10, 60, 0x00, 0x04, 0x00, 0x04), m);
+        assertEquals(2, m.getRRCount());
+        HeartRateMeasurementDecoder.decode(bytes(0x00, 61), m);
+        assertEquals(61, m.getHeartRate());
+        assertEquals(0, m.getRRCount());
+    }
+
+    @Test
+    public void ignoresTrailingOddByteAndExtraRR() throws Exception {
+        HeartRateMeasurement m = new HeartRateMeasurement(2);
+        byte[] value = bytes(0x10, 60, 1, 0, 2, 0, 3, 0, 9);
+        assertTrue(HeartRateMeasurementDecoder.decode(value, m));
+        assertEquals(2, m.getRRCount());
+        assertEquals(2, m.getRR(1));
+    }
+
+    @Test
+    public void rejectsTruncatedPayloads() throws Exception {
+        HeartRateMeasurement m = new HeartRateMeasurement();
+        assertFalse(HeartRateMeasurementDecoder.decode(null, m));
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x00), m));
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x01, 0x2C), m));
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x08, 60, 0x10), m));
+        assertEquals(0, m.getHeartRate());
+    }
+}
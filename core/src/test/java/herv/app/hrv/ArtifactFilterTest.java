@@ -0,0 +1,53 @@
+package herv.app.hrv;
+
+import org.junit.Test;
+
+import herv.app.model.RrQuality;
+
+import static org.junit.Assert.*;
+
+public class ArtifactFilterTest {
+
+    private final ArtifactFilter filter = new ArtifactFilter();
+
+    private byte[] run(int... rr) {
+        byte[] quality = new byte[rr.length];
+        filter.process(rr, quality, 0, rr.length);
+        return quality;
+    }
+
+    @Test
+    public void correctsMissedAndExtraBeats() {
+        int[] rr = {800, 810, 790, 805, 1610, 400, 420, 800, 795};
+        byte[] quality = new byte[rr.length];
+        filter.process(rr, quality, 0, rr.length);
+
+        assertEquals(RrQuality.OK, quality[3]);
+        assertEquals(RrQuality.CORRECTED, quality[4]); // missed beat, twice the RR
+        assertEquals(RrQuality.CORRECTED, quality[5]); // extra beat, split RR
+        assertEquals(RrQuality.CORRECTED, quality[6]);
+        assertEquals(RrQuality.OK, quality[7]);
+        assertEquals(805, rr[4]); // median of 800 810 790 805
+        assertEquals(3, filter.getCorrectedCount());
+    }
+
+    @Test
+    public void rejectsNonPhysiologicalValues() {
+        byte[] quality = run(800, 0, 65535, 810);
+        assertEquals(RrQuality.OK, quality[0]);
+        assertEquals(RrQuality.REJECTED, quality[1]);
+        assertEquals(RrQuality.REJECTED, quality[2]);
+        assertEquals(RrQuality.OK, quality[3]);
+        assertEquals(2, filter.getRejectedCount());
+    }
+
+    @Test
+    public void followsARealChangeOfRhythm() {
+        run(1000, 1000, 1000, 1000);
+        byte[] quality = run(600, 600, 600, 600, 600, 600, 600, 610);
+        for (int i = 0; i < 5; i++) assertEquals(RrQuality.CORRECTED, quality[i]);
+        assertEquals(RrQuality.OK, quality[5]); // sixth in a row, the rhythm changed
+        assertEquals(RrQuality.OK, quality[6]);
+        assertEquals(RrQuality.OK, quality[7]);
+    }
+}
@@ -0,0 +1,87 @@
+package herv.app.hrv;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HrvEngineTest {
+
+    /** Straightforward two pass computation over rr[from, to) */
+    private static double[] naive(int[] rr, int from, int to) {
+        int n = to - from;
+        double mean = 0;
+        for (int i = from; i < to; i++) mean += rr[i];
+        mean /= n;
+        double var = 0, diffSq = 0;
+        int nn50 = 0;
+        for (int i = from; i < to; i++) {
+            var += (rr[i] - mean) * (rr[i] - mean);
+            if (i > from) {
+                int d = rr[i] - rr[i - 1];
+                diffSq += d * d;
+                if (Math.abs(d) > 50) nn50++;
+            }
+        }
+        return new double[]{mean, Math.sqrt(var / (n - 1)), Math.sqrt(diffSq / (n - 1)), 100.0 * nn50 / (n - 1)};
+    }
+
+    private static void assertMetrics(double[] expected, HrvMetrics actual) {
+        assertEquals(expected[0], actual.meanRR, 1e-9);
+        assertEquals(60000.0 / expected[0], actual.meanHeartRate, 1e-9);
+        assertEquals(expected[1], actual.sdnn, 1e-6);
+        assertEquals(expected[2], actual.rmssd, 1e-6);
+        assertEquals(expected[3], actual.pnn50, 1e-9);
+    }
+
+    @Test
+    public void matchesTwoPassComputation() {
+        Random random = new Random(7);
+        int[] rr = new int[5000];
+        for (int i = 0; i < rr.length; i++) rr[i] = 600 + random.nextInt(500);
+
+        HrvEngine engine = new HrvEngine(60 * 1000);
+        HrvMetrics metrics = new HrvMetrics();
+        int windowStart = 0;
+        long windowSum = 0;
+        for (int i = 0; i < rr.length; i++) {
+            assertTrue(engine.add(rr[i]));
+            windowSum += rr[i];
+            while (windowSum > 60 * 1000) windowSum -= rr[windowStart++];
+            if (i % 997 == 0 && i - windowStart > 2) {
+                assertMetrics(naive(rr, windowStart, i + 1), engine.window(metrics));
+                assertEquals(i + 1 - windowStart, metrics.count);
+                assertEquals(windowSum, metrics.durationMillis);
+            }
+        }
+        assertMetrics(naive(rr, 0, rr.length), engine.session(metrics));
+        assertEquals(rr.length, metrics.count);
+    }
+
+    @Test
+    public void knownValues() {
+        HrvEngine engine = new HrvEngine();
+        engine.add(new int[]{800, 900, 820, 810}, 0, 4);
+        HrvMetrics m = engine.session(new HrvMetrics());
+        // diffs 100, -80, -10
+        assertEquals(832.5, m.meanRR, 1e-9);
+        assertEquals(Math.sqrt((10000 + 6400 + 100) / 3.0), m.rmssd, 1e-9);
+        assertEquals(200.0 / 3, m.pnn50, 1e-9);
+    }
+
+    @Test
+    public void ignoresInvalidIntervalsAndResets() {
+        HrvEngine engine = new HrvEngine();
+        assertFalse(engine.add(0));
+        engine.add(800);
+        HrvMetrics m = engine.window(new HrvMetrics());
+        assertEquals(1, m.count);
+        assertEquals(75.0, m.meanHeartRate, 1e-9);
+        assertTrue(Double.isNaN(m.rmssd));
+
+        engine.reset();
+        assertEquals(0, engine.session(m).count);
+        assertTrue(Double.isNaN(m.meanRR));
+    }
+}
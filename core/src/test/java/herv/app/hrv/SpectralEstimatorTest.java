@@ -0,0 +1,66 @@
+package herv.app.hrv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpectralEstimatorTest {
+
+    /**
+     * Feeds RR intervals modulated by a sine of the given frequency and amplitude (ms),
+     * whose power is amplitude^2 / 2
+     */
+    private static double feed(SpectralEstimator estimator, double time, double seconds,
+                               double frequency, double amplitude) {
+        double end = time + seconds * 1000;
+        while (time < end) {
+            int rr = (int) Math.round(800 + amplitude * Math.sin(2 * Math.PI * frequency * time / 1000));
+            estimator.add(rr);
+            time += rr;
+        }
+        return time;
+    }
+
+    @Test
+    public void findsPowerInTheRightBand() {
+        SpectralEstimator estimator = new SpectralEstimator();
+        SpectralMetrics m = new SpectralMetrics();
+        assertTrue(Double.isNaN(estimator.metrics(m).lf));
+
+        double time = feed(estimator, 0, 300, 0.1, 40);
+        estimator.metrics(m);
+        assertEquals(8, m.segments);
+        assertEquals(800, m.lf, 80); // 40^2 / 2
+        assertTrue(m.hf < 20);
+        assertTrue(m.lfHf > 10);
+
+        // after a whole window of respiratory (HF) modulation the LF is forgotten
+        feed(estimator, time, 300, 0.25, 30);
+        estimator.metrics(m);
+        assertEquals(8, m.segments);
+        // 30^2 / 2, times the power response of linear interpolation between beats 0.8 s
+        // apart, sinc^4(0.25 Hz * 0.8 s) = 0.77
+        assertEquals(450 * 0.77, m.hf, 35);
+        assertTrue(m.lf < 20);
+        assertTrue(m.lfHf < 0.1);
+        assertEquals(m.lf + m.hf, m.totalPower, 20);
+    }
+
+    @Test
+    public void linearTrendsAreRemoved() {
+        SpectralEstimator estimator = new SpectralEstimator();
+        for (int i = 0; i < 400; i++) estimator.add(700 + i / 4);
+        SpectralMetrics m = estimator.metrics(new SpectralMetrics());
+        assertTrue(m.segments > 0);
+        assertTrue(m.totalPower < 1);
+    }
+
+    @Test
+    public void resetForgetsTheSeries() {
+        SpectralEstimator estimator = new SpectralEstimator();
+        feed(estimator, 0, 120, 0.1, 40);
+        assertTrue(estimator.getSegments() > 0);
+        estimator.reset();
+        assertEquals(0, estimator.getSegments());
+    }
+}
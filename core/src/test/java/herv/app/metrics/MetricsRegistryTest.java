@@ -0,0 +1,94 @@
+package herv.app.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bucketsCoverTheRangeWithinThreePercent() {
+        int previous = -1;
+        for (long v = 0; v < LatencyHistogram.MAX_VALUE; v = v * 3 / 2 + 1) {
+            int index = LatencyHistogram.index(v);
+            assertTrue(index >= previous && index < LatencyHistogram.BUCKETS);
+            long high = LatencyHistogram.highestValue(index);
+            assertTrue(v <= high);
+            assertTrue(high - v <= v / LatencyHistogram.SUB_BUCKETS);
+            previous = index;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(LatencyHistogram.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            histogram.record(1000 + random.nextInt(99001));
+        }
+        LatencyHistogram.Snapshot s = histogram.snapshot(new LatencyHistogram.Snapshot(), false);
+        assertEquals(100000, s.getCount());
+        assertEquals(50500, s.getMean(), 500);
+        assertEquals(50500, s.getValueAt(0.5), 0.03 * 50500);
+        assertEquals(99010, s.getValueAt(0.99), 0.03 * 99010);
+        assertTrue(s.getValueAt(1) <= s.getMax());
+        assertTrue(s.getMax() <= 100000);
+
+        histogram.snapshot(s, true);
+        assertEquals(100000, s.getCount());
+        histogram.snapshot(s, false);
+        assertEquals(0, s.getCount());
+        assertEquals(0, s.getValueAt(0.5));
+    }
+
+    @Test
+    public void sameNameSameMetric() {
+        MetricsRegistry registry = new MetricsRegistry();
+        assertSame(registry.counter("ble.malformed"), registry.counter("ble.malformed"));
+        assertSame(registry.histogram("store.flush"), registry.histogram("store.flush"));
+        assertNotSame(registry.histogram("store.flush"), registry.histogram("store.append"));
+    }
+
+    @Test
+    public void dumpsEveryMetricToTheFile() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("ble.notifications").add(3);
+        registry.gauge("writer.queue", new Gauge() {
+            @Override
+            public long get() { return 7; }
+        });
+        registry.histogram("store.flush").record(2000000);
+        File file = new File(folder.getRoot(), "metrics.csv");
+        MetricsDumper dumper = new MetricsDumper(registry, file);
+        dumper.dump();
+        dumper.dump();
+
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            assertTrue(in.readLine().endsWith(",counter,ble.notifications,3"));
+            assertTrue(in.readLine().endsWith(",gauge,writer.queue,7"));
+            String[] flush = in.readLine().split(",");
+            assertEquals("store.flush", flush[2]);
+            assertEquals("1", flush[3]);
+            assertEquals("2000", flush[8]);
+            // histograms restart at each dump, counters keep growing
+            assertTrue(in.readLine().endsWith(",counter,ble.notifications,3"));
+            in.readLine();
+            assertTrue(in.readLine().endsWith(",histogram,store.flush,0,0,0,0,0,0"));
+            assertNull(in.readLine());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package herv.app.model;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import herv.app.storage.HeartbeatCodec;
+
+import static org.junit.Assert.*;
+
+public class CompactHeartbeatTest {
+
+    @Test
+    public void csvMatchesBoxedHeartbeat() throws Exception {
+        Heartbeat boxed = new Heartbeat(Arrays.asList(812, 790), 74);
+        boxed.setDt(new Date(1525000000000L));
+        CompactHeartbeat compact = CompactHeartbeat.of(boxed);
+        assertEquals(boxed.toCSV(), compact.toCSV());
+        assertEquals(boxed.toScreenString(), compact.toScreenString());
+        assertEquals(2, compact.getRRCount());
+        assertEquals(790, compact.getRR(1));
+    }
+
+    @Test
+    public void copiesReusedBuffer() throws Exception {
+        int[] buffer = {800, 810, 0, 0};
+        CompactHeartbeat beat = CompactHeartbeat.copyOf(0L, 70, buffer, 2);
+        buffer[0] = 1;
+        assertEquals(2, beat.getRRCount());
+        assertEquals(800, beat.getRR(0));
+    }
+
+    @Test
+    public void noHeartRateGivesEmptyCsv() throws Exception {
+        CompactHeartbeat beat = new CompactHeartbeat(0L, CompactHeartbeat.NO_HEART_RATE, null);
+        assertEquals("", beat.toCSV());
+        assertEquals(0, beat.getRRCount());
+    }
+
+    @Test
+    public void keepsTheCorrectedValuesThroughTheLogRecord() throws Exception {
+        // a regular beat, a missed one corrected to the median and one out of range
+        int[] raw = {1024, 2048, 3000};
+        byte[] quality = {RrQuality.OK, RrQuality.CORRECTED, RrQuality.REJECTED};
+        int[] cleaned = {1000, 1000, 2930};
+        CompactHeartbeat beat = CompactHeartbeat.copyOf(1525000000000L, 60, raw, quality, cleaned, 3);
+        assertEquals(2048, beat.getRR(1));
+        assertEquals(1000, beat.getCleanRRMillis(0));
+        assertEquals(1000, beat.getCleanRRMillis(1));
+        assertEquals(CompactHeartbeat.NO_RR, beat.getCleanRRMillis(2));
+
+        ByteBuffer record = ByteBuffer.allocate(HeartbeatCodec.MAX_SIZE);
+        HeartbeatCodec.encode(beat, record);
+        record.flip();
+        CompactHeartbeat decoded = HeartbeatCodec.decode(record);
+        assertEquals(1000, decoded.getCorrectedMillis(1));
+        assertEquals(CompactHeartbeat.NO_RR, decoded.getCorrectedMillis(0));
+        assertEquals(RrQuality.REJECTED, decoded.getQuality(2));
+
+        StringBuilder line = new StringBuilder();
+        decoded.appendUploadCSV(line);
+        assertTrue(line.toString(), line.toString().endsWith(", 60, 1000 1000 2930, 0 1 2"));
+    }
+
+    @Test
+    public void correctedWithoutItsValueIsLeftOut() throws Exception {
+        // recorded before the corrected values were kept
+        CompactHeartbeat beat = new CompactHeartbeat(null, 0L, 60, new int[]{1024, 2048},
+                new byte[]{RrQuality.OK, RrQuality.CORRECTED});
+        assertFalse(beat.hasCorrections());
+        assertEquals(CompactHeartbeat.NO_RR, beat.getCleanRRMillis(1));
+        StringBuilder line = new StringBuilder();
+        beat.appendUploadCSV(line);
+        assertTrue(line.toString().endsWith(", 1000 2000, 0 2"));
+    }
+}
@@ -0,0 +1,88 @@
+package herv.app.model;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class TimestampFormatterTest {
+
+    private static SimpleDateFormat reference(String pattern, TimeZone zone) {
+        SimpleDateFormat fmt = new SimpleDateFormat(pattern);
+        fmt.setTimeZone(zone);
+        return fmt;
+    }
+
+    @Test
+    public void matchesSimpleDateFormat() throws Exception {
+        TimeZone zone = TimeZone.getTimeZone("America/Sao_Paulo");
+        TimestampFormatter formatter = new TimestampFormatter(zone);
+        SimpleDateFormat db = reference(Event.fmtDateDB, zone);
+        SimpleDateFormat hour = reference("yyMMddHH", zone);
+        SimpleDateFormat day = reference("yyMMdd", zone);
+        Random random = new Random(42);
+        long t = 1509242400000L - 3600 * 1000L; // around a DST switch
+        for (int i = 0; i < 20000; i++) {
+            t += random.nextInt(5000);
+            Date d = new Date(t);
+            assertEquals(db.format(d), formatter.format(t));
+            assertEquals(db.format(d), formatter.formatTo(t, new StringBuilder()).toString());
+            assertEquals(hour.format(d), formatter.formatHourKey(t, new StringBuilder()).toString());
+            assertEquals(day.format(d), formatter.formatDayKey(t, new StringBuilder()).toString());
+        }
+    }
+
+    @Test
+    public void formatsTimestampsBeforeEpoch() throws Exception {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        assertEquals("1969-12-31 23:59:59", new TimestampFormatter(utc).format(-1L));
+    }
+
+    @Test
+    public void reusesStringWithinTheSameSecond() throws Exception {
+        TimestampFormatter formatter = new TimestampFormatter(TimeZone.getTimeZone("UTC"));
+        assertSame(formatter.format(1000L), formatter.format(1999L));
+    }
+
+    @Test
+    public void isSafeToShareBetweenThreads() throws Exception {
+        final TimeZone zone = TimeZone.getTimeZone("UTC");
+        final TimestampFormatter formatter = new TimestampFormatter(zone);
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int n = 0; n < threads.length; n++) {
+            final long base = n * 86400000L * 400;
+            threads[n] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SimpleDateFormat db = reference(Event.fmtDateDB, zone);
+                    for (long t = base; t < base + 5000000L; t += 777) {
+                        if (!db.format(new Date(t)).equals(formatter.format(t))) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            });
+            threads[n].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed[0]);
+    }
+
+    @Test
+    public void parsesWhatItFormats() throws Exception {
+        TimestampFormatter formatter = new TimestampFormatter(TimeZone.getTimeZone("Europe/Madrid"));
+        long t = 1525255200000L; // whole second
+        for (int i = 0; i < 1000; i++, t += 7919 * 1000L) {
+            assertEquals(t, formatter.parse("x," + formatter.format(t), 2));
+        }
+        assertEquals(-1, formatter.parse("2018-05-02 10:00", 0));
+        assertEquals(-1, formatter.parse("2018/05/02 10:00:00", 0));
+    }
+}
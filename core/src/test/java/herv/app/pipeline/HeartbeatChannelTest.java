@@ -0,0 +1,111 @@
+package herv.app.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import herv.app.hrv.HrvEngine;
+import herv.app.hrv.HrvMetrics;
+
+import static org.junit.Assert.*;
+
+public class HeartbeatChannelTest {
+
+    /** Runs posted tasks when the test advances the virtual time */
+    private static class VirtualDispatcher implements HeartbeatChannel.Dispatcher {
+        long now;
+        final List<long[]> due = new ArrayList<long[]>();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override public long now() { return now; }
+
+        @Override
+        public void post(Runnable task, long delayMillis) {
+            due.add(new long[]{now + delayMillis});
+            tasks.add(task);
+        }
+
+        void advance(long millis) {
+            now += millis;
+            for (int i = 0; i < tasks.size(); ) {
+                if (due.get(i)[0] <= now) {
+                    due.remove(i);
+                    tasks.remove(i).run();
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    private final VirtualDispatcher dispatcher = new VirtualDispatcher();
+    private final HeartbeatChannel channel = new HeartbeatChannel(dispatcher, 9, 250);
+    private final List<String> seen = new ArrayList<String>();
+    private final int[] rr = new int[9];
+
+    private final HeartbeatChannel.Observer observer = new HeartbeatChannel.Observer() {
+        @Override
+        public void onHeartbeat(HeartbeatChannel.Snapshot s) {
+            seen.add(s.heartRate + "/" + s.rrCount + "/" + s.sequence);
+        }
+    };
+
+    private void beat(int hr, int rrCount) {
+        for (int i = 0; i < rrCount; i++) rr[i] = 800 + i;
+        channel.publish(dispatcher.now, hr, rr, rrCount);
+    }
+
+    @Test
+    public void coalescesToTheLatestBeat() {
+        channel.addObserver(observer);
+        beat(60, 1);
+        assertEquals(1, dispatcher.tasks.size());
+        beat(61, 2);
+        beat(62, 0);
+        assertEquals(1, dispatcher.tasks.size()); // a single pending delivery
+        dispatcher.advance(0);
+        assertEquals("[62/0/3]", seen.toString());
+
+        beat(63, 1);
+        dispatcher.advance(100);
+        assertEquals(1, seen.size()); // throttled until 250 ms after the last delivery
+        beat(64, 1);
+        dispatcher.advance(150);
+        assertEquals("[62/0/3, 64/1/5]", seen.toString());
+        assertEquals(5, channel.getPublishedCount());
+        assertEquals(2, channel.getDeliveredCount());
+    }
+
+    @Test
+    public void nothingIsScheduledWithoutObservers() {
+        beat(60, 1);
+        assertTrue(dispatcher.tasks.isEmpty());
+        channel.addObserver(observer);
+        beat(61, 1);
+        dispatcher.advance(0);
+        channel.removeObserver(observer);
+        beat(62, 1);
+        dispatcher.advance(1000);
+        assertEquals("[61/1/2]", seen.toString());
+    }
+
+    @Test
+    public void formatsLikeTheScreenString() {
+        channel.addObserver(new HeartbeatChannel.Observer() {
+            @Override
+            public void onHeartbeat(HeartbeatChannel.Snapshot s) {
+                seen.add(s.toScreenString());
+            }
+        });
+        beat(72, 2);
+        dispatcher.advance(0);
+        assertEquals("Heart Rate: 72\nIntervals: 800 801 ", seen.get(0));
+
+        HrvEngine engine = new HrvEngine();
+        engine.add(new int[]{800, 900, 820}, 0, 3);
+        channel.publish(dispatcher.now, 72, rr, 0, engine.window(new HrvMetrics()));
+        dispatcher.advance(250);
+        assertEquals("Heart Rate: 72\nRMSSD: 91 ms  SDNN: 53 ms", seen.get(1));
+    }
+}
@@ -0,0 +1,61 @@
+package herv.app.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+
+    @Test
+    public void isFifoAndBounded() throws Exception {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) assertTrue(ring.offer(i));
+        assertFalse(ring.offer(4));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        Integer[] out = new Integer[8];
+        assertEquals(4, ring.drainTo(out));
+        assertEquals(Integer.valueOf(4), out[3]);
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void keepsEveryElementWithConcurrentProducers() throws Exception {
+        final RingBuffer<Long> ring = new RingBuffer<Long>(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final long base = p * (long) perProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < perProducer; i++) {
+                        while (!ring.offer(base + i)) Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        long[] last = new long[producers];
+        java.util.Arrays.fill(last, -1);
+        long sum = 0;
+        int received = 0;
+        while (received < producers * perProducer) {
+            Long v = ring.poll();
+            if (v == null) {
+                Thread.yield();
+                continue;
+            }
+            int p = (int) (v / perProducer);
+            assertTrue(v > last[p]); // per producer order is kept
+            last[p] = v;
+            sum += v;
+            received++;
+        }
+        for (Thread t : threads) t.join();
+        long n = producers * (long) perProducer;
+        assertEquals(n * (n - 1) / 2, sum);
+    }
+}
@@ -0,0 +1,126 @@
+package herv.app.sim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import herv.app.hrm.HeartRateMeasurement;
+import herv.app.hrm.HeartRateMeasurementDecoder;
+import herv.app.storage.EventQueue;
+import herv.app.storage.EventWriter;
+import herv.app.storage.LogEventStore;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.TimeIndex;
+import herv.app.upload.BatchTransport;
+import herv.app.upload.BatchUploader;
+import herv.app.upload.ExponentialBackoff;
+import herv.app.upload.Outbox;
+
+import static org.junit.Assert.*;
+
+public class LoadDriverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void simulatorCoversEveryNotificationShape() {
+        HrmSimulator strap = new HrmSimulator(7, 60, 0);
+        HeartRateMeasurement m = new HeartRateMeasurement();
+        byte[] value = new byte[HrmSimulator.MAX_PAYLOAD];
+        boolean uint8 = false, uint16 = false, energy = false, noContact = false;
+        int[] rrPerPacket = new int[HeartRateMeasurement.MAX_RR_INTERVALS + 1];
+        long rrSum = 0, rrCount = 0;
+        int outliers = 0;
+        for (int i = 0; i < 4 * 3600; i++) {
+            int length = strap.next(value);
+            byte[] payload = Arrays.copyOf(value, length);
+            assertTrue(HeartRateMeasurementDecoder.decode(payload, m));
+            if ((m.getFlags() & HeartRateMeasurementDecoder.FLAG_HR_UINT16) != 0) uint16 = true; else uint8 = true;
+            energy |= m.hasEnergyExpended();
+            if (!m.isSensorContactDetected()) {
+                noContact = true;
+                assertEquals(0, m.getRRCount());
+            }
+            rrPerPacket[m.getRRCount()]++;
+            for (int j = 0; j < m.getRRCount(); j++) {
+                int rr = HeartRateMeasurement.rrToMillis(m.getRR(j));
+                assertTrue(rr >= 250 && rr <= 3000);
+                if (rr < 700 || rr > 1300) outliers++;
+                rrSum += rr;
+                rrCount++;
+            }
+        }
+        assertTrue(uint8 && uint16 && energy && noContact);
+        assertTrue(rrPerPacket[0] > 0 && rrPerPacket[1] > 0 && rrPerPacket[2] > 0);
+        assertTrue(rrPerPacket[4] + rrPerPacket[5] + rrPerPacket[6] > 0);
+        // around 60 bpm, with some ectopic and missed beats
+        assertEquals(1000, rrSum / rrCount, 60);
+        assertTrue(outliers > 0);
+    }
+
+    @Test
+    public void simulatorIsDeterministic() {
+        HrmSimulator a = new HrmSimulator(3, 70, 0), b = new HrmSimulator(3, 70, 0);
+        byte[] va = new byte[HrmSimulator.MAX_PAYLOAD], vb = new byte[HrmSimulator.MAX_PAYLOAD];
+        for (int i = 0; i < 600; i++) {
+            int length = a.next(va);
+            assertEquals(length, b.next(vb));
+            assertEquals(a.getTime(), b.getTime());
+            for (int j = 0; j < length; j++) assertEquals(va[j], vb[j]);
+        }
+    }
+
+    @Test
+    public void writesAndUploadsEveryBeatOfEveryStrap() throws Exception {
+        File dir = folder.newFolder("log");
+        EventWriter writer = new EventWriter(new LogEventStore(new SegmentLog(dir), new TimeIndex(dir)));
+        BatchUploader uploader = new BatchUploader(new BatchTransport() {
+            @Override
+            public int post(byte[] body, int offset, int length) {
+                return 200;
+            }
+        }, BatchUploader.DEFAULT_CAPACITY, BatchUploader.DEFAULT_MAX_BATCH, 10);
+
+        // 3 straps, 5 minutes in about 300 ms
+        LoadDriver.Report report = new LoadDriver(writer, uploader).run(3, 1000, 300);
+
+        assertEquals(3, report.sessions);
+        assertEquals(0, report.malformed);
+        assertEquals(0, report.beatsDropped);
+        assertTrue(report.notifications > 3 * 250);
+        assertTrue(report.beatsWritten > 3 * 200);
+        assertEquals(report.beatsWritten, report.uploaded);
+        assertEquals(report.beatsWritten, report.latencyCount);
+        assertTrue(report.p50 <= report.p90 && report.p90 <= report.p99 && report.p99 <= report.max);
+        assertTrue(report.realMillis >= 250);
+    }
+
+    @Test
+    public void deliversEveryBeatThroughTheOutboxAsTheService() throws Exception {
+        File dir = folder.newFolder("log");
+        // a small queue, so that beats spill when the writer falls behind
+        EventQueue queue = new EventQueue("writer", 16, EventQueue.SPILL, new File(folder.getRoot(), "writer.spill"),
+                EventQueue.DEFAULT_BLOCK_MILLIS);
+        EventWriter writer = new EventWriter(new LogEventStore(new SegmentLog(dir), new TimeIndex(dir)), queue,
+                EventWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+        Outbox outbox = new Outbox(dir, new File(dir, Outbox.STATE_FILE), new BatchTransport() {
+            @Override
+            public int post(byte[] body, int offset, int length) {
+                return 200;
+            }
+        }, new ExponentialBackoff(10, 100), Outbox.DEFAULT_MAX_BATCH, 10, 5);
+
+        LoadDriver.Report report = new LoadDriver(writer, outbox).run(3, 1000, 300);
+
+        assertEquals(3, report.sessions);
+        assertEquals(0, report.beatsDropped);
+        assertTrue(report.beatsWritten > 3 * 200);
+        assertEquals(report.beatsWritten, report.uploaded);
+        assertEquals(0, report.uploadFailed);
+        assertEquals(report.beatsWritten, outbox.getAckedSequence());
+    }
+}
@@ -0,0 +1,116 @@
+package herv.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Random;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.DailyActivity;
+import herv.app.model.Event;
+import herv.app.model.RrQuality;
+import herv.app.model.TimestampFormatter;
+
+import static org.junit.Assert.*;
+
+public class EventEncoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static long T0 = 1525215600000L;
+
+    @Test
+    public void roundTripsHeartbeatsAndActivities() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventEncoder encoder = new EventEncoder(bytes, T0);
+        encoder.write(new DailyActivity(Event.TP_START, "Walk", "stand", new Date(T0)));
+        encoder.write(new CompactHeartbeat(T0 + 900, 72, new int[]{850, 860}));
+        encoder.write(new CompactHeartbeat(null, T0 + 1700, CompactHeartbeat.NO_HEART_RATE, new int[]{900},
+                new byte[]{RrQuality.REJECTED}));
+        int[] many = new int[20];
+        for (int i = 0; i < many.length; i++) many[i] = 1000 - i * 7;
+        encoder.write(new CompactHeartbeat(T0 - 5000, 250, many)); // clock went back
+        encoder.write(CompactHeartbeat.copyOf(T0 + 2500, 60, new int[]{1024, 2048},
+                new byte[]{RrQuality.OK, RrQuality.CORRECTED}, new int[]{1000, 1000}, 2));
+        encoder.write(new DailyActivity(Event.TP_STOP, "", "", new Date(T0 + 60000)));
+        encoder.write(new DailyActivity(Event.TP_START, "Walk", "stand", new Date(T0 + 70000)));
+        encoder.close();
+
+        EventDecoder decoder = new EventDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(EventDecoder.ACTIVITY, decoder.next());
+        assertEquals("Walk", decoder.activity().getActivityName());
+        assertEquals(T0, decoder.activity().getDt().getTime());
+        assertEquals(EventDecoder.HEARTBEAT, decoder.next());
+        CompactHeartbeat beat = decoder.heartbeat();
+        assertEquals(T0 + 900, beat.getTimestamp());
+        assertEquals(72, beat.getHeartRate());
+        assertEquals(860, beat.getRR(1));
+        assertEquals(EventDecoder.HEARTBEAT, decoder.next());
+        assertFalse(decoder.heartbeat().hasHeartRate());
+        assertEquals(RrQuality.REJECTED, decoder.heartbeat().getQuality(0));
+        assertEquals(EventDecoder.HEARTBEAT, decoder.next());
+        assertEquals(T0 - 5000, decoder.heartbeat().getTimestamp());
+        assertEquals(20, decoder.heartbeat().getRRCount());
+        assertEquals(1000 - 19 * 7, decoder.heartbeat().getRR(19));
+        assertEquals(EventDecoder.HEARTBEAT, decoder.next());
+        assertEquals(2048, decoder.heartbeat().getRR(1));
+        assertEquals(1000, decoder.heartbeat().getCleanRRMillis(1));
+        assertEquals(EventDecoder.ACTIVITY, decoder.next());
+        assertEquals(Event.TP_STOP, decoder.activity().getType());
+        assertEquals(EventDecoder.ACTIVITY, decoder.next());
+        assertEquals("stand", decoder.activity().getPosture());
+        assertEquals(EventDecoder.END, decoder.next());
+    }
+
+    @Test
+    public void convertsCsvAtLeastFiveTimesSmaller() throws Exception {
+        TimestampFormatter f = TimestampFormatter.getDefault();
+        File csv = new File(folder.getRoot(), "rr18050210.csv");
+        Writer w = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+        Random random = new Random(5);
+        for (int s = 0; s < 3600; s++) {
+            w.write("\n" + f.format(T0 + s * 1000L) + ", " + (60 + random.nextInt(40)));
+        }
+        w.write("\nnot a row");
+        w.close();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventEncoder encoder = new EventEncoder(bytes, T0);
+        CsvConverter converter = new CsvConverter();
+        converter.convert(csv, encoder);
+        encoder.close();
+        assertEquals(3600, converter.getConvertedCount());
+        assertEquals(1, converter.getSkippedCount());
+        assertTrue(bytes.size() * 5 <= csv.length());
+
+        EventDecoder decoder = new EventDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        int n = 0;
+        while (decoder.next() == EventDecoder.HEARTBEAT) {
+            assertEquals(T0 + n * 1000L, decoder.heartbeat().getTimestamp());
+            n++;
+        }
+        assertEquals(3600, n);
+    }
+
+    @Test
+    public void listsTheFilesOfADayTogether() throws Exception {
+        String[] names = {"act180503.csv", "rr18050223.csv", "act180502.csv", "rr18050300.csv",
+                "rr18050210.csv", "notes.csv", "rr18050310.csv"};
+        for (String name : names) assertTrue(new File(folder.getRoot(), name).createNewFile());
+
+        File[] files = CsvConverter.listConvertible(folder.getRoot());
+        String[] expected = {"rr18050210.csv", "rr18050223.csv", "act180502.csv",
+                "rr18050300.csv", "rr18050310.csv", "act180503.csv"};
+        assertEquals(expected.length, files.length);
+        for (int i = 0; i < expected.length; i++) assertEquals(expected[i], files[i].getName());
+    }
+}
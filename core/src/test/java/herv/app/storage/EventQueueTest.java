@@ -0,0 +1,141 @@
+package herv.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.Event;
+
+import static org.junit.Assert.*;
+
+public class EventQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static long T0 = 1525215600000L;
+
+    private static CompactHeartbeat beat(int i) {
+        return new CompactHeartbeat(T0 + i * 1000L, 60, new int[]{1024, 1000 + i % 50});
+    }
+
+    private static long timestamp(Event event) {
+        return ((CompactHeartbeat) event).getTimestamp();
+    }
+
+    @Test
+    public void dropCountsTheOverflow() {
+        EventQueue queue = new EventQueue("test", 4, EventQueue.DROP);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i < 4, queue.offer(beat(i)));
+        }
+        assertEquals(6, queue.getDroppedCount());
+        assertEquals(4, queue.size());
+        assertEquals(T0, timestamp(queue.poll()));
+    }
+
+    @Test
+    public void coalesceKeepsTheLatest() {
+        EventQueue queue = new EventQueue("test", 4, EventQueue.COALESCE);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(beat(i)));
+        }
+        assertEquals(5, queue.getCoalescedCount());
+        assertEquals(5, queue.size());
+        Event[] out = new Event[10];
+        assertEquals(5, queue.drainTo(out));
+        assertEquals(T0 + 3000, timestamp(out[3]));
+        assertEquals(T0 + 9000, timestamp(out[4]));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void blockWaitsForTheConsumer() throws Exception {
+        final EventQueue queue = new EventQueue("test", 2, EventQueue.BLOCK, null, 5000);
+        queue.offer(beat(0));
+        queue.offer(beat(1));
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.poll();
+            }
+        });
+        consumer.start();
+        assertTrue(queue.offer(beat(2)));
+        consumer.join();
+        assertEquals(1, queue.getBlockedCount());
+        assertEquals(0, queue.getDroppedCount());
+
+        EventQueue impatient = new EventQueue("test", 2, EventQueue.BLOCK, null, 10);
+        impatient.offer(beat(0));
+        impatient.offer(beat(1));
+        assertFalse(impatient.offer(beat(2)));
+        assertEquals(1, impatient.getDroppedCount());
+    }
+
+    @Test
+    public void spillsADayOfBeatsWithAStuckConsumerAndReadsThemBackInOrder() throws Exception {
+        File spill = new File(folder.getRoot(), "writer.spill");
+        EventQueue queue = new EventQueue("test", 64, EventQueue.SPILL, spill, 10);
+        int day = 24 * 3600;
+        for (int i = 0; i < day; i++) {
+            assertTrue(queue.offer(beat(i)));
+        }
+        // the ring stays full, everything else is on disk
+        assertEquals(day - 64, queue.getSpilledCount());
+        assertEquals(day, queue.size());
+        assertTrue(spill.length() > 0);
+
+        // the consumer catches up while the producer goes on
+        int next = day, read = 0;
+        Event e;
+        while ((e = queue.poll()) != null) {
+            assertEquals(T0 + read * 1000L, timestamp(e));
+            read++;
+            if (next < day + 1000) queue.offer(beat(next++));
+        }
+        assertEquals(day + 1000, read);
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(0, queue.size());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void readsBackWhatAKilledProcessSpilled() throws Exception {
+        File spill = new File(folder.getRoot(), "upload.spill");
+        EventQueue queue = new EventQueue("test", 2, EventQueue.SPILL, spill, 10);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(beat(i));
+        }
+        // read back once, then killed: the first file is closed, the second still open
+        assertEquals(T0, timestamp(queue.poll()));
+        assertEquals(T0 + 1000, timestamp(queue.poll()));
+        assertEquals(T0 + 2000, timestamp(queue.poll()));
+        queue.offer(beat(10));
+        queue.offer(beat(11));
+        queue.offer(beat(12));
+
+        EventQueue recovered = new EventQueue("test", 2, EventQueue.SPILL, spill, 10);
+        assertFalse(recovered.isEmpty());
+        int read = 0;
+        Event e;
+        long last = 0;
+        while ((e = recovered.poll()) != null) {
+            assertTrue(timestamp(e) > last);
+            last = timestamp(e);
+            read++;
+        }
+        // beats 2 to 9 from the first file, 2 delivered again; beats 10 to 12 were only in
+        // memory (the ring and the buffer of the second file) and are lost with the process
+        assertEquals(8, read);
+        assertEquals(T0 + 9000, last);
+    }
+}
@@ -0,0 +1,63 @@
+package herv.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.TimestampFormatter;
+
+import static org.junit.Assert.*;
+
+public class EventWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String read(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        byte[] data = new byte[(int) f.length()];
+        int n = 0;
+        while (n < data.length) n += in.read(data, n, data.length - n);
+        in.close();
+        return new String(data, "UTF-8");
+    }
+
+    @Test
+    public void writesEveryQueuedBeatToItsHourlyFile() throws Exception {
+        File dir = folder.getRoot();
+        TimestampFormatter utc = new TimestampFormatter(TimeZone.getTimeZone("UTC"));
+        CsvEventStore store = new CsvEventStore(dir, new ScratchFileRouter(utc));
+        EventWriter writer = new EventWriter(store, 1024, 10);
+        writer.start();
+        long t = 1525215600000L; // 2018-05-01 23:00:00 UTC
+        for (int i = 0; i < 7200; i += 10) {
+            assertTrue(writer.submit(new CompactHeartbeat(t + i * 1000L, 60, new int[]{1000})));
+            if (i % 500 == 0) Thread.sleep(5);
+        }
+        writer.close();
+
+        assertEquals(720, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+        String first = read(new File(dir, "rr18050123.csv"));
+        String second = read(new File(dir, "rr18050200.csv"));
+        assertTrue(first.startsWith("\n2018-05-01 23:00:00, 60\n2018-05-01 23:00:10, 60"));
+        assertEquals(360, first.split("\n").length - 1);
+        assertEquals(360, second.split("\n").length - 1);
+    }
+
+    @Test
+    public void dropsInsteadOfBlockingWhenFull() throws Exception {
+        EventWriter writer = new EventWriter(new CsvEventStore(folder.getRoot()), 4, 10);
+        for (int i = 0; i < 6; i++) {
+            writer.submit(new CompactHeartbeat(i * 1000L, 60, null));
+        }
+        assertEquals(2, writer.getDroppedCount());
+        assertEquals(4, writer.getQueueSize());
+    }
+}
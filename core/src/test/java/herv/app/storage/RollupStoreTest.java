@@ -0,0 +1,97 @@
+package herv.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+
+import static org.junit.Assert.*;
+
+public class RollupStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // an hour boundary, so the hour bucket starts with the test
+    private final static long T0 = 1525215600000L;
+
+    /** One beat per second, HR 60 + (second % 10), RR alternating 1024 and 1126 (1000 and 1100 ms) */
+    private static void record(RollupStore store, long from, int seconds) throws Exception {
+        for (int s = 0; s < seconds; s++) {
+            int rr = s % 2 == 0 ? 1024 : 1126;
+            store.add(new CompactHeartbeat(from + s * 1000L, 60 + s % 10, new int[]{rr}));
+        }
+    }
+
+    @Test
+    public void rollsUpEveryResolution() throws Exception {
+        RollupStore store = new RollupStore(folder.getRoot());
+        record(store, T0, 2 * 3600);
+        store.flush();
+
+        List<Rollup> seconds = store.query(RollupStore.SECOND, T0, T0 + 10 * 1000);
+        assertEquals(10, seconds.size());
+        assertEquals(63, seconds.get(3).hrMax);
+
+        List<Rollup> minutes = store.query(T0, T0 + 2 * 3600 * 1000L, 200);
+        assertEquals(120, minutes.size());
+        Rollup minute = minutes.get(1);
+        assertEquals(T0 + 60 * 1000, minute.start);
+        assertEquals(60, minute.hrMin);
+        assertEquals(69, minute.hrMax);
+        assertEquals(64.5, minute.getMeanHeartRate(), 1e-9);
+        assertEquals(60, minute.beats);
+        assertEquals(100, minute.getRmssd(), 1e-9);
+
+        List<Rollup> hours = store.query(T0, T0 + 2 * 3600 * 1000L, 100);
+        assertEquals(2, hours.size());
+        assertEquals(3600, hours.get(1).beats);
+        assertEquals(3600, hours.get(1).diffCount); // chain continues across the hour
+        store.close();
+    }
+
+    @Test
+    public void mergesAfterReopeningAndIncludesUnflushedBeats() throws Exception {
+        RollupStore store = new RollupStore(folder.getRoot());
+        record(store, T0, 30);
+        store.close();
+
+        store = new RollupStore(folder.getRoot());
+        record(store, T0 + 30 * 1000, 30);
+        List<Rollup> minutes = store.query(RollupStore.MINUTE, T0, T0 + 60 * 1000);
+        assertEquals(1, minutes.size());
+        assertEquals(60, minutes.get(0).hrCount); // 30 from the file, 30 still in memory
+        store.close();
+    }
+
+    @Test
+    public void skipsFlaggedIntervalsForRmssd() throws Exception {
+        RollupStore store = new RollupStore(folder.getRoot());
+        store.add(new CompactHeartbeat(null, T0, 60, new int[]{1024, 2048, 1024, 1126},
+                new byte[]{RrQuality.OK, RrQuality.CORRECTED, RrQuality.OK, RrQuality.OK}));
+        Rollup second = store.query(RollupStore.SECOND, T0, T0 + 1000).get(0);
+        assertEquals(4, second.beats);
+        assertEquals(1, second.diffCount);
+        assertEquals(100, second.getRmssd(), 1e-9);
+        store.close();
+    }
+
+    @Test
+    public void weekViewReadsKilobytes() throws Exception {
+        RollupStore store = new RollupStore(folder.getRoot());
+        for (int day = 0; day < 7; day++) {
+            record(store, T0 + day * 24 * 3600 * 1000L, 600);
+        }
+        store.flush();
+        long week = 7 * 24 * 3600 * 1000L;
+        List<Rollup> points = store.query(T0, T0 + week, 500);
+        assertEquals(7, points.size());
+        assertEquals(3600 * 1000L, points.get(0).resolutionMillis);
+        assertTrue(store.getBytesRead() <= 168 * Rollup.RECORD_SIZE);
+        store.close();
+    }
+}
@@ -0,0 +1,137 @@
+package herv.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+
+import static org.junit.Assert.*;
+
+public class SegmentLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer record(int i) {
+        ByteBuffer b = ByteBuffer.allocate(12);
+        b.putInt(i).putLong(i * 1000L);
+        b.flip();
+        return b;
+    }
+
+    private static int countRecords(File dir) throws Exception {
+        int n = 0;
+        for (File segment : SegmentLog.listSegments(dir)) {
+            SegmentReader reader = new SegmentReader(segment);
+            while (reader.next()) {
+                assertEquals(n, reader.payload().getInt());
+                assertEquals(n, reader.sequence());
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void rollsSegmentsAndKeepsSequences() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 256);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, log.append(record(i)));
+        }
+        log.close();
+        assertTrue(SegmentLog.listSegments(dir).length > 1);
+        for (File sealed : new SegmentLog(dir, 256).getSealedSegments()) {
+            // never shrunk, the zeroed tail is shorter than a record
+            assertEquals(256, sealed.length());
+            long end = SegmentReader.dataEnd(sealed);
+            assertEquals(SegmentReader.scan(sealed).end, end);
+        }
+        assertEquals(100, countRecords(dir));
+    }
+
+    @Test
+    public void sealingKeepsTheFileMappedByReaders() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 64 * 1024);
+        // records bigger than a page, so cutting the tail would unmap whole pages under a reader
+        ByteBuffer big = ByteBuffer.allocate(10000);
+        log.append(big);
+        log.flush();
+        File first = log.getActiveSegment();
+        SegmentReader reader = new SegmentReader(first);
+        for (int i = 1; i < 10; i++) {
+            big.clear();
+            log.append(big);
+        }
+        log.flush();
+        assertFalse(first.equals(log.getActiveSegment()));
+        assertEquals(64 * 1024, first.length());
+        int n = 0;
+        while (reader.next()) n++;
+        assertEquals(6, n);
+        assertEquals(SegmentLog.HEADER_SIZE + 6 * 10008, SegmentReader.dataEnd(first));
+        log.close();
+    }
+
+    @Test
+    public void unflushedRecordsAreNotVisible() throws Exception {
+        SegmentLog log = new SegmentLog(folder.getRoot());
+        log.append(record(0));
+        assertEquals(0, countRecords(folder.getRoot()));
+        log.flush();
+        assertEquals(1, countRecords(folder.getRoot()));
+    }
+
+    @Test
+    public void recoveryZeroesTornTailAndContinuesSequence() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 4096);
+        for (int i = 0; i < 10; i++) log.append(record(i));
+        log.flush();
+        long end = log.getActiveSize();
+        File segment = log.getActiveSegment();
+        // simulate a kill in the middle of writing record 10: length written, payload not
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(end);
+        raf.writeInt(12);
+        raf.writeInt(0x1234);
+        raf.writeInt(10);
+        raf.close();
+
+        SegmentLog recovered = new SegmentLog(dir, 4096);
+        assertEquals(10, recovered.getNextSequence());
+        assertEquals(4096 - end, recovered.getTruncatedBytes());
+        assertEquals(4096, segment.length());
+        for (int i = 10; i < 20; i++) recovered.append(record(i));
+        recovered.close();
+        assertEquals(20, countRecords(dir));
+    }
+
+    @Test
+    public void heartbeatRoundTrip() throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(HeartbeatCodec.MAX_SIZE);
+        HeartbeatCodec.encode(new CompactHeartbeat(1525215600123L, 180, new int[]{300, 65535}), b);
+        b.flip();
+        CompactHeartbeat beat = HeartbeatCodec.decode(b);
+        assertEquals(1525215600123L, beat.getTimestamp());
+        assertEquals(180, beat.getHeartRate());
+        assertEquals(65535, beat.getRR(1));
+        assertFalse(beat.hasQuality());
+
+        b.clear();
+        HeartbeatCodec.encode(new CompactHeartbeat(null, 1525215600123L, 60, new int[]{800, 1700},
+                new byte[]{RrQuality.OK, RrQuality.CORRECTED}), b);
+        b.flip();
+        beat = HeartbeatCodec.decode(b);
+        assertEquals(0, b.remaining());
+        assertEquals(1700, beat.getRR(1));
+        assertEquals(RrQuality.CORRECTED, beat.getQuality(1));
+    }
+}
@@ -0,0 +1,95 @@
+package herv.app.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import herv.app.model.CompactHeartbeat;
+
+import static org.junit.Assert.*;
+
+public class TimeIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static long T0 = 1525215600000L;
+    private final static int BEATS = 5000;
+
+    /** One beat per second, HR 60 + (second % 40), over several small segments */
+    private LogEventStore record(File dir) throws Exception {
+        SegmentLog log = new SegmentLog(dir, 16 * 1024);
+        LogEventStore store = new LogEventStore(log, new TimeIndex(dir));
+        for (int s = 0; s < BEATS; s++) {
+            store.append(new CompactHeartbeat(T0 + s * 1000L, 60 + s % 40, new int[]{1024}));
+        }
+        store.flush();
+        return store;
+    }
+
+    private static void assertRange(TimeIndex index, int fromSecond, int toSecond) throws Exception {
+        TimeIndex.RangeReader reader = index.query(T0 + fromSecond * 1000L, T0 + toSecond * 1000L);
+        int s = fromSecond;
+        while (reader.next()) {
+            CompactHeartbeat beat = reader.beat();
+            assertEquals(T0 + s * 1000L, beat.getTimestamp());
+            assertEquals(60 + s % 40, beat.getHeartRate());
+            s++;
+        }
+        assertEquals(Math.min(toSecond, BEATS), s);
+        // a few records before the range at most, not the whole log
+        assertTrue(reader.getRecordsRead() <= s - fromSecond + 2 * TimeIndex.INTERVAL);
+    }
+
+    @Test
+    public void readsRangesAcrossSegments() throws Exception {
+        File dir = folder.getRoot();
+        LogEventStore store = record(dir);
+        TimeIndex index = store.getIndex();
+        assertTrue(index.getSegmentCount() > 3);
+
+        assertRange(index, 0, 10);
+        assertRange(index, 1234, 2345);
+        assertRange(index, 4990, 6000);
+        assertFalse(index.query(T0 - 5000, T0).next());
+        assertFalse(index.query(T0 + BEATS * 1000L, T0 + BEATS * 2000L).next());
+        store.close();
+    }
+
+    @Test
+    public void reopensFromManifestOrRebuilds() throws Exception {
+        File dir = folder.getRoot();
+        record(dir).close();
+        assertTrue(new File(dir, TimeIndex.MANIFEST_FILE).exists());
+        assertRange(new TimeIndex(dir), 1500, 3100);
+
+        // lost manifest and sidecar index: every segment is scanned again
+        assertTrue(new File(dir, TimeIndex.MANIFEST_FILE).delete());
+        assertTrue(new File(dir, SegmentLog.segmentName(0) + TimeIndex.INDEX_SUFFIX).delete());
+        assertRange(new TimeIndex(dir), 0, 3100);
+    }
+
+    @Test
+    public void dropsDeletedSegments() throws Exception {
+        File dir = folder.getRoot();
+        LogEventStore store = record(dir);
+        TimeIndex index = store.getIndex();
+        int count = index.getSegmentCount();
+        File[] segments = SegmentLog.listSegments(dir);
+        long firstLeft = SegmentLog.baseSequenceOf(segments[2]);
+
+        // as the outbox does: the first one with the hook, the second one behind its back
+        assertTrue(segments[0].delete());
+        assertTrue(segments[1].delete());
+        index.onSegmentDeleted(0);
+        assertEquals(count - 2, index.getSegmentCount());
+
+        TimeIndex.RangeReader reader = index.query(T0, T0 + BEATS * 1000L);
+        assertTrue(reader.next());
+        assertEquals(T0 + firstLeft * 1000L, reader.beat().getTimestamp());
+        store.close();
+        assertEquals(count - 2, new TimeIndex(dir).getSegmentCount());
+    }
+}
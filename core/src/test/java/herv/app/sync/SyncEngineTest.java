@@ -0,0 +1,183 @@
+package herv.app.sync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import herv.app.storage.SegmentLog;
+
+import static org.junit.Assert.*;
+
+public class SyncEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Local stand-in for the remote storage, remembering every put */
+    private static class RecordingBackend implements SyncBackend {
+        final List<String> puts = new ArrayList<String>();
+        final List<String> deletes = new ArrayList<String>();
+
+        @Override
+        public void put(String remotePath, File file, long offset, long length) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] data = new byte[(int) length];
+            raf.seek(offset);
+            raf.readFully(data);
+            raf.close();
+            puts.add(remotePath + "@" + offset + "+" + length);
+        }
+
+        @Override
+        public void delete(String remotePath) {
+            deletes.add(remotePath);
+        }
+    }
+
+    private static void append(File f, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(f, true);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+    }
+
+    private static SyncEngine.Result sync(File dir, RecordingBackend backend) throws IOException {
+        SyncManifest manifest = SyncManifest.load(new File(dir, ".sync-manifest"));
+        return new SyncEngine(backend, manifest).sync(dir, "raw/0/");
+    }
+
+    @Test
+    public void uploadsOnlyNewFilesAndTails() throws Exception {
+        File dir = folder.getRoot();
+        File sealed = new File(dir, "rr18050221.csv");
+        File active = new File(dir, "rr18050222.csv");
+        append(sealed, "\n2018-05-02 21:59:59, 70");
+        append(active, "\n2018-05-02 22:00:00, 71");
+        RecordingBackend backend = new RecordingBackend();
+
+        SyncEngine.Result first = sync(dir, backend);
+        assertEquals(2, first.uploadedWhole);
+
+        append(active, "\n2018-05-02 22:00:01, 72");
+        active.setLastModified(active.lastModified() + 2000);
+        SyncEngine.Result second = sync(dir, backend); // manifest reloaded, as after a restart
+        assertEquals(1, second.uploadedTails);
+        assertEquals(1, second.unchanged);
+        assertEquals(24, second.bytes);
+        assertTrue(backend.puts.contains("raw/0/rr18050222.csv.part-24@24+24"));
+
+        SyncEngine.Result third = sync(dir, backend);
+        assertEquals(2, third.unchanged);
+        assertEquals(0, third.bytes);
+    }
+
+    @Test
+    public void reuploadsRewrittenFiles() throws Exception {
+        File dir = folder.getRoot();
+        File f = new File(dir, "act180502.csv");
+        append(f, "\n2018-05-02 21:00:00,start,walk,stand");
+        RecordingBackend backend = new RecordingBackend();
+        sync(dir, backend);
+
+        FileOutputStream out = new FileOutputStream(f);
+        out.write("\n2018-05-02 21:00:00,start,run,stand-and-more".getBytes("UTF-8"));
+        out.close();
+        f.setLastModified(f.lastModified() + 2000);
+        SyncEngine.Result result = sync(dir, backend);
+        assertEquals(1, result.uploadedWhole);
+        assertEquals("raw/0/act180502.csv@0+" + f.length(), backend.puts.get(1));
+    }
+
+    @Test
+    public void deletesThePartsOfAFileUploadedWholeAgain() throws Exception {
+        File dir = folder.getRoot();
+        File f = new File(dir, "rr18050222.csv");
+        append(f, "\n2018-05-02 22:00:00, 71");
+        RecordingBackend backend = new RecordingBackend();
+        sync(dir, backend);
+        append(f, "\n2018-05-02 22:00:01, 72");
+        f.setLastModified(f.lastModified() + 2000);
+        sync(dir, backend);
+        append(f, "\n2018-05-02 22:00:02, 73");
+        f.setLastModified(f.lastModified() + 2000);
+        sync(dir, backend);
+        assertEquals(0, backend.deletes.size());
+
+        // rewritten: both parts go, whatever was synced since the manifest was reloaded
+        FileOutputStream out = new FileOutputStream(f);
+        out.write("\n2018-05-02 22:00:00, 61\n2018-05-02 22:00:01, 62".getBytes("UTF-8"));
+        out.close();
+        f.setLastModified(f.lastModified() + 4000);
+        SyncEngine.Result result = sync(dir, backend);
+        assertEquals(1, result.uploadedWhole);
+        assertEquals(2, backend.deletes.size());
+        assertTrue(backend.deletes.contains("raw/0/rr18050222.csv.part-24"));
+        assertTrue(backend.deletes.contains("raw/0/rr18050222.csv.part-48"));
+
+        append(f, "\n2018-05-02 22:00:02, 63");
+        f.setLastModified(f.lastModified() + 2000);
+        sync(dir, backend);
+        f.delete();
+        append(f, "\n2018-05-02 22:00:00, 51");
+        f.setLastModified(f.lastModified() + 8000);
+        sync(dir, backend);
+        assertEquals("raw/0/rr18050222.csv.part-48", backend.deletes.get(2));
+    }
+
+    @Test
+    public void syncsOnlyRecordedData() throws Exception {
+        File dir = folder.getRoot();
+        append(new File(dir, "rr18050222.csv"), "\n2018-05-02 22:00:00, 71");
+        append(new File(dir, "act180502.csv"), "\n2018-05-02 21:00:00,start,walk,stand");
+        append(new File(dir, "metrics.csv"), "name,count\n");
+        append(new File(dir, "trace.log"), "--- problem\n");
+        append(new File(dir, "activities.idx"), "0 0\n");
+        RecordingBackend backend = new RecordingBackend();
+        SyncEngine.Result result = sync(dir, backend);
+        assertEquals(2, result.files);
+        assertEquals(2, backend.puts.size());
+    }
+
+    @Test
+    public void uploadsOnlyValidDataOfActiveSegment() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(new File(dir, SyncEngine.LOG_FOLDER), 4096);
+        ByteBuffer b = ByteBuffer.allocate(4);
+        for (int i = 0; i < 10; i++) {
+            b.clear();
+            b.putInt(i).flip();
+            log.append(b);
+        }
+        log.flush();
+        RecordingBackend backend = new RecordingBackend();
+        SyncEngine.Result result = sync(dir, backend);
+        assertEquals(1, result.uploadedWhole);
+        assertEquals(SegmentLog.HEADER_SIZE + 10 * 12, result.bytes);
+        log.close();
+    }
+
+    @Test
+    public void uploadsOnlyTheDataOfSealedSegments() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(new File(dir, SyncEngine.LOG_FOLDER), 256);
+        ByteBuffer b = ByteBuffer.allocate(4);
+        for (int i = 0; i < 30; i++) {
+            b.clear();
+            b.putInt(i).flip();
+            log.append(b);
+        }
+        log.close();
+        RecordingBackend backend = new RecordingBackend();
+        SyncEngine.Result result = sync(dir, backend);
+        // 19 records fill a 256 bytes segment, 11 left in the active one
+        assertEquals(2, result.uploadedWhole);
+        assertEquals(2 * SegmentLog.HEADER_SIZE + 30 * 12, result.bytes);
+    }
+}
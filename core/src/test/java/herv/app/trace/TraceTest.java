@@ -0,0 +1,76 @@
+package herv.app.trace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+import static org.junit.Assert.*;
+
+public class TraceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsTheLastEventsOldestFirst() throws Exception {
+        Trace trace = new Trace(4);
+        trace.setLevel(Trace.DEBUG);
+        for (int i = 0; i < 10; i++) {
+            trace.record(Trace.DEBUG, Trace.EV_RR, 800 + i, 1);
+        }
+        StringBuilder out = new StringBuilder();
+        assertEquals(4, trace.dump(out));
+        String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lines[i], lines[i].endsWith(" D " + Thread.currentThread().getId() + " rr " + (806 + i) + " 1 0"));
+        }
+        assertEquals(10, trace.getRecordedCount());
+    }
+
+    @Test
+    public void eventsAboveTheLevelAreNotRecorded() throws Exception {
+        Trace trace = new Trace(16);
+        trace.setLevel(Trace.INFO);
+        trace.record(Trace.DEBUG, Trace.EV_NOTIFICATION, 72, 2, 0x16);
+        trace.record(Trace.INFO, Trace.EV_RECORDING_START);
+        trace.setLevel(Trace.OFF);
+        trace.record(Trace.ERROR, Trace.EV_DROPPED, 1, 2);
+        assertFalse(trace.isEnabled(Trace.ERROR));
+        assertEquals(1, trace.getRecordedCount());
+        StringBuilder out = new StringBuilder();
+        trace.dump(out);
+        assertTrue(out.toString().contains(" I " + Thread.currentThread().getId() + " recording_start 0 0 0\n"));
+    }
+
+    @Test
+    public void problemDumpsTheRingOncePerInterval() throws Exception {
+        Trace trace = new Trace(16);
+        File file = new File(folder.getRoot(), "trace.log");
+        TraceDumper dumper = new TraceDumper(trace, file, 60 * 1000);
+        dumper.start();
+        trace.record(Trace.INFO, Trace.EV_FLUSH, 3, 120);
+        trace.record(Trace.ERROR, Trace.EV_DROPPED, 1000, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.length() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // repeated problems within the interval are not dumped again
+        trace.record(Trace.ERROR, Trace.EV_DROPPED, 2000, 2);
+        dumper.close();
+
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            assertEquals("--- problem " + Trace.EV_DROPPED + ", 2 events recorded", in.readLine());
+            assertTrue(in.readLine().endsWith(" flush 3 120 0"));
+            assertTrue(in.readLine().endsWith(" dropped 1000 2 0"));
+            assertNull(in.readLine());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package herv.app.upload;
+
+import org.junit.Test;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.model.RrQuality;
+import herv.app.model.TimestampFormatter;
+
+import static org.junit.Assert.*;
+
+public class BatchEncoderTest {
+
+    private final static long T0 = 1525215600000L;
+
+    private static String body(BatchEncoder encoder) throws Exception {
+        return new String(encoder.body(), 0, encoder.length(), "UTF-8");
+    }
+
+    @Test
+    public void writesOneVersionedLayout() throws Exception {
+        BatchEncoder encoder = new BatchEncoder(64);
+        encoder.log("a");
+        assertTrue(encoder.add(7, new CompactHeartbeat(T0, 60, new int[]{1024})));
+        assertFalse(encoder.add(8, new CompactHeartbeat(T0, CompactHeartbeat.NO_HEART_RATE, null)));
+        encoder.log("a");
+        encoder.log("b");
+        assertTrue(encoder.add(0, CompactHeartbeat.copyOf(T0, CompactHeartbeat.NO_HEART_RATE, new int[]{2048},
+                new byte[]{RrQuality.CORRECTED}, new int[]{1000}, 1)));
+
+        String dt = TimestampFormatter.getDefault().format(T0);
+        assertEquals("herv-batch, 1\n"
+                + "log, a\n"
+                + "7, " + dt + ", 60, 1000, 0\n"
+                + "log, b\n"
+                + "0, " + dt + ", , 1000, 1\n", body(encoder));
+        assertEquals(2, encoder.rows());
+
+        encoder.reset();
+        assertEquals("herv-batch, 1\n", body(encoder));
+        assertEquals(0, encoder.rows());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rowsBelongToALog() throws Exception {
+        new BatchEncoder().add(0, new CompactHeartbeat(T0, 60, null));
+    }
+}
@@ -0,0 +1,138 @@
+package herv.app.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.EventQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the uploader against a local stand-in of the server
+ */
+public class BatchUploaderTest {
+
+    private HttpServer server;
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile int status = 200;
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[1024];
+                int n;
+                while ((n = in.read(buf)) != -1) body.write(buf, 0, n);
+                bodies.add(body.toString("UTF-8"));
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] reply = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, reply.length);
+                exchange.getResponseBody().write(reply);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/batch";
+    }
+
+    @Test
+    public void sendsFullBatchesOverOneConnection() throws Exception {
+        final List<Boolean> results = Collections.synchronizedList(new ArrayList<Boolean>());
+        BatchUploader uploader = new BatchUploader(new HttpBatchTransport(url()), 256, 10, 60000);
+        uploader.setListener(new BatchUploader.Listener() {
+            @Override
+            public void onBatchSent(int events, int bytes, boolean success, int status) {
+                results.add(success);
+            }
+        });
+        uploader.start();
+        for (int i = 0; i < 25; i++) {
+            assertTrue(uploader.add(new CompactHeartbeat(i * 1000L, 60 + i, new int[]{1000})));
+        }
+        uploader.close();
+
+        assertEquals(3, bodies.size());
+        // version and log lines, then the rows
+        assertEquals(2 + 10, bodies.get(0).split("\n").length);
+        assertEquals(2 + 5, bodies.get(2).split("\n").length);
+        assertTrue(bodies.get(2).startsWith(BatchEncoder.HEADER + "\nlog, " + uploader.getLogId() + "\n20, "));
+        // sequence, dt, hr, rr in ms, quality
+        assertTrue(bodies.get(2).endsWith(", 84, 977, 0\n"));
+        assertEquals(Collections.nCopies(3, true), results);
+        assertEquals(25, uploader.getSentCount());
+        assertEquals(1, clientPorts.size()); // keep-alive connection reused
+    }
+
+    @Test
+    public void sendsPartialBatchAfterMaxDelay() throws Exception {
+        BatchUploader uploader = new BatchUploader(new HttpBatchTransport(url()), 256, 100, 50);
+        uploader.start();
+        uploader.add(new CompactHeartbeat(0L, 60, null));
+        for (int i = 0; i < 100 && bodies.isEmpty(); i++) Thread.sleep(10);
+        assertEquals(1, bodies.size());
+        uploader.close();
+    }
+
+    @Test
+    public void reportsFailedBatches() throws Exception {
+        status = 500;
+        BatchUploader uploader = new BatchUploader(new HttpBatchTransport(url()), 256, 10, 60000);
+        uploader.start();
+        for (int i = 0; i < 10; i++) uploader.add(new CompactHeartbeat(i * 1000L, 60, null));
+        uploader.close();
+        assertEquals(10, uploader.getFailedCount());
+        assertEquals(0, uploader.getSentCount());
+        assertTrue(uploader.getRetryCount() >= 1);
+    }
+
+    @Test
+    public void retriesAFailedBatchBeforePollingMore() throws Exception {
+        status = 503;
+        BatchUploader uploader = new BatchUploader(new HttpBatchTransport(url()),
+                new EventQueue("upload", 256, EventQueue.DROP), 10, 50, new ExponentialBackoff(10, 50));
+        for (int i = 0; i < 25; i++) uploader.add(new CompactHeartbeat(i * 1000L, 60 + i, new int[]{1000}));
+        uploader.start();
+        for (int i = 0; i < 200 && bodies.size() < 3; i++) Thread.sleep(10);
+        assertTrue(bodies.size() >= 3);
+        // the same first batch every time, the rest still queued
+        assertEquals(bodies.get(0), bodies.get(bodies.size() - 1));
+        assertEquals(15, uploader.getQueueSize());
+        assertEquals(0, uploader.getSentCount());
+
+        status = 200;
+        for (int i = 0; i < 200 && uploader.getSentCount() < 25; i++) Thread.sleep(10);
+        uploader.close();
+        assertEquals(25, uploader.getSentCount());
+        assertEquals(0, uploader.getFailedCount());
+        assertTrue(bodies.get(bodies.size() - 1).endsWith(", 84, 977, 0\n"));
+    }
+}
@@ -0,0 +1,166 @@
+package herv.app.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import herv.app.model.TimestampFormatter;
+
+import static org.junit.Assert.*;
+
+public class BulkImporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static long T0 = 1525298400000L;
+
+    /** Counts the rows posted and the maximum number of posts in flight, keeps their ids */
+    private static class CountingTransports implements BulkImporter.TransportFactory {
+        final AtomicInteger lines = new AtomicInteger();
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger posts = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile int status = 200;
+
+        @Override
+        public BatchTransport create() {
+            return new BatchTransport() {
+                @Override
+                public int post(byte[] body, int offset, int length) throws IOException {
+                    int n = inFlight.incrementAndGet();
+                    if (n > maxInFlight.get()) maxInFlight.set(n);
+                    posts.incrementAndGet();
+                    String[] rows = new String(body, offset, length, "UTF-8").split("\n");
+                    assertEquals(BatchEncoder.HEADER, rows[0]);
+                    String log = null;
+                    for (int i = 1; i < rows.length; i++) {
+                        if (rows[i].startsWith(BatchEncoder.LOG_PREFIX)) {
+                            log = rows[i].substring(BatchEncoder.LOG_PREFIX.length());
+                        } else {
+                            lines.incrementAndGet();
+                            ids.add(log + "#" + rows[i].substring(0, rows[i].indexOf(',')));
+                        }
+                    }
+                    Thread.yield();
+                    inFlight.decrementAndGet();
+                    return status;
+                }
+            };
+        }
+    }
+
+    private File write(String name, int rows) throws IOException {
+        File f = new File(folder.getRoot(), name);
+        StringBuilder sb = new StringBuilder();
+        TimestampFormatter formatter = TimestampFormatter.getDefault();
+        for (int i = 0; i < rows; i++) {
+            sb.append("\n").append(formatter.format(T0 + i * 1000L)).append(", ").append(60 + i % 40);
+        }
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(sb.toString().getBytes("UTF-8"));
+        out.close();
+        return f;
+    }
+
+    @Test
+    public void uploadsEveryRowInBoundedBatches() throws Exception {
+        File rr1 = write("rr18050221.csv", 1000);
+        File rr2 = write("rr18050222.csv", 1001);
+        CountingTransports transports = new CountingTransports();
+        BulkImporter importer = new BulkImporter(transports, 2, 100, 1, 1, 1);
+
+        BulkImporter.Progress progress = importer.run(Arrays.asList(rr1, rr2));
+
+        assertEquals(2001, progress.lines);
+        assertEquals(2001, progress.sentLines);
+        assertEquals(0, progress.failedLines);
+        assertEquals(2, progress.filesDone);
+        assertEquals(100, progress.getPercent());
+        assertEquals(2001, transports.lines.get());
+        assertEquals(21, transports.posts.get()); // batches span files
+        assertTrue(transports.maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void countsFailedBatchesAfterRetries() throws Exception {
+        File rr = write("rr18050222.csv", 10);
+        CountingTransports transports = new CountingTransports();
+        transports.status = 500;
+        BulkImporter importer = new BulkImporter(transports, 1, 4, 3, 1, 2);
+
+        BulkImporter.Progress progress = importer.run(Arrays.asList(rr));
+
+        assertEquals(0, progress.sentLines);
+        assertEquals(10, progress.failedLines);
+        assertEquals(3 * 3, transports.posts.get()); // 3 batches, 3 attempts each
+        // a retried row keeps its id: the file, and its line (after the leading blank one)
+        assertEquals(3 * 10, transports.ids.size());
+        assertEquals(10, new HashSet<String>(transports.ids).size());
+        assertTrue(transports.ids.contains("csv/rr18050222.csv#2"));
+        assertTrue(transports.ids.contains("csv/rr18050222.csv#11"));
+    }
+
+    @Test
+    public void skipsLinesThatAreNotRows() throws Exception {
+        File rr = write("rr18050222.csv", 5);
+        FileOutputStream out = new FileOutputStream(rr, true);
+        out.write("\nnot a row\n\n".getBytes("UTF-8"));
+        out.close();
+        CountingTransports transports = new CountingTransports();
+
+        BulkImporter.Progress progress = new BulkImporter(transports, 1, 100, 1, 1, 1).run(Arrays.asList(rr));
+
+        assertEquals(5, progress.sentLines);
+        assertEquals(1, progress.skippedLines);
+        assertEquals(5, transports.lines.get());
+    }
+
+    @Test
+    public void listsOnlyScratchFiles() throws Exception {
+        write("rr18050222.csv", 1);
+        write("act180502.csv", 1);
+        write("rr18050221.csv", 1);
+        write("notes.txt", 1);
+        File[] files = BulkImporter.listImportable(folder.getRoot());
+        assertEquals(2, files.length);
+        assertEquals("rr18050221.csv", files[0].getName());
+        assertEquals("rr18050222.csv", files[1].getName());
+    }
+
+    @Test
+    public void cancelStopsTheSendersWaitingToRetry() throws Exception {
+        File rr = write("rr18050222.csv", 10);
+        CountingTransports transports = new CountingTransports();
+        transports.status = 500;
+        // a minute between attempts
+        final BulkImporter importer = new BulkImporter(transports, 2, 4, 5, 60 * 1000, 60 * 1000);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                importer.cancel();
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        BulkImporter.Progress progress = importer.run(Arrays.asList(rr));
+        assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+        assertEquals(0, progress.sentLines);
+    }
+}
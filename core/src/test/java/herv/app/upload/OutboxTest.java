@@ -0,0 +1,209 @@
+package herv.app.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import herv.app.model.CompactHeartbeat;
+import herv.app.storage.HeartbeatCodec;
+import herv.app.storage.SegmentLog;
+import herv.app.storage.TimeIndex;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Stand-in server keeping the sequences it received, optionally offline */
+    private static class FakeTransport implements BatchTransport {
+        final List<Long> sequences = new ArrayList<Long>();
+        final List<String> logIds = new ArrayList<String>();
+        boolean offline;
+        int calls;
+
+        @Override
+        public int post(byte[] body, int offset, int length) throws IOException {
+            calls++;
+            if (offline) throw new IOException("offline");
+            String[] lines = new String(body, offset, length, "UTF-8").split("\n");
+            assertEquals(BatchEncoder.HEADER, lines[0]);
+            assertTrue(lines[1].startsWith(BatchEncoder.LOG_PREFIX));
+            logIds.add(lines[1].substring(BatchEncoder.LOG_PREFIX.length()));
+            for (int i = 2; i < lines.length; i++) {
+                sequences.add(Long.parseLong(lines[i].split(",")[0]));
+            }
+            return 200;
+        }
+    }
+
+    private static void appendBeats(SegmentLog log, int from, int to) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HeartbeatCodec.MAX_SIZE);
+        for (int i = from; i < to; i++) {
+            b.clear();
+            HeartbeatCodec.encode(new CompactHeartbeat(i * 1000L, 60, new int[]{1000}), b);
+            b.flip();
+            log.append(b);
+        }
+        log.flush();
+    }
+
+    private Outbox outbox(File dir, FakeTransport transport) throws IOException {
+        return new Outbox(dir, new File(dir, "outbox.state"), transport,
+                new ExponentialBackoff(1000, 60000, new Random(1)), 10, 5000, 1000);
+    }
+
+    @Test
+    public void deliversAcrossSegmentsAndResumesAfterRestart() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 512);
+        appendBeats(log, 0, 95);
+        FakeTransport server = new FakeTransport();
+
+        Outbox first = outbox(dir, server);
+        long now = 0;
+        for (int i = 0; i < 5; i++) assertEquals(0, first.step(now));
+        assertEquals(50, first.getAckedSequence());
+
+        // process restarted: a new outbox picks up from the saved state
+        Outbox second = outbox(dir, server);
+        assertEquals(50, second.getAckedSequence());
+        while (second.step(now) == 0) { }
+        assertEquals(90, second.getAckedSequence()); // 5 left, waiting for a full batch
+        now += 5000;
+        assertEquals(0, second.step(now));
+        assertEquals(95, server.sequences.size());
+        for (int i = 0; i < 95; i++) assertEquals(i, (long) server.sequences.get(i));
+
+        appendBeats(log, 95, 100);
+        now += 1000;
+        second.step(now);
+        now += 5000;
+        second.step(now);
+        assertEquals(100, second.getAckedSequence());
+        log.close();
+    }
+
+    @Test
+    public void countsRecordsAppendedBetweenPolls() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 512);
+        FakeTransport server = new FakeTransport();
+        Outbox outbox = outbox(dir, server);
+
+        long now = 0;
+        assertEquals(1000, outbox.step(now));
+        int appended = 0;
+        // a few records per poll, across segments, until a batch is full
+        while (appended < 10) {
+            appendBeats(log, appended, appended + 3);
+            appended += 3;
+            now += 1000;
+            long wait = outbox.step(now);
+            if (appended < 10) {
+                assertTrue(wait > 0);
+                assertEquals(0, server.calls);
+            } else {
+                assertEquals(0, wait);
+            }
+        }
+        assertEquals(1, server.calls);
+        assertEquals(10, outbox.getAckedSequence());
+        assertEquals(10, server.sequences.size());
+        log.close();
+    }
+
+    @Test
+    public void identifiesTheLogAcrossRestartsButNotAcrossWipes() throws Exception {
+        File dir = folder.newFolder("log");
+        SegmentLog log = new SegmentLog(dir, 4096);
+        appendBeats(log, 0, 20);
+        FakeTransport server = new FakeTransport();
+        outbox(dir, server).step(0);
+        outbox(dir, server).step(0);
+        assertEquals(2, server.logIds.size());
+        assertEquals(server.logIds.get(0), server.logIds.get(1));
+        log.close();
+
+        // folder wiped: the sequences restart at 0 under a new id
+        for (File f : dir.listFiles()) assertTrue(f.delete());
+        log = new SegmentLog(dir, 4096);
+        appendBeats(log, 0, 10);
+        outbox(dir, server).step(0);
+        assertEquals(3, server.logIds.size());
+        assertFalse(server.logIds.get(0).equals(server.logIds.get(2)));
+        assertEquals(0, (long) server.sequences.get(20));
+        log.close();
+    }
+
+    @Test
+    public void deletesAcknowledgedSegmentsAfterTheRetentionPeriod() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 512);
+        appendBeats(log, 0, 95);
+        long now = System.currentTimeMillis();
+        File[] segments = SegmentLog.listSegments(dir);
+        // all but the last two are old enough
+        for (int i = 0; i < segments.length - 2; i++) {
+            assertTrue(segments[i].setLastModified(now - 2 * 3600 * 1000));
+        }
+        Outbox outbox = new Outbox(dir, new File(dir, "outbox.state"), new FakeTransport(),
+                new ExponentialBackoff(1000, 60000, new Random(1)), 10, 5000, 1000, 3600 * 1000);
+        TimeIndex index = new TimeIndex(dir);
+        outbox.setTimeIndex(index);
+
+        // the first batch acknowledges less than a segment, nothing to delete
+        outbox.step(now);
+        assertEquals(0, outbox.getDeletedSegments());
+        while (outbox.step(now) == 0) { }
+        assertEquals(90, outbox.getAckedSequence());
+        File[] left = SegmentLog.listSegments(dir);
+        assertEquals(segments.length - outbox.getDeletedSegments(), left.length);
+        assertEquals(segments.length - 2, outbox.getDeletedSegments());
+        assertEquals(segments[segments.length - 2], left[0]);
+        // the index no longer plans reads over the deleted segments, nor does its manifest
+        assertEquals(left.length, index.getSegmentCount());
+        assertEquals(left.length, new TimeIndex(dir).getSegmentCount());
+        TimeIndex.RangeReader reader = index.query(0, Long.MAX_VALUE);
+        assertTrue(reader.next());
+        assertEquals(SegmentLog.baseSequenceOf(left[0]) * 1000L, reader.beat().getTimestamp());
+        log.close();
+    }
+
+    @Test
+    public void backsOffWhileOfflineWithoutLosingRecords() throws Exception {
+        File dir = folder.getRoot();
+        SegmentLog log = new SegmentLog(dir, 4096);
+        appendBeats(log, 0, 30);
+        FakeTransport server = new FakeTransport();
+        server.offline = true;
+        Outbox outbox = outbox(dir, server);
+
+        long now = 0;
+        long previous = 0;
+        for (int i = 0; i < 6; i++) {
+            long wait = outbox.step(now);
+            assertTrue(wait >= previous / 2);
+            assertTrue(wait <= 60000);
+            previous = wait;
+            assertEquals(wait, outbox.step(now)); // nothing sent before the retry time
+            now += wait;
+        }
+        assertEquals(6, server.calls);
+        assertEquals(0, outbox.getAckedSequence());
+
+        server.offline = false;
+        while (outbox.step(now) == 0) { }
+        assertEquals(30, outbox.getAckedSequence());
+        assertEquals(30, server.sequences.size());
+        log.close();
+    }
+}